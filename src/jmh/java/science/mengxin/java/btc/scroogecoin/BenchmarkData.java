@@ -0,0 +1,48 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Random;
+
+/** Fixtures shared by the benchmarks, all derived from a fixed seed */
+final class BenchmarkData {
+
+    static final long SEED = 42;
+
+    private BenchmarkData() {
+    }
+
+    static KeyPair keyPair(int bits) throws GeneralSecurityException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(bits);
+        return keyGen.generateKeyPair();
+    }
+
+    static byte[] hash(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    /** @return a finalized transaction with {@code inputs} signed inputs and {@code outputs} outputs */
+    static Transaction transaction(Random random, int inputs, int outputs, PrivateKey signer, PublicKey to)
+            throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(hash(random), random.nextInt(4));
+        for (int o = 0; o < outputs; o++)
+            tx.addOutput(random.nextInt(1000), to);
+        for (int i = 0; i < inputs; i++) {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(signer);
+            sig.update(tx.getRawDataToSign(i));
+            tx.addSignature(sig.sign(), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+}
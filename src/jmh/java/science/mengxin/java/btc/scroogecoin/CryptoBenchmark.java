@@ -0,0 +1,54 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @Param({"1024", "2048"})
+    int keyBits;
+
+    private KeyPair keys;
+    private Transaction tx;
+    private byte[] message;
+    private byte[] signature;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        keys = BenchmarkData.keyPair(keyBits);
+        tx = BenchmarkData.transaction(new Random(BenchmarkData.SEED), 1, 2, keys.getPrivate(), keys.getPublic());
+        message = tx.getRawDataToSign(0);
+        signature = tx.getInput(0).signature;
+    }
+
+    @Benchmark
+    public boolean verifySignature() {
+        return Crypto.verifySignature(keys.getPublic(), message, signature);
+    }
+
+    /** Includes building the signed message from the transaction */
+    @Benchmark
+    public boolean verifyInputSignature() {
+        return Crypto.verifySignature(keys.getPublic(), tx, 0, signature);
+    }
+}
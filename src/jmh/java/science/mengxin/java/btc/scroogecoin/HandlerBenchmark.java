@@ -0,0 +1,78 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a whole {@link Workload} through a handler. The workload is loaded from the fixture named by
+ * the {@code scrooge.workload} system property, or generated with the default shape into a
+ * temporary fixture on first use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HandlerBenchmark {
+
+    @Param({"recursive", "dag", "maxFee"})
+    String handler;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException, GeneralSecurityException {
+        String fixture = System.getProperty("scrooge.workload");
+        if (fixture != null) {
+            workload = Workload.read(Paths.get(fixture));
+            return;
+        }
+        Path file = Files.createTempFile("workload", ".bin");
+        try {
+            new WorkloadGenerator(BenchmarkData.SEED, new WorkloadGenerator.Shape()).generate().write(file);
+            workload = Workload.read(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private TxHandler create(UTXOPool pool) {
+        switch (handler) {
+            case "recursive":
+                return new TxHandler(pool);
+            case "dag":
+                return new DagTxHandler(pool);
+            case "maxFee":
+                return new MaxFeeTxHandler(pool);
+            default:
+                throw new IllegalArgumentException("unknown handler: " + handler);
+        }
+    }
+
+    /** Every run starts from the genesis pool with an empty signature cache */
+    @Benchmark
+    public UTXOPool handleWorkload() {
+        TxHandler txHandler = create(workload.genesisPool());
+        for (Transaction[] epoch : workload.getEpochs())
+            txHandler.handleTxs(epoch);
+        return txHandler.getPool();
+    }
+}
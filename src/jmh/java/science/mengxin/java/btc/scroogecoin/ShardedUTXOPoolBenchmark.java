@@ -0,0 +1,87 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of concurrent atomic spends on a {@link ShardedUTXOPool}; one shard is the
+ * single-lock baseline. Vary the thread count with {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ShardedUTXOPoolBenchmark {
+
+    private static final int SIZE = 1 << 20;
+
+    @Param({"1", "64", "256"})
+    int shards;
+
+    private ShardedUTXOPool pool;
+    private UTXO[] utxos;
+    private Transaction.Output output;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(BenchmarkData.SEED);
+        Transaction tx = new Transaction();
+        tx.addOutput(1, null);
+        output = tx.getOutput(0);
+        pool = new ShardedUTXOPool(shards);
+        utxos = new UTXO[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            utxos[i] = new UTXO(BenchmarkData.hash(random), 0);
+            pool.addUTXO(utxos[i], output);
+        }
+    }
+
+    /** Each thread spends and recreates outpoints from its own slice, so spends never conflict */
+    @State(Scope.Thread)
+    public static class Slice {
+        private static final int SLICES = 64;
+        private static final AtomicInteger NEXT = new AtomicInteger();
+
+        final int from = NEXT.getAndIncrement() % SLICES * (SIZE / SLICES);
+        final int length = SIZE / SLICES;
+        int next;
+    }
+
+    @Benchmark
+    public boolean spendAndRecreate(Slice slice) {
+        UTXO utxo = utxos[slice.from + slice.next];
+        slice.next = slice.next + 1 == slice.length ? 0 : slice.next + 1;
+        boolean spent = pool.spend(Collections.singletonList(utxo), Collections.emptyMap());
+        HashMap<UTXO, Transaction.Output> created = new HashMap<>();
+        created.put(utxo, output);
+        pool.spend(new ArrayList<>(), created);
+        return spent;
+    }
+
+    @Benchmark
+    public boolean contains(Slice slice) {
+        UTXO utxo = utxos[slice.from + slice.next];
+        slice.next = slice.next + 1 == slice.length ? 0 : slice.next + 1;
+        return pool.contains(utxo);
+    }
+}
@@ -0,0 +1,57 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+
+    @Param({"1", "4", "16"})
+    int inputs;
+
+    @Param({"2", "16"})
+    int outputs;
+
+    private Transaction tx;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        KeyPair keys = BenchmarkData.keyPair(2048);
+        tx = BenchmarkData.transaction(new Random(BenchmarkData.SEED), inputs, outputs, keys.getPrivate(), keys.getPublic());
+    }
+
+    @Benchmark
+    public byte[] getRawTx() {
+        return tx.getRawTx();
+    }
+
+    @Benchmark
+    public byte[] getRawDataToSign() {
+        return tx.getRawDataToSign(inputs - 1);
+    }
+
+    @Benchmark
+    public byte[] finalizeTx() {
+        tx.finalize();
+        return tx.getHash();
+    }
+}
@@ -0,0 +1,77 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UTXOBenchmark {
+
+    private UTXO utxo;
+    /** Same outpoint in a different array, so equals has to compare the bytes */
+    private UTXO same;
+    /** Same hash, different index */
+    private UTXO sibling;
+    /** Same outpoint sharing the {@link TxId} of {@code utxo}, as interned ids do */
+    private UTXO shared;
+    private byte[] hash;
+
+    @Setup
+    public void setUp() {
+        hash = BenchmarkData.hash(new Random(BenchmarkData.SEED));
+        utxo = new UTXO(hash, 0);
+        same = new UTXO(hash.clone(), 0);
+        sibling = new UTXO(hash, 1);
+        shared = new UTXO(utxo.getTxId(), 0);
+    }
+
+    @Benchmark
+    public UTXO construct() {
+        return new UTXO(hash, 0);
+    }
+
+    @Benchmark
+    public UTXO constructFromId() {
+        return new UTXO(utxo.getTxId(), 0);
+    }
+
+    @Benchmark
+    public int hashCodeOf() {
+        return utxo.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsSame() {
+        return utxo.equals(same);
+    }
+
+    @Benchmark
+    public boolean equalsShared() {
+        return utxo.equals(shared);
+    }
+
+    @Benchmark
+    public boolean equalsSibling() {
+        return utxo.equals(sibling);
+    }
+
+    @Benchmark
+    public int compareTo() {
+        return utxo.compareTo(sibling);
+    }
+}
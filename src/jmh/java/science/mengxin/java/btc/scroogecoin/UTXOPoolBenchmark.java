@@ -0,0 +1,138 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool operations at sizes from 1k to 10M outpoints. Every outpoint maps to the same output, so
+ * the heap holds the index rather than millions of outputs; 10M still needs several GB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class UTXOPoolBenchmark {
+
+    /** Lookups cycle through this many keys, so they miss the CPU caches as a real pool would */
+    private static final int PROBES = 1 << 16;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"hash", "primitive", "persistent", "sharded", "filtered"})
+    String pool;
+
+    private UTXOPool utxoPool;
+    private Transaction.Output output;
+    private UTXO[] present;
+    private UTXO[] absent;
+    private int next;
+    private int nextMiss;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(BenchmarkData.SEED);
+        Transaction tx = new Transaction();
+        tx.addOutput(1, null);
+        output = tx.getOutput(0);
+        utxoPool = create(pool, size);
+        present = new UTXO[Math.min(size, PROBES)];
+        for (int i = 0; i < size; i++) {
+            UTXO utxo = new UTXO(BenchmarkData.hash(random), random.nextInt(4));
+            utxoPool.addUTXO(utxo, output);
+            if (i < present.length)
+                present[i] = utxo;
+        }
+        absent = new UTXO[PROBES];
+        for (int i = 0; i < absent.length; i++)
+            absent[i] = new UTXO(BenchmarkData.hash(random), 0);
+    }
+
+    private static UTXOPool create(String pool, int size) {
+        switch (pool) {
+            case "hash":
+                return new UTXOPool();
+            case "primitive":
+                return new PrimitiveUTXOPool();
+            case "persistent":
+                return new PersistentUTXOPool();
+            case "sharded":
+                return new ShardedUTXOPool();
+            case "filtered":
+                return new FilteredUTXOPool(new UTXOPool(), size, FilteredUTXOPool.DEFAULT_FALSE_POSITIVE_RATE);
+            default:
+                throw new IllegalArgumentException("unknown pool: " + pool);
+        }
+    }
+
+    private UTXO nextPresent() {
+        UTXO utxo = present[next];
+        next = next + 1 == present.length ? 0 : next + 1;
+        return utxo;
+    }
+
+    private UTXO nextAbsent() {
+        UTXO utxo = absent[nextMiss];
+        nextMiss = (nextMiss + 1) & (PROBES - 1);
+        return utxo;
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return utxoPool.contains(nextPresent());
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return utxoPool.contains(nextAbsent());
+    }
+
+    @Benchmark
+    public Transaction.Output get() {
+        return utxoPool.getTxOutput(nextPresent());
+    }
+
+    /** Adds an outpoint and removes it again, keeping the pool at its size */
+    @Benchmark
+    public UTXOPool addRemove() {
+        UTXO utxo = nextAbsent();
+        utxoPool.addUTXO(utxo, output);
+        utxoPool.removeUTXO(utxo);
+        return utxoPool;
+    }
+
+    /** Removes an outpoint and adds it back, keeping the pool at its size */
+    @Benchmark
+    public UTXOPool removeAdd() {
+        UTXO utxo = nextPresent();
+        utxoPool.removeUTXO(utxo);
+        utxoPool.addUTXO(utxo, output);
+        return utxoPool;
+    }
+
+    @Benchmark
+    public UTXOPool copyConstructor() {
+        return new UTXOPool(utxoPool);
+    }
+
+    /** The copy the handlers take each epoch, which is O(1) for the persistent pool */
+    @Benchmark
+    public UTXOPool copy() {
+        return utxoPool.copy();
+    }
+}
@@ -0,0 +1,144 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A {@link TxHandler} that can also validate and apply an epoch directly from the columns of a
+ * {@link TransactionBatch}.
+ *
+ * {@link #handleBatch} accepts exactly what {@link #handleTxs} accepts for the same transactions,
+ * in the same order, using the in-epoch dependency graph the way {@link DagTxHandler} does. Inputs
+ * are read from the batch's flat arrays and signatures are verified over the columns without
+ * building {@link Transaction} objects; only the outputs added to the pool become objects. The
+ * signature cache and parallel verification of {@link #handleTxs} are not used on this path.
+ */
+public class BatchTxHandler extends TxHandler {
+
+    public BatchTxHandler(UTXOPool utxoPool) {
+        super(utxoPool);
+    }
+
+    /**
+     * Handles the epoch in {@code batch} and updates the pool.
+     *
+     * @return the indices in {@code batch} of the accepted transactions, in acceptance order
+     */
+    public int[] handleBatch(TransactionBatch batch) {
+        int n = batch.size();
+        UTXOPool live = pool;
+        UTXOPool ledger = live.beginEpoch();
+        int inputs = batch.firstInput[n];
+        UTXO[] spends = new UTXO[inputs];
+        for (int in = 0; in < inputs; in++)
+            spends[in] = batch.spentBy(in);
+        HashSet<ByteBuffer> hashes = new HashSet<>();
+        for (int t = 0; t < n; t++) {
+            int from = batch.txHashOffset[t];
+            hashes.add(ByteBuffer.wrap(batch.txHashes, from, batch.txHashOffset[t + 1] - from));
+        }
+        HashMap<UTXO, int[]> waiting = new HashMap<>();
+        int[] resumeAt = new int[n];
+        double[] inputValue = new double[n];
+
+        int[] accepted = new int[n];
+        int acceptedCount = 0;
+        int[] round = new int[n];
+        int roundSize = n;
+        for (int t = 0; t < n; t++)
+            round[t] = t;
+        BitSet next = new BitSet(n);
+        while (roundSize > 0) {
+            int roundStart = acceptedCount;
+            ClaimIndex<Integer> claims = new ClaimIndex<>();
+            for (int r = 0; r < roundSize; r++) {
+                int t = round[r];
+                if (examine(batch, t, ledger, spends, resumeAt, inputValue, hashes, waiting) == ThreeState.TRUE
+                        && claims.tryClaim(t, spendsOf(batch, t, spends)))
+                    accepted[acceptedCount++] = t;
+            }
+
+            // apply the round, waking the transactions waiting on what it created
+            for (int a = roundStart; a < acceptedCount; a++) {
+                int t = accepted[a];
+                for (int in = batch.firstInput[t]; in < batch.firstInput[t + 1]; in++)
+                    ledger.removeUTXO(spends[in]);
+                for (int o = batch.firstOutput[t]; o < batch.firstOutput[t + 1]; o++) {
+                    UTXO utxo = batch.createdBy(t, o - batch.firstOutput[t]);
+                    ledger.addUTXO(utxo, batch.output(t, o));
+                    int[] children = waiting.remove(utxo);
+                    if (children != null) {
+                        for (int c = 1; c <= children[0]; c++)
+                            next.set(children[c]);
+                    }
+                }
+            }
+            roundSize = 0;
+            for (int t = next.nextSetBit(0); t >= 0; t = next.nextSetBit(t + 1))
+                round[roundSize++] = t;
+            next.clear();
+        }
+        pool = live.endEpoch(ledger);
+        return Arrays.copyOf(accepted, acceptedCount);
+    }
+
+    /** Classifies transaction {@code t} like {@link DagTxHandler}, resuming at its first missing input */
+    private static ThreeState examine(TransactionBatch batch, int t, UTXOPool ledger, UTXO[] spends,
+                                      int[] resumeAt, double[] inputValue, HashSet<ByteBuffer> hashes,
+                                      HashMap<UTXO, int[]> waiting) {
+        int first = batch.firstInput[t];
+        int end = batch.firstInput[t + 1];
+        int resume = first + resumeAt[t];
+        for (int in = first; in < resume; in++) {
+            if (!ledger.contains(spends[in]))
+                return ThreeState.FALSE;
+        }
+        Crypto.Verifier verifier = Crypto.verifier();
+        for (int in = resume; in < end; in++) {
+            UTXO utxo = spends[in];
+            if (!ledger.contains(utxo)) {
+                resumeAt[t] = in - first;
+                byte[] hash = utxo.getTxHash();
+                if (!hashes.contains(ByteBuffer.wrap(hash)))
+                    return ThreeState.FALSE;
+                waiting.compute(utxo, (k, list) -> append(list, t));
+                return ThreeState.MAYBE;
+            }
+            Transaction.Output prev = ledger.getTxOutput(utxo);
+            if (!verifier.verify(prev.address, batch, t, in))
+                return ThreeState.FALSE;
+            inputValue[t] += prev.value;
+        }
+        resumeAt[t] = end - first;
+
+        HashSet<UTXO> distinct = new HashSet<>(spendsOf(batch, t, spends));
+        if (distinct.size() != end - first)
+            return ThreeState.FALSE;
+        double outputValue = 0;
+        for (int o = batch.firstOutput[t]; o < batch.firstOutput[t + 1]; o++) {
+            outputValue += batch.value[o];
+            if (batch.value[o] < 0)
+                return ThreeState.FALSE;
+        }
+        return inputValue[t] < outputValue ? ThreeState.FALSE : ThreeState.TRUE;
+    }
+
+    /** @return the outpoints transaction {@code t} spends, a view of {@code spends} */
+    private static List<UTXO> spendsOf(TransactionBatch batch, int t, UTXO[] spends) {
+        return Arrays.asList(spends).subList(batch.firstInput[t], batch.firstInput[t + 1]);
+    }
+
+    /** Appends to an int list whose first element is its length */
+    private static int[] append(int[] list, int value) {
+        if (list == null)
+            list = new int[4];
+        else if (list[0] + 1 == list.length)
+            list = Arrays.copyOf(list, list.length * 2);
+        list[++list[0]] = value;
+        return list;
+    }
+}
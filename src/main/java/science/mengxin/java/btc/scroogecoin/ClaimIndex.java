@@ -0,0 +1,116 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maps each claimed outpoint to the transaction that spends it, maintained incrementally as
+ * transactions are accepted. A candidate is checked against everything accepted so far with one
+ * probe per input.
+ *
+ * Candidates that lose an outpoint are remembered as its contenders, so {@link #conflictSet} and
+ * {@link #conflictsOf} give the full set of transactions competing for an output, for tie-break
+ * policies other than first-come.
+ *
+ * A claimant is whatever identifies a transaction to the caller, usually the {@link Transaction}
+ * itself with {@link #inputsOf} as its outpoints, or its index in a {@link TransactionBatch}.
+ * Claimants are compared with {@code equals}.
+ */
+public class ClaimIndex<T> {
+
+    private final HashMap<UTXO, T> claimedBy = new HashMap<>();
+
+    /** Claimants that tried to claim an outpoint someone else already held */
+    private final HashMap<UTXO, ArrayList<T>> contenders = new HashMap<>();
+
+    /** @return the outpoints spent by the inputs of {@code tx}, in input order */
+    public static List<UTXO> inputsOf(Transaction tx) {
+        ArrayList<UTXO> inputs = new ArrayList<>(tx.numInputs());
+        for (Transaction.Input input : tx.getInputs())
+            inputs.add(input.getUTXO());
+        return inputs;
+    }
+
+    /**
+     * Claims every outpoint in {@code inputs} for {@code claimant} unless another claimant already
+     * holds one of them. On a conflict nothing is claimed and {@code claimant} is recorded as a
+     * contender for the held outpoints.
+     *
+     * @return true if {@code claimant} now holds all of {@code inputs}
+     */
+    public boolean tryClaim(T claimant, List<UTXO> inputs) {
+        boolean conflict = false;
+        for (UTXO utxo : inputs) {
+            T holder = claimedBy.get(utxo);
+            if (holder != null && !holder.equals(claimant)) {
+                contenders.computeIfAbsent(utxo, k -> new ArrayList<>()).add(claimant);
+                conflict = true;
+            }
+        }
+        if (conflict)
+            return false;
+        for (UTXO utxo : inputs)
+            claimedBy.put(utxo, claimant);
+        return true;
+    }
+
+    /** Drops the claims {@code claimant} holds on {@code inputs}, e.g. when it is evicted */
+    public void release(T claimant, List<UTXO> inputs) {
+        for (UTXO utxo : inputs) {
+            if (claimant.equals(claimedBy.get(utxo)))
+                claimedBy.remove(utxo);
+            ArrayList<T> others = contenders.get(utxo);
+            if (others != null) {
+                others.remove(claimant);
+                if (others.isEmpty())
+                    contenders.remove(utxo);
+            }
+        }
+    }
+
+    /** @return the claimant holding output {@code index} of {@code txHash}, or null */
+    public T claimant(byte[] txHash, int index) {
+        return claimedBy.get(new UTXO(txHash, index));
+    }
+
+    public T claimant(UTXO utxo) {
+        return claimedBy.get(utxo);
+    }
+
+    /** @return the holder of {@code utxo} followed by the contenders that lost it, in arrival order */
+    public List<T> conflictSet(UTXO utxo) {
+        T holder = claimedBy.get(utxo);
+        ArrayList<T> others = contenders.get(utxo);
+        if (holder == null && others == null)
+            return Collections.emptyList();
+        ArrayList<T> set = new ArrayList<>();
+        if (holder != null)
+            set.add(holder);
+        if (others != null)
+            set.addAll(others);
+        return set;
+    }
+
+    /** @return every other claimant holding or contending for an outpoint in {@code inputs} */
+    public Set<T> conflictsOf(T claimant, List<UTXO> inputs) {
+        LinkedHashSet<T> conflicts = new LinkedHashSet<>();
+        for (UTXO utxo : inputs)
+            conflicts.addAll(conflictSet(utxo));
+        conflicts.remove(claimant);
+        return conflicts;
+    }
+
+    /** @return the number of claimed outpoints */
+    public int size() {
+        return claimedBy.size();
+    }
+
+    public void clear() {
+        claimedBy.clear();
+        contenders.clear();
+    }
+}
@@ -0,0 +1,280 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * A lock-free {@link UTXOPool} whose entries can be claimed by a transaction before it is applied,
+ * so validators running in parallel never both spend an output.
+ *
+ * Every entry carries a claim slot changed only by compare-and-set. {@link #claim} takes all the
+ * inputs of a transaction or none of them, {@link #release} gives them back and {@link #commit}
+ * spends them and adds the transaction's outputs. Claims go to whoever gets there first. To make
+ * the outcome independent of thread timing, {@link #claimAll} resolves a whole set of transactions
+ * by priority with deterministic reservations. It claims for exactly the transactions a sequential
+ * pass in priority order would accept.
+ *
+ * Plain reads and updates are safe from any thread; claims are not copied by {@link #copy}.
+ */
+public class ConcurrentUTXOPool extends UTXOPool {
+
+    /** Orders transactions by hash, lexicographically as unsigned bytes */
+    public static final Comparator<Transaction> BY_HASH = (a, b) -> compareHashes(a.getHash(), b.getHash());
+
+    private static final class Entry {
+        final Transaction.Output output;
+        /** Transaction holding this output, or null */
+        final AtomicReference<Transaction> claimant = new AtomicReference<>();
+        /** Highest-priority transaction reserving this output in the current {@link #claimAll} round */
+        final AtomicReference<Transaction> reservation = new AtomicReference<>();
+
+        Entry(Transaction.Output output) {
+            this.output = output;
+        }
+    }
+
+    private final ConcurrentHashMap<UTXO, Entry> entries = new ConcurrentHashMap<>();
+
+    public ConcurrentUTXOPool() {
+    }
+
+    /** Creates a pool holding the UTXOs of {@code uPool}, unclaimed */
+    public ConcurrentUTXOPool(UTXOPool uPool) {
+        for (UTXO ut : uPool.getAllUTXO())
+            entries.put(ut, new Entry(uPool.getTxOutput(ut)));
+    }
+
+    @Override
+    public ConcurrentUTXOPool copy() {
+        return new ConcurrentUTXOPool(this);
+    }
+
+    /** Adds or replaces {@code utxo}; a replaced entry loses its claim */
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        entries.put(utxo, new Entry(txOut));
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        entries.remove(utxo);
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        Entry entry = entries.get(ut);
+        return entry == null ? null : entry.output;
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return entries.containsKey(utxo);
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return getTxOutput(new UTXO(txHash, index));
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return contains(new UTXO(txHash, index));
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /** @return the transaction holding {@code utxo}, or null if it is unclaimed or not in the pool */
+    public Transaction claimant(UTXO utxo) {
+        Entry entry = entries.get(utxo);
+        return entry == null ? null : entry.claimant.get();
+    }
+
+    /**
+     * Claims every output in {@code inputs} for {@code claimant}, or none of them if one is missing,
+     * repeated or held by another transaction. Claiming outputs {@code claimant} already holds
+     * succeeds.
+     *
+     * @return true if {@code claimant} now holds all of {@code inputs}
+     */
+    public boolean claim(UTXO[] inputs, Transaction claimant) {
+        Entry[] seen = new Entry[inputs.length];
+        boolean[] taken = new boolean[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            Entry entry = entries.get(inputs[i]);
+            boolean ok = entry != null && !contains(seen, i, entry);
+            if (ok) {
+                seen[i] = entry;
+                taken[i] = entry.claimant.compareAndSet(null, claimant);
+                ok = taken[i] || entry.claimant.get() == claimant;
+            }
+            if (!ok) {
+                // undo only what this call took, so claims held before it survive
+                for (int j = 0; j < i; j++) {
+                    if (taken[j])
+                        seen[j].claimant.compareAndSet(claimant, null);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Releases the outputs of {@code inputs} that {@code claimant} holds */
+    public void release(UTXO[] inputs, Transaction claimant) {
+        for (UTXO utxo : inputs) {
+            Entry entry = entries.get(utxo);
+            if (entry != null)
+                entry.claimant.compareAndSet(claimant, null);
+        }
+    }
+
+    /**
+     * Spends the inputs of {@code tx}, which must all be claimed by it, and adds its outputs.
+     *
+     * @return false, changing nothing, if {@code tx} does not hold every input
+     */
+    public boolean commit(Transaction tx) {
+        ArrayList<UTXO> inputs = inputsOf(tx);
+        ArrayList<Entry> held = new ArrayList<>(inputs.size());
+        for (UTXO utxo : inputs) {
+            Entry entry = entries.get(utxo);
+            if (entry == null || entry.claimant.get() != tx)
+                return false;
+            held.add(entry);
+        }
+        // nobody else can take a claimed entry, so removing the exact entries cannot fail
+        for (int i = 0; i < inputs.size(); i++)
+            entries.remove(inputs.get(i), held.get(i));
+        for (int o = 0; o < tx.numOutputs(); o++)
+            addUTXO(new UTXO(tx.getTxId(), o), tx.getOutput(o));
+        return true;
+    }
+
+    /**
+     * Claims the inputs of a maximal set of non-conflicting transactions from {@code txs}, in
+     * parallel. A transaction is chosen exactly when a sequential pass over {@code txs} in
+     * {@code priority} order would choose it, that is when all its inputs are in the pool and
+     * unclaimed, none repeats, and no chosen transaction of higher priority spends one of them.
+     * Only conflicts are checked; validate the transactions first.
+     *
+     * The resolution runs in rounds of deterministic reservations: every open transaction reserves
+     * its inputs with a compare-and-set that keeps the highest priority, then those holding all
+     * their reservations claim their inputs; the rest try again. The highest-priority open
+     * transaction always succeeds, so every round makes progress. Transactions outside the call may
+     * claim concurrently, but then the result depends on when they do.
+     *
+     * @param priority a total order, earlier meaning higher priority, e.g. {@link #BY_HASH}
+     * @return the transactions now holding their inputs, in priority order
+     */
+    public List<Transaction> claimAll(Collection<Transaction> txs, Comparator<Transaction> priority) {
+        List<Transaction> open = txs.stream().distinct().sorted(priority).collect(Collectors.toList());
+        Map<Transaction, Entry[]> inputs = new ConcurrentHashMap<>();
+        open.removeIf(tx -> {
+            Entry[] resolved = resolve(tx);
+            if (resolved == null)
+                return true;
+            inputs.put(tx, resolved);
+            return false;
+        });
+        ArrayList<Transaction> chosen = new ArrayList<>();
+        while (!open.isEmpty()) {
+            open = open.parallelStream().filter(tx -> reserve(inputs.get(tx), tx, priority)).collect(Collectors.toList());
+            // one pass splits the round into winners and the rest, keeping priority order in both
+            Map<Boolean, List<Transaction>> split = open.parallelStream()
+                    .collect(Collectors.partitioningBy(tx -> holdsReservations(inputs.get(tx), tx)));
+            List<Transaction> winners = split.get(true);
+            for (Transaction tx : winners) {
+                for (Entry entry : inputs.get(tx))
+                    entry.claimant.set(tx);
+            }
+            open.parallelStream().forEach(tx -> {
+                for (Entry entry : inputs.get(tx))
+                    entry.reservation.set(null);
+            });
+            chosen.addAll(winners);
+            open = split.get(false);
+        }
+        chosen.sort(priority);
+        return chosen;
+    }
+
+    /** @return the entries of the inputs of {@code tx}, or null if one is missing or repeated */
+    private Entry[] resolve(Transaction tx) {
+        ArrayList<UTXO> utxos = inputsOf(tx);
+        Entry[] resolved = new Entry[utxos.size()];
+        for (int i = 0; i < resolved.length; i++) {
+            resolved[i] = entries.get(utxos.get(i));
+            if (resolved[i] == null || contains(resolved, i, resolved[i]))
+                return null;
+        }
+        return resolved;
+    }
+
+    /**
+     * Reserves every input of {@code tx} unless one is already claimed, which rules it out for good
+     *
+     * @return false if {@code tx} can no longer be chosen
+     */
+    private static boolean reserve(Entry[] inputs, Transaction tx, Comparator<Transaction> priority) {
+        for (Entry entry : inputs) {
+            if (entry.claimant.get() != null)
+                return false;
+        }
+        for (Entry entry : inputs) {
+            Transaction current;
+            do {
+                current = entry.reservation.get();
+                if (current != null && priority.compare(current, tx) <= 0)
+                    break;
+            } while (!entry.reservation.compareAndSet(current, tx));
+        }
+        return true;
+    }
+
+    private static boolean holdsReservations(Entry[] inputs, Transaction tx) {
+        for (Entry entry : inputs) {
+            if (entry.reservation.get() != tx)
+                return false;
+        }
+        return true;
+    }
+
+    private static ArrayList<UTXO> inputsOf(Transaction tx) {
+        ArrayList<UTXO> utxos = new ArrayList<>(tx.numInputs());
+        for (Transaction.Input input : tx.getInputs())
+            utxos.add(input.getUTXO());
+        return utxos;
+    }
+
+    private static boolean contains(Entry[] entries, int length, Entry entry) {
+        for (int i = 0; i < length; i++) {
+            if (entries[i] == entry)
+                return true;
+        }
+        return false;
+    }
+
+    private static int compareHashes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return Integer.compare(a.length, b.length);
+    }
+}
@@ -0,0 +1,184 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * A counting Bloom filter over outpoints: a probabilistic set that never answers "absent" for an
+ * outpoint it holds, answers "maybe" for a configurable fraction of those it does not, and, unlike
+ * a plain Bloom filter, supports removal.
+ *
+ * Each slot is a 4-bit counter, sixteen to a {@code long}. A counter that reaches 15 sticks there
+ * and is never decremented again, so overflow can only add false positives, never false negatives.
+ * Removing an outpoint that was never added breaks that guarantee; callers remove only what they
+ * know they added.
+ *
+ * The filter is blocked: all the counters of one outpoint lie in a single 64-byte block of 128
+ * counters, so a lookup costs at most one cache miss however many hash functions there are. Blocks
+ * fill unevenly, so the filter is sized by the false-positive rate of the blocked layout, which
+ * takes more slots than an unblocked filter would, the more so the lower the rate. Lookups hash
+ * the transaction hash and index directly, without building a {@link UTXO}. Not thread-safe.
+ */
+public class CountingBloomFilter {
+
+    private static final int MAX_COUNT = 15;
+    /** Longs per block; 8 longs are one 64-byte cache line of 128 counters */
+    private static final int BLOCK_LONGS = 8;
+    private static final int BLOCK_SLOTS = BLOCK_LONGS * 16;
+    private static final int MAX_HASH_FUNCTIONS = 16;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final long[] counters;
+    private final int blocks;
+    private final int hashFunctions;
+
+    /** Sizes a filter for {@code expectedEntries} outpoints at a false-positive rate of {@code falsePositiveRate} */
+    public CountingBloomFilter(int expectedEntries, double falsePositiveRate) {
+        if (expectedEntries < 1)
+            throw new IllegalArgumentException("expectedEntries must be at least 1: " + expectedEntries);
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1: " + falsePositiveRate);
+        // start from the size of an unblocked filter and grow until the blocked layout meets the rate
+        double ln2 = Math.log(2);
+        double blockCount = Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2) / BLOCK_SLOTS);
+        int k;
+        while ((k = hashFunctionsFor(expectedEntries, blockCount, falsePositiveRate)) == 0)
+            blockCount = Math.ceil(blockCount * 1.05);
+        if (blockCount * BLOCK_LONGS > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("filter too large for " + expectedEntries + " entries");
+        this.blocks = (int) blockCount;
+        this.counters = new long[blocks * BLOCK_LONGS];
+        this.hashFunctions = k;
+    }
+
+    private CountingBloomFilter(CountingBloomFilter other) {
+        this.counters = other.counters.clone();
+        this.blocks = other.blocks;
+        this.hashFunctions = other.hashFunctions;
+    }
+
+    public CountingBloomFilter copy() {
+        return new CountingBloomFilter(this);
+    }
+
+    public long getSlots() {
+        return (long) blocks * BLOCK_SLOTS;
+    }
+
+    public int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    public long heapBytes() {
+        return 16 + counters.length * 8L;
+    }
+
+    /** @return false if output {@code index} of the transaction {@code txHash} was certainly never added */
+    public boolean mightContain(byte[] txHash, int index) {
+        long hash = hash(txHash, index);
+        int base = block(hash);
+        long probe = hash;
+        for (int i = 0; i < hashFunctions; i++) {
+            probe = nextProbe(probe, i);
+            int slot = (int) probe & (BLOCK_SLOTS - 1);
+            if ((counters[base + (slot >>> 4)] >>> ((slot & 15) << 2) & 0xF) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public boolean mightContain(UTXO utxo) {
+        return mightContain(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    public void add(UTXO utxo) {
+        update(utxo, 1);
+    }
+
+    /** Removes one occurrence of {@code utxo}, which must have been added */
+    public void remove(UTXO utxo) {
+        update(utxo, -1);
+    }
+
+    /** @return the expected false-positive rate while holding {@code entries} outpoints */
+    public double falsePositiveRate(long entries) {
+        return blockedRate(entries, blocks, hashFunctions);
+    }
+
+    /** @return the fewest hash functions that keep {@code blocks} blocks at {@code rate}, or 0 if none does */
+    private static int hashFunctionsFor(long entries, double blocks, double rate) {
+        for (int k = 1; k <= MAX_HASH_FUNCTIONS; k++) {
+            if (blockedRate(entries, blocks, k) <= rate)
+                return k;
+        }
+        return 0;
+    }
+
+    /**
+     * The false-positive rate of a blocked filter: the number of outpoints in a block is Poisson
+     * distributed, and a block holding {@code j} of them answers "maybe" like an unblocked filter
+     * of {@link #BLOCK_SLOTS} slots holding {@code j}.
+     */
+    private static double blockedRate(long entries, double blocks, int k) {
+        double mean = entries / blocks;
+        double logMean = Math.log(mean);
+        double logP = -mean;
+        double rate = 0;
+        long last = (long) (mean + 12 * Math.sqrt(mean) + 32);
+        for (long j = 0; j <= last; j++) {
+            double empty = Math.pow(1 - 1.0 / BLOCK_SLOTS, (double) k * j);
+            rate += Math.exp(logP) * Math.pow(1 - empty, k);
+            logP += logMean - Math.log(j + 1);
+        }
+        return rate;
+    }
+
+    private void update(UTXO utxo, int delta) {
+        long hash = hash(utxo.getTxHash(), utxo.getIndex());
+        int base = block(hash);
+        long probe = hash;
+        for (int i = 0; i < hashFunctions; i++) {
+            probe = nextProbe(probe, i);
+            int slot = (int) probe & (BLOCK_SLOTS - 1);
+            int word = base + (slot >>> 4);
+            int shift = (slot & 15) << 2;
+            int count = (int) (counters[word] >>> shift) & 0xF;
+            // a saturated counter no longer knows how many outpoints share it
+            if (count == MAX_COUNT || count + delta < 0)
+                continue;
+            counters[word] = counters[word] & ~(0xFL << shift) | (long) (count + delta) << shift;
+        }
+    }
+
+    /** @return the first long of the block of {@code hash} */
+    private int block(long hash) {
+        return (int) (((hash & 0xFFFFFFFFL) * blocks) >>> 32) * BLOCK_LONGS;
+    }
+
+    /** Moves the next 7 bits of {@code probe} to the bottom, remixing for fresh bits every nine draws */
+    private static long nextProbe(long probe, int i) {
+        return i % 9 == 0 ? mix(probe) : probe >>> 7;
+    }
+
+    /** A 64-bit hash of the outpoint, folding in the transaction hash eight bytes at a time */
+    private static long hash(byte[] txHash, int index) {
+        long h = 0x9E3779B97F4A7C15L * (index + 1L);
+        int i = 0;
+        for (; i + 8 <= txHash.length; i += 8)
+            h = Long.rotateLeft(h ^ (long) LONGS.get(txHash, i) * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+        long tail = txHash.length;
+        for (; i < txHash.length; i++)
+            tail = tail << 8 | (txHash[i] & 0xFF);
+        return mix(h ^ tail);
+    }
+
+    /** The MurmurHash3 64-bit finalizer */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+}
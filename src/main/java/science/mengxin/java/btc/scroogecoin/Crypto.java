@@ -5,9 +5,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.BitSet;
 
 public class Crypto {
 
+    private static final String ALGORITHM = "SHA256withRSA";
+
+    /** One verifier per thread, so {@link Signature} objects are never shared */
+    private static final ThreadLocal<Verifier> VERIFIER = ThreadLocal.withInitial(Verifier::new);
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -15,24 +21,117 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        return VERIFIER.get().verify(pubKey, message, signature);
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of the data to sign for input
+     *         {@code index} of {@code tx} under {@code pubKey}. The data is streamed into the
+     *         signature engine instead of being materialized with
+     *         {@link Transaction#getRawDataToSign(int)}.
+     */
+    public static boolean verifySignature(PublicKey pubKey, Transaction tx, int index, byte[] signature) {
+        return VERIFIER.get().verify(pubKey, tx, index, signature);
+    }
+
+    /**
+     * Verifies {@code signatures[i]} over {@code messages[i]} under {@code pubKeys[i]} for every
+     * {@code i} on the calling thread. Runs of equal keys are verified without re-initializing
+     * the signature engine, so callers should group inputs by key where they can.
+     *
+     * @return a set with bit {@code i} set iff the {@code i}th signature is valid
+     */
+    public static BitSet verifyBatch(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures) {
+        if (pubKeys.length != messages.length || pubKeys.length != signatures.length)
+            throw new IllegalArgumentException("batch arrays differ in length");
+        Verifier verifier = VERIFIER.get();
+        BitSet valid = new BitSet(pubKeys.length);
+        for (int i = 0; i < pubKeys.length; i++) {
+            if (verifier.verify(pubKeys[i], messages[i], signatures[i]))
+                valid.set(i);
         }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+        return valid;
+    }
+
+    /** @return the verifier confined to the calling thread */
+    public static Verifier verifier() {
+        return VERIFIER.get();
+    }
+
+    /**
+     * A thread-confined SHA256withRSA verifier. It keeps its {@link Signature} between calls and
+     * skips {@code initVerify} when the key is the same as in the previous call; a completed
+     * {@code verify} leaves the engine initialized for that key.
+     */
+    public static final class Verifier {
+        private final Signature sig;
+        private PublicKey key;
+
+        private Verifier() {
+            try {
+                sig = Signature.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
         }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
+
+        public boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+            if (pubKey == null || message == null || signature == null)
+                return false;
+            try {
+                init(pubKey);
+                sig.update(message);
+                return sig.verify(signature);
+            } catch (InvalidKeyException | SignatureException e) {
+                // the engine state is unspecified after a failure, re-initialize next time
+                key = null;
+                return false;
+            }
         }
-        return false;
 
+        public boolean verify(PublicKey pubKey, Transaction tx, int index, byte[] signature) {
+            if (pubKey == null || signature == null)
+                return false;
+            try {
+                init(pubKey);
+                TransactionSerializer.updateRawDataToSign(tx, index, sig);
+                return sig.verify(signature);
+            } catch (InvalidKeyException | SignatureException e) {
+                key = null;
+                return false;
+            } catch (RuntimeException e) {
+                // don't leave a partly fed message in the engine
+                key = null;
+                throw e;
+            }
+        }
+
+        /** Verifies input {@code input} of transaction {@code tx} of {@code batch} from its columns */
+        boolean verify(PublicKey pubKey, TransactionBatch batch, int tx, int input) {
+            int length = batch.signatureLength[input];
+            if (pubKey == null || length < 0)
+                return false;
+            try {
+                init(pubKey);
+                // nothing has been fed to the engine when there is no data to sign
+                if (!batch.updateRawDataToSign(tx, input, sig))
+                    return false;
+                return sig.verify(batch.signatures, batch.signatureOffset[input], length);
+            } catch (InvalidKeyException | SignatureException e) {
+                key = null;
+                return false;
+            } catch (RuntimeException e) {
+                key = null;
+                throw e;
+            }
+        }
+
+        private void init(PublicKey pubKey) throws InvalidKeyException {
+            if (pubKey != key && !pubKey.equals(key)) {
+                key = null;
+                sig.initVerify(pubKey);
+                key = pubKey;
+            }
+        }
     }
 }
@@ -0,0 +1,148 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A {@link TxHandler} that resolves in-epoch dependencies through the parent-to-child graph
+ * instead of re-running the epoch on its pending transactions.
+ *
+ * The epoch's transactions are indexed by hash. A transaction that spends an output not yet in the
+ * pool waits on that output, an edge from its parent; when the parent is accepted, the children
+ * waiting on its outputs are examined in the next round. Rounds keep the acceptance rules of
+ * {@link TxHandler}: every transaction is judged against the pool as it stood at the start of the
+ * round, the round accepts valid transactions in array order unless they spend an output already
+ * claimed in that round, and processing ends when a round accepts nothing. The result, including
+ * its order, is therefore the same. Each input signature is checked at most once per epoch,
+ * because a waiting transaction resumes at the input it stopped on, and only the transactions a
+ * round woke up are examined in the next.
+ */
+public class DagTxHandler extends TxHandler {
+
+    public DagTxHandler(UTXOPool utxoPool) {
+        super(utxoPool);
+    }
+
+    public DagTxHandler(UTXOPool utxoPool, ForkJoinPool forkJoinPool) {
+        super(utxoPool, forkJoinPool);
+    }
+
+    @Override
+    Transaction[] handleEpoch(Transaction[] possibleTxs, UTXOPool ledger) {
+        return new Epoch(possibleTxs, ledger).run();
+    }
+
+    /** Per-epoch state, indexed by position in the proposed array */
+    private final class Epoch {
+        final Transaction[] txs;
+        final UTXOPool ledger;
+
+        /** Hashes of the epoch's transactions, the only outputs a waiting input can get */
+        final HashSet<ByteBuffer> hashes = new HashSet<>();
+
+        /** Transactions waiting on each output that is not in the pool yet */
+        final HashMap<UTXO, ArrayList<Integer>> waiting = new HashMap<>();
+
+        /** First input not yet found in the pool, and the value of the inputs before it */
+        final int[] resumeAt;
+        final double[] inputValue;
+
+        Epoch(Transaction[] txs, UTXOPool ledger) {
+            this.txs = txs;
+            this.ledger = ledger;
+            this.resumeAt = new int[txs.length];
+            this.inputValue = new double[txs.length];
+            for (Transaction tx : txs) {
+                if (tx.getHash() != null)
+                    hashes.add(ByteBuffer.wrap(tx.getHash()));
+            }
+        }
+
+        Transaction[] run() {
+            ArrayList<Transaction> accepted = new ArrayList<>();
+            BitSet round = new BitSet(txs.length);
+            round.set(0, txs.length);
+            while (!round.isEmpty()) {
+                ArrayList<Transaction> acceptedInRound = new ArrayList<>();
+                ClaimIndex<Transaction> claims = new ClaimIndex<>();
+                for (int i = round.nextSetBit(0); i >= 0; i = round.nextSetBit(i + 1)) {
+                    if (examine(i) == ThreeState.TRUE && claims.tryClaim(txs[i], ClaimIndex.inputsOf(txs[i])))
+                        acceptedInRound.add(txs[i]);
+                }
+
+                // apply the round, waking the children of what it accepted
+                round.clear();
+                for (Transaction tx : acceptedInRound) {
+                    for (Transaction.Input input : tx.getInputs())
+                        ledger.removeUTXO(input.getUTXO());
+                    for (int o = 0; o < tx.numOutputs(); o++) {
+                        UTXO utxo = new UTXO(tx.getTxId(), o);
+                        ledger.addUTXO(utxo, tx.getOutput(o));
+                        ArrayList<Integer> children = waiting.remove(utxo);
+                        if (children != null) {
+                            for (int child : children)
+                                round.set(child);
+                        }
+                    }
+                }
+                accepted.addAll(acceptedInRound);
+            }
+            return accepted.toArray(new Transaction[0]);
+        }
+
+        /**
+         * Classifies {@code txs[i]} like {@link TxHandler#isValidTxV2}, continuing from the input
+         * it stopped on last time. MAYBE means it now waits on an output; a transaction that can
+         * never be accepted is reported FALSE.
+         */
+        ThreeState examine(int i) {
+            Transaction tx = txs[i];
+            int numInputs = tx.numInputs();
+            int resume = resumeAt[i];
+            // inputs found earlier may have been spent since, which rules the transaction out
+            for (int in = 0; in < resume; in++) {
+                Transaction.Input input = tx.getInput(in);
+                if (!ledger.contains(input.prevTxHash, input.outputIndex))
+                    return ThreeState.FALSE;
+            }
+            for (int in = resume; in < numInputs; in++) {
+                Transaction.Input input = tx.getInput(in);
+                UTXO utxo = input.getUTXO();
+                if (!ledger.contains(utxo)) {
+                    resumeAt[i] = in;
+                    return waitFor(utxo, i);
+                }
+                Transaction.Output prev = ledger.getTxOutput(utxo);
+                if (input.signature == null || !verifyInputSignature(tx, in, prev.address))
+                    return ThreeState.FALSE;
+                inputValue[i] += prev.value;
+            }
+            resumeAt[i] = numInputs;
+
+            HashSet<UTXO> distinct = new HashSet<>();
+            for (Transaction.Input input : tx.getInputs())
+                distinct.add(input.getUTXO());
+            if (distinct.size() != numInputs)
+                return ThreeState.FALSE;
+            double outputValue = 0;
+            for (Transaction.Output output : tx.getOutputs()) {
+                outputValue += output.value;
+                if (output.value < 0)
+                    return ThreeState.FALSE;
+            }
+            return inputValue[i] < outputValue ? ThreeState.FALSE : ThreeState.TRUE;
+        }
+
+        private ThreeState waitFor(UTXO utxo, int i) {
+            // an output no transaction of this epoch creates can never appear
+            if (!hashes.contains(ByteBuffer.wrap(utxo.getTxHash())))
+                return ThreeState.FALSE;
+            waiting.computeIfAbsent(utxo, k -> new ArrayList<>()).add(i);
+            return ThreeState.MAYBE;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs a {@link TxHandler} as a two-stage pipeline: while one epoch is applied to the pool, the
+ * next ones already get their stateless checks and signature verification on a
+ * {@link ForkJoinPool}.
+ *
+ * The first stage drops transactions that can never be valid whatever the pool holds (a negative
+ * output, a missing signature or an input spent twice) and verifies the remaining signatures into
+ * the handler's {@link SignatureCache}. It resolves spent outputs against the pool left by the last
+ * applied epoch plus the outputs of the epoch submitted just before. The second stage runs
+ * {@link TxHandler#handleTxs} on a single thread, in submission order, so only the pool-dependent
+ * checks wait for the previous commit. The accepted transactions are the same as with sequential
+ * {@code handleTxs} calls.
+ *
+ * Handlers publish a new pool once at the end of each epoch, so the first stage reads the last
+ * published pool without locking. A backend that applies epochs in place, such as
+ * {@link MappedUTXOPool}, publishes itself, and the first stage may then see part of the epoch
+ * being applied; that only changes which signatures are verified ahead of time, since the second
+ * stage checks every input against the pool again. The handler and its pool must not be used other
+ * than through the pipeline until it is closed.
+ */
+public class EpochPipeline implements AutoCloseable {
+
+    private final TxHandler handler;
+    private final ParallelSignatureVerifier verifier;
+    private final SignatureCache cache;
+    private final ExecutorService applier = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "epoch-apply");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Pool left by the last applied epoch */
+    private volatile UTXOPool published;
+
+    /** Completes when the last submitted epoch has been applied */
+    private CompletableFuture<Transaction[]> tail = CompletableFuture.completedFuture(new Transaction[0]);
+    private Transaction[] previous = new Transaction[0];
+
+    /**
+     * Creates a pipeline applying epochs with {@code handler} and verifying signatures on
+     * {@code forkJoinPool}. A handler without a signature cache is given one, since the cache is
+     * what carries the first stage's results to the second.
+     */
+    public EpochPipeline(TxHandler handler, ForkJoinPool forkJoinPool) {
+        if (handler.getSignatureCache() == null)
+            handler.setSignatureCache(new SignatureCache(TxHandler.DEFAULT_SIGNATURE_CACHE_SIZE));
+        this.handler = handler;
+        this.verifier = new ParallelSignatureVerifier(forkJoinPool);
+        this.cache = handler.getSignatureCache();
+        this.published = handler.getPool();
+    }
+
+    /**
+     * Queues {@code possibleTxs} as the next epoch. Its first stage starts at once; it is applied
+     * after every epoch submitted before it, even one that failed.
+     *
+     * @return the transactions {@code handleTxs} accepted for the epoch
+     */
+    public synchronized CompletableFuture<Transaction[]> submit(Transaction[] possibleTxs) {
+        Transaction[] epoch = possibleTxs.clone();
+        Transaction[] parents = previous;
+        previous = epoch;
+        CompletableFuture<Transaction[]> checked =
+                CompletableFuture.supplyAsync(() -> check(epoch, parents), verifier.getForkJoinPool());
+        tail = tail.handle((accepted, failure) -> null)
+                .thenCombineAsync(checked, (ignored, txs) -> apply(txs), applier);
+        return tail;
+    }
+
+    public TxHandler getHandler() {
+        return handler;
+    }
+
+    /** Waits for the submitted epochs to be applied and stops the apply thread */
+    @Override
+    public void close() {
+        CompletableFuture<Transaction[]> last;
+        synchronized (this) {
+            last = tail;
+        }
+        last.handle((accepted, failure) -> null).join();
+        applier.shutdown();
+    }
+
+    private Transaction[] check(Transaction[] epoch, Transaction[] parents) {
+        ArrayList<Transaction> kept = new ArrayList<>(epoch.length);
+        for (Transaction tx : epoch) {
+            if (mayBeValid(tx))
+                kept.add(tx);
+        }
+        Transaction[] txs = kept.toArray(new Transaction[0]);
+        verifier.verify(txs, parents, published, cache);
+        return txs;
+    }
+
+    private Transaction[] apply(Transaction[] txs) {
+        Transaction[] accepted = handler.handleTxs(txs);
+        published = handler.getPool();
+        return accepted;
+    }
+
+    /** @return false if {@code tx} fails a check of {@link TxHandler#validate} that needs no pool */
+    private static boolean mayBeValid(Transaction tx) {
+        HashSet<UTXO> inputs = new HashSet<>();
+        for (Transaction.Input input : tx.getInputs()) {
+            if (input.signature == null || !inputs.add(input.getUTXO()))
+                return false;
+        }
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,211 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * A {@link UTXOPool} that puts a {@link CountingBloomFilter} in front of another backend, so
+ * lookups of outpoints that are not in the pool, which is what most invalid and every orphan
+ * transaction spends, are answered from the filter without probing the backend. Hits and the small
+ * fraction of false positives fall through to the backend. This matters most when the backend is
+ * on disk, such as {@link MappedUTXOPool}.
+ *
+ * Changes go to the backend. Adding or removing first checks whether the outpoint is already
+ * there, and the backend must not be changed other than through this pool. Not thread-safe,
+ * whatever the backend.
+ *
+ * Copies and epochs share the filter instead of cloning it, so they cost what the backend's own
+ * copy or epoch costs. Each pool keeps the outpoints it added that the shared filter does not
+ * count yet in a small set of its own, which {@link #endEpoch} folds into the filter. A filter only
+ * ever gains entries while it is shared, since older ledgers and copies may still hold what a newer
+ * pool removed; removals are counted as stale instead. Once the live and stale entries together
+ * exceed what the filter was sized for, the pool rebuilds a new filter from the backend at twice
+ * its size, which keeps the false-positive rate near the configured one as the pool grows and
+ * churns. Folding only raises counters, so an older ledger read on another thread while a newer one
+ * ends its epoch may see extra false positives, never a false negative.
+ */
+public class FilteredUTXOPool extends UTXOPool {
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private final UTXOPool base;
+    private final double falsePositiveRate;
+    private CountingBloomFilter filter;
+    /** The number of UTXOs {@link #filter} is sized for */
+    private int expectedEntries;
+    /** Outpoints in the pool that {@link #filter} does not count */
+    private final HashSet<UTXO> added;
+    /** Outpoints {@link #filter} counts that the pool no longer holds */
+    private int staleEntries;
+
+    /** Wraps {@code base} with a filter sized for its current size at the default false-positive rate */
+    public FilteredUTXOPool(UTXOPool base) {
+        this(base, Math.max(1024, base.size() * 2), DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Wraps {@code base} with a filter that keeps a false-positive rate of about
+     * {@code falsePositiveRate} up to {@code expectedEntries} UTXOs. Beyond that the filter is
+     * rebuilt for a larger pool.
+     */
+    public FilteredUTXOPool(UTXOPool base, int expectedEntries, double falsePositiveRate) {
+        this.base = base;
+        this.falsePositiveRate = falsePositiveRate;
+        this.added = new HashSet<>();
+        rebuild(Math.max(expectedEntries, base.size()));
+    }
+
+    /** Creates a pool over {@code base} sharing the filter of {@code other} and copying its pending state */
+    private FilteredUTXOPool(FilteredUTXOPool other, UTXOPool base) {
+        this.base = base;
+        this.falsePositiveRate = other.falsePositiveRate;
+        this.filter = other.filter;
+        this.expectedEntries = other.expectedEntries;
+        this.added = new HashSet<>(other.added);
+        this.staleEntries = other.staleEntries;
+    }
+
+    public UTXOPool getBase() {
+        return base;
+    }
+
+    /** @return the filter, which copies and epochs of this pool may share; do not modify */
+    public CountingBloomFilter getFilter() {
+        return filter;
+    }
+
+    /** @return the number of UTXOs the current filter keeps the configured false-positive rate for */
+    public int getExpectedEntries() {
+        return expectedEntries;
+    }
+
+    @Override
+    public FilteredUTXOPool copy() {
+        return new FilteredUTXOPool(this, base.copy());
+    }
+
+    /** Starts the epoch on the backend's own epoch pool, sharing the filter */
+    @Override
+    public FilteredUTXOPool beginEpoch() {
+        return new FilteredUTXOPool(this, base.beginEpoch());
+    }
+
+    /** Ends the epoch on the backend and folds the outpoints the epoch added into the shared filter */
+    @Override
+    public FilteredUTXOPool endEpoch(UTXOPool epoch) {
+        FilteredUTXOPool applied = (FilteredUTXOPool) epoch;
+        FilteredUTXOPool ledger = new FilteredUTXOPool(applied, base.endEpoch(applied.base));
+        // the filter is the shared one, or a new one if the epoch outgrew it and rebuilt
+        for (UTXO ut : ledger.added)
+            ledger.filter.add(ut);
+        ledger.added.clear();
+        return ledger;
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        boolean isNew = !contains(utxo);
+        base.addUTXO(utxo, txOut);
+        if (isNew) {
+            added.add(utxo);
+            growIfFull();
+        }
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        if (contains(utxo)) {
+            base.removeUTXO(utxo);
+            forget(utxo);
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return mightContain(ut) ? base.getTxOutput(ut) : null;
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return mightContain(utxo) && base.contains(utxo);
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return mightContain(txHash, index) ? base.getTxOutput(txHash, index) : null;
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return mightContain(txHash, index) && base.contains(txHash, index);
+    }
+
+    @Override
+    public int size() {
+        return base.size();
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        return base.estimatedHeapBytes() + filter.heapBytes() + added.size() * UTXOPool.ENTRY_HEAP_BYTES;
+    }
+
+    /** Applies the epoch with one {@link UTXOPool#applyUpdates} call on the backend */
+    @Override
+    public void applyUpdates(Collection<UTXO> spent, Map<UTXO, Transaction.Output> created) {
+        HashSet<UTXO> removed = new HashSet<>();
+        for (UTXO ut : spent) {
+            if (contains(ut))
+                removed.add(ut);
+        }
+        ArrayList<UTXO> fresh = new ArrayList<>(created.size());
+        for (UTXO ut : created.keySet()) {
+            if (removed.contains(ut) || !contains(ut))
+                fresh.add(ut);
+        }
+        base.applyUpdates(spent, created);
+        for (UTXO ut : removed)
+            forget(ut);
+        added.addAll(fresh);
+        growIfFull();
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        return base.getAllUTXO();
+    }
+
+    private boolean mightContain(UTXO ut) {
+        return filter.mightContain(ut) || (!added.isEmpty() && added.contains(ut));
+    }
+
+    private boolean mightContain(byte[] txHash, int index) {
+        return filter.mightContain(txHash, index) || (!added.isEmpty() && added.contains(new UTXO(txHash, index)));
+    }
+
+    /** Records that the pool no longer holds {@code ut} */
+    private void forget(UTXO ut) {
+        if (!added.remove(ut))
+            staleEntries++;
+    }
+
+    /** Rebuilds the filter at twice the pool's size once its live and stale entries outgrow it */
+    private void growIfFull() {
+        int size = base.size();
+        if ((long) size + staleEntries > expectedEntries)
+            rebuild((int) Math.min(Integer.MAX_VALUE, Math.max(1024, size * 2L)));
+    }
+
+    /** Replaces the filter with a new one, leaving the old one to the pools that share it */
+    private void rebuild(int entries) {
+        CountingBloomFilter rebuilt = new CountingBloomFilter(Math.max(1, entries), falsePositiveRate);
+        for (UTXO ut : base.getAllUTXO())
+            rebuilt.add(ut);
+        filter = rebuilt;
+        expectedEntries = Math.max(1, entries);
+        added.clear();
+        staleEntries = 0;
+    }
+}
@@ -0,0 +1,245 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a transaction handler and its pool, cheap enough to leave
+ * enabled: counters are {@link LongAdder}s, and handlers without metrics skip the timing calls.
+ *
+ * Rejections are counted per epoch, after the handler has decided, by checking each rejected
+ * transaction against the resulting pool without verifying signatures. Each one is charged to the
+ * first rule that rules it out, in this order: {@link RejectReason#DOUBLE_CLAIM} (an input also
+ * spent by the transaction itself or by an accepted one), {@link RejectReason#MISSING_INPUT},
+ * {@link RejectReason#NEGATIVE_OUTPUT} and {@link RejectReason#OVERSPEND}. A transaction that breaks
+ * none of these was rejected for its signature. Transactions that are carried over as orphans count
+ * as missing an input in every epoch they do not get in.
+ *
+ * One instance may be shared by several handlers; the pool gauges then show whichever finished an
+ * epoch last.
+ */
+public class HandlerMetrics implements HandlerMetricsMBean {
+
+    private static final double NANOS_PER_MICRO = 1e3;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final String name;
+    private final LongAdder epochs = new LongAdder();
+    private final LongAdder proposed = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder[] rejected = new LongAdder[RejectReason.values().length];
+
+    /** Single signature checks made by the handler itself */
+    private final LatencyHistogram signatureLatency = new LatencyHistogram();
+    /** Parallel signature pre-passes, one per epoch when enabled */
+    private final LatencyHistogram verificationLatency = new LatencyHistogram();
+    /** Validation against the pool and pool updates, one per epoch */
+    private final LatencyHistogram applyLatency = new LatencyHistogram();
+    /** Whole epochs */
+    private final LatencyHistogram epochLatency = new LatencyHistogram();
+
+    private volatile long poolSize;
+    private volatile long poolHeapBytes;
+
+    /** @param name identifies the handler in the JMX object name and the Prometheus labels */
+    public HandlerMetrics(String name) {
+        this.name = name;
+        for (int i = 0; i < rejected.length; i++)
+            rejected[i] = new LongAdder();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void recordSignature(long nanos) {
+        signatureLatency.record(nanos);
+    }
+
+    void recordVerification(long nanos) {
+        verificationLatency.record(nanos);
+    }
+
+    void recordApply(long nanos) {
+        applyLatency.record(nanos);
+    }
+
+    /**
+     * Records an epoch that accepted {@code acceptedTxs} out of {@code proposedTxs}, leaving
+     * {@code pool}, in {@code nanos}
+     */
+    void recordEpoch(Transaction[] proposedTxs, Transaction[] acceptedTxs, UTXOPool pool, long nanos) {
+        epochs.increment();
+        proposed.add(proposedTxs.length);
+        accepted.add(acceptedTxs.length);
+        if (acceptedTxs.length < proposedTxs.length) {
+            Set<Transaction> done = Collections.newSetFromMap(new IdentityHashMap<>());
+            HashSet<UTXO> spent = new HashSet<>();
+            for (Transaction tx : acceptedTxs) {
+                done.add(tx);
+                for (Transaction.Input input : tx.getInputs())
+                    spent.add(input.getUTXO());
+            }
+            for (Transaction tx : proposedTxs) {
+                if (done.add(tx))
+                    rejected[reasonOf(tx, pool, spent).ordinal()].increment();
+            }
+        }
+        epochLatency.record(nanos);
+        poolSize = pool.size();
+        poolHeapBytes = pool.estimatedHeapBytes();
+    }
+
+    private static RejectReason reasonOf(Transaction tx, UTXOPool pool, HashSet<UTXO> spent) {
+        HashSet<UTXO> inputs = new HashSet<>();
+        boolean missing = false;
+        double inputValue = 0;
+        for (Transaction.Input input : tx.getInputs()) {
+            UTXO utxo = input.getUTXO();
+            if (!inputs.add(utxo) || spent.contains(utxo))
+                return RejectReason.DOUBLE_CLAIM;
+            Transaction.Output prev = pool.getTxOutput(utxo);
+            if (prev == null)
+                missing = true;
+            else
+                inputValue += prev.value;
+        }
+        if (missing)
+            return RejectReason.MISSING_INPUT;
+        double outputValue = 0;
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0)
+                return RejectReason.NEGATIVE_OUTPUT;
+            outputValue += output.value;
+        }
+        return inputValue < outputValue ? RejectReason.OVERSPEND : RejectReason.BAD_SIGNATURE;
+    }
+
+    public long getRejected(RejectReason reason) {
+        return rejected[reason.ordinal()].sum();
+    }
+
+    public LatencyHistogram getSignatureLatency() {
+        return signatureLatency;
+    }
+
+    public LatencyHistogram getVerificationLatency() {
+        return verificationLatency;
+    }
+
+    public LatencyHistogram getApplyLatency() {
+        return applyLatency;
+    }
+
+    public LatencyHistogram getEpochLatency() {
+        return epochLatency;
+    }
+
+    /** @return the object name {@link #register} uses */
+    public ObjectName objectName() throws JMException {
+        return new ObjectName("science.mengxin.scroogecoin:type=TxHandler,name=" + ObjectName.quote(name));
+    }
+
+    /** Registers these metrics with the platform MBean server */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName());
+    }
+
+    public void unregister() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName()))
+            server.unregisterMBean(objectName());
+    }
+
+    @Override
+    public long getEpochs() {
+        return epochs.sum();
+    }
+
+    @Override
+    public long getProposed() {
+        return proposed.sum();
+    }
+
+    @Override
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRejectedMissingInput() {
+        return getRejected(RejectReason.MISSING_INPUT);
+    }
+
+    @Override
+    public long getRejectedBadSignature() {
+        return getRejected(RejectReason.BAD_SIGNATURE);
+    }
+
+    @Override
+    public long getRejectedDoubleClaim() {
+        return getRejected(RejectReason.DOUBLE_CLAIM);
+    }
+
+    @Override
+    public long getRejectedNegativeOutput() {
+        return getRejected(RejectReason.NEGATIVE_OUTPUT);
+    }
+
+    @Override
+    public long getRejectedOverspend() {
+        return getRejected(RejectReason.OVERSPEND);
+    }
+
+    @Override
+    public long getPoolSize() {
+        return poolSize;
+    }
+
+    @Override
+    public long getPoolHeapBytes() {
+        return poolHeapBytes;
+    }
+
+    @Override
+    public long getSignatureVerifications() {
+        return signatureLatency.count();
+    }
+
+    @Override
+    public double getSignatureMeanMicros() {
+        return signatureLatency.meanNanos() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getSignatureP99Micros() {
+        return signatureLatency.percentileNanos(0.99) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getVerificationMillis() {
+        return verificationLatency.sumNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getApplyMillis() {
+        return applyLatency.sumNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getEpochMeanMillis() {
+        return epochLatency.meanNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getEpochP99Millis() {
+        return epochLatency.percentileNanos(0.99) / NANOS_PER_MILLI;
+    }
+}
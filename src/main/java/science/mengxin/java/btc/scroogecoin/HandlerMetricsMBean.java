@@ -0,0 +1,39 @@
+package science.mengxin.java.btc.scroogecoin;
+
+/** JMX view of {@link HandlerMetrics}; durations are in milliseconds unless named otherwise */
+public interface HandlerMetricsMBean {
+
+    long getEpochs();
+
+    long getProposed();
+
+    long getAccepted();
+
+    long getRejectedMissingInput();
+
+    long getRejectedBadSignature();
+
+    long getRejectedDoubleClaim();
+
+    long getRejectedNegativeOutput();
+
+    long getRejectedOverspend();
+
+    long getPoolSize();
+
+    long getPoolHeapBytes();
+
+    long getSignatureVerifications();
+
+    double getSignatureMeanMicros();
+
+    double getSignatureP99Micros();
+
+    double getVerificationMillis();
+
+    double getApplyMillis();
+
+    double getEpochMeanMillis();
+
+    double getEpochP99Millis();
+}
@@ -0,0 +1,79 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in power-of-two nanosecond buckets, from 1 microsecond up to about 18
+ * minutes plus an overflow bucket, with one {@link LongAdder} per bucket so concurrent recording
+ * does not contend. Percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets, the last one unbounded */
+    public static final int BUCKETS = 32;
+    private static final int FIRST_BOUND_SHIFT = 10;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        int bucket = nanos <= 1L << FIRST_BOUND_SHIFT ? 0
+                : 64 - Long.numberOfLeadingZeros(nanos - 1) - FIRST_BOUND_SHIFT;
+        counts[Math.min(bucket, BUCKETS - 1)].increment();
+        sum.add(nanos);
+    }
+
+    /** @return the inclusive upper bound of bucket {@code i}, or {@link Long#MAX_VALUE} for the last one */
+    public static long upperBoundNanos(int i) {
+        return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << (FIRST_BOUND_SHIFT + i);
+    }
+
+    public long bucketCount(int i) {
+        return counts[i].sum();
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder c : counts)
+            count += c.sum();
+        return count;
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    /** @return the mean duration, or 0 if nothing was recorded */
+    public double meanNanos() {
+        long count = count();
+        return count == 0 ? 0 : (double) sumNanos() / count;
+    }
+
+    /**
+     * @return an upper bound of the {@code quantile} (between 0 and 1) of the recorded durations,
+     *         or 0 if nothing was recorded
+     */
+    public long percentileNanos(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0)
+                return upperBoundNanos(i);
+        }
+        return upperBoundNanos(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,528 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link UTXOPool} kept off-heap in a memory-mapped file, so the UTXO set does not count
+ * against the Java heap or the garbage collector.
+ *
+ * The file holds a header, a fixed-size hash slot table and an append region. Each slot is the
+ * position of a record plus the key's 32-bit hash; slots use linear probing with backward-shift
+ * deletion. A record holds the tx hash, output index, value and encoded address of one UTXO.
+ * Removing or replacing a UTXO only marks its record dead; once dead records make up
+ * {@link #COMPACTION_RATIO} of the region, a background thread slides the live records down in
+ * short batches that interleave with normal use, and later records are appended over the reclaimed
+ * space.
+ *
+ * The append region is mapped in fixed-size chunks and records never straddle a chunk. All
+ * operations are synchronized on the pool. {@link #getTxOutput} builds a new
+ * {@link Transaction.Output} per call, with addresses shared through a {@link PublicKeyCache}.
+ *
+ * Handlers do not copy this pool each epoch, which {@link #copy} would do into the heap: an epoch
+ * runs over a {@link UTXOPoolOverlay} from {@link #beginEpoch}, and {@link #endEpoch} commits it to
+ * the file in one {@link #applyUpdates} call and keeps this pool as the ledger. A lookup from
+ * another thread sees all of a committed epoch or none of it, but a reader making several lookups
+ * may make some before the commit and some after.
+ */
+public class MappedUTXOPool extends UTXOPool implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+    /** Fraction of the append region that may be dead before compaction starts */
+    public static final double COMPACTION_RATIO = 0.5;
+    /** Don't bother compacting below this many dead bytes */
+    private static final long MIN_COMPACTION_BYTES = 1 << 20;
+    /** Records moved per lock hold while compacting */
+    private static final int COMPACTION_BATCH = 1024;
+
+    private static final int MAGIC = 0x5554584F; // "UTXO"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 12;
+    private static final double MAX_LOAD = 0.9;
+
+    /** Record header: length, flags, output index, value, hash length, address length */
+    private static final int RECORD_FIXED = 4 + 1 + 4 + 8 + 4 + 4;
+    private static final byte LIVE = 1;
+    private static final byte NULL_OUTPUT = 2;
+    private static final byte NULL_ADDRESS = 4;
+
+    private static final Transaction OUTER = new Transaction();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer slots;
+    private final ArrayList<MappedByteBuffer> chunks = new ArrayList<>();
+    private final int slotCount;
+    private final int mask;
+    private final int chunkSize;
+    private final long dataStart;
+    private final PublicKeyCache keyCache = new PublicKeyCache();
+    private final ExecutorService compactor;
+
+    private long appendPos;
+    private int live;
+    private long liveBytes;
+    private boolean compacting;
+
+    /** Opens or creates a pool file with {@code slotCount} slots, rounded up to a power of two */
+    public MappedUTXOPool(Path file, int slotCount) throws IOException {
+        this(file, slotCount, DEFAULT_CHUNK_SIZE);
+    }
+
+    public MappedUTXOPool(Path file, int slotCount, int chunkSize) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        boolean fresh = channel.size() == 0;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (fresh) {
+            slotCount = Integer.highestOneBit(Math.max(slotCount, 16) - 1) << 1;
+            if ((long) slotCount * SLOT_SIZE > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("too many slots: " + slotCount);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, slotCount);
+            header.putInt(12, chunkSize);
+        } else {
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException(file + " is not a UTXO pool file");
+            slotCount = header.getInt(8);
+            chunkSize = header.getInt(12);
+        }
+        this.slotCount = slotCount;
+        this.mask = slotCount - 1;
+        this.chunkSize = chunkSize;
+        this.slots = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, (long) slotCount * SLOT_SIZE);
+        long start = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+        this.dataStart = (start + 7) & ~7L;
+        if (fresh) {
+            appendPos = 0;
+            writeHeader();
+        } else {
+            appendPos = header.getLong(16);
+            live = header.getInt(24);
+            liveBytes = header.getLong(32);
+        }
+        while ((long) chunks.size() * chunkSize < appendPos)
+            mapChunk();
+        compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "utxo-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public synchronized void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        byte[] hash = utxo.getTxHash();
+        int h = hash(hash, utxo.getIndex());
+        int slot = find(hash, utxo.getIndex(), h);
+        if (slot >= 0) {
+            kill(slotPos(slot));
+        } else {
+            if (live + 1 > slotCount * MAX_LOAD)
+                throw new IllegalStateException("UTXO slot table is full (" + slotCount + " slots)");
+            slot = h & mask;
+            while (slotPos(slot) != 0)
+                slot = (slot + 1) & mask;
+            slots.putInt(slot * SLOT_SIZE + 8, h);
+            live++;
+        }
+        slots.putLong(slot * SLOT_SIZE, append(hash, utxo.getIndex(), txOut));
+        writeHeader();
+        maybeCompact();
+    }
+
+    /** @return an overlay recording the epoch's changes over this pool, which stays unchanged */
+    @Override
+    public UTXOPoolOverlay beginEpoch() {
+        return new UTXOPoolOverlay(this);
+    }
+
+    /** Commits {@code epoch}, an overlay from {@link #beginEpoch}, to the file */
+    @Override
+    public MappedUTXOPool endEpoch(UTXOPool epoch) {
+        ((UTXOPoolOverlay) epoch).commit();
+        return this;
+    }
+
+    /** Applies the epoch under one lock hold, so no lookup sees part of it */
+    @Override
+    public synchronized void applyUpdates(Collection<UTXO> spent, Map<UTXO, Transaction.Output> created) {
+        super.applyUpdates(spent, created);
+    }
+
+    @Override
+    public synchronized void removeUTXO(UTXO utxo) {
+        int slot = find(utxo.getTxHash(), utxo.getIndex(), hash(utxo.getTxHash(), utxo.getIndex()));
+        if (slot < 0)
+            return;
+        kill(slotPos(slot));
+        deleteSlot(slot);
+        live--;
+        writeHeader();
+        maybeCompact();
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return getTxOutput(ut.getTxHash(), ut.getIndex());
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public synchronized Transaction.Output getTxOutput(byte[] txHash, int index) {
+        int slot = find(txHash, index, hash(txHash, index));
+        return slot < 0 ? null : readOutput(slotPos(slot));
+    }
+
+    @Override
+    public synchronized boolean contains(byte[] txHash, int index) {
+        return find(txHash, index, hash(txHash, index)) >= 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        return live;
+    }
+
+    /** The UTXOs live in the mapped file, off-heap */
+    @Override
+    public long estimatedHeapBytes() {
+        return 0;
+    }
+
+    @Override
+    public synchronized ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> all = new ArrayList<>(live);
+        for (int slot = 0; slot < slotCount; slot++) {
+            long pos = slotPos(slot);
+            if (pos == 0)
+                continue;
+            ByteBuffer chunk = chunk(pos);
+            int at = offset(pos);
+            byte[] hash = new byte[chunk.getInt(at + 17)];
+            for (int i = 0; i < hash.length; i++)
+                hash[i] = chunk.get(at + RECORD_FIXED + i);
+            all.add(new UTXO(hash, chunk.getInt(at + 5)));
+        }
+        return all;
+    }
+
+    /** @return the number of bytes held by dead records and padding */
+    public synchronized long deadBytes() {
+        return appendPos - liveBytes;
+    }
+
+    /** Forces all changes to the file */
+    public synchronized void flush() {
+        header.force();
+        slots.force();
+        for (MappedByteBuffer chunk : chunks)
+            chunk.force();
+    }
+
+    /** Waits for a running compaction, then flushes and closes the file */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Compacts the append region on the calling thread, unless a compaction is already running.
+     * The pool stays usable from other threads meanwhile, since the lock is released between
+     * batches.
+     */
+    public void compact() {
+        synchronized (this) {
+            if (compacting)
+                return;
+            compacting = true;
+        }
+        runCompaction();
+    }
+
+    private void runCompaction() {
+        long scan = 0;
+        long write = 0;
+        try {
+            while (true) {
+                synchronized (this) {
+                    for (int moved = 0; moved < COMPACTION_BATCH; moved++) {
+                        scan = skipPadding(scan);
+                        if (scan >= appendPos) {
+                            appendPos = write;
+                            writeHeader();
+                            return;
+                        }
+                        ByteBuffer from = chunk(scan + 1);
+                        int at = offset(scan + 1);
+                        int length = from.getInt(at);
+                        if ((from.get(at + 4) & LIVE) != 0) {
+                            write = placement(write, length);
+                            if (write != scan)
+                                move(scan, write, length);
+                            write += length;
+                        }
+                        scan += length;
+                    }
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            // the records between write and scan were moved away or dead; let later scans skip them
+            synchronized (this) {
+                fillGap(write, scan);
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /** Marks {@code [from, to)} of the append region as a dead record, or padding at a chunk end */
+    private void fillGap(long from, long to) {
+        while (from < to) {
+            long chunkEnd = from - from % chunkSize + chunkSize;
+            ByteBuffer chunk = chunk(from + 1);
+            int at = offset(from + 1);
+            if (to >= chunkEnd) {
+                if (chunkEnd - from >= 4)
+                    chunk.putInt(at, 0);
+                from = chunkEnd;
+            } else {
+                chunk.putInt(at, (int) (to - from));
+                chunk.put(at + 4, (byte) 0);
+                from = to;
+            }
+        }
+    }
+
+    private void maybeCompact() {
+        long dead = appendPos - liveBytes;
+        if (!compacting && dead > MIN_COMPACTION_BYTES && dead > appendPos * COMPACTION_RATIO) {
+            compacting = true;
+            compactor.execute(this::runCompaction);
+        }
+    }
+
+    /** Moves the live record at {@code from} down to {@code to} and repoints its slot */
+    private void move(long from, long to, int length) {
+        // look the slot up first, the copy may overwrite the source
+        int slot = slotOf(from + 1);
+        ByteBuffer src = chunk(from + 1);
+        int at = offset(from + 1);
+        byte[] record = new byte[length];
+        for (int i = 0; i < length; i++)
+            record[i] = src.get(at + i);
+        ByteBuffer dst = chunk(to + 1);
+        int dstAt = offset(to + 1);
+        for (int i = 0; i < length; i++)
+            dst.put(dstAt + i, record[i]);
+        slots.putLong(slot * SLOT_SIZE, to + 1);
+    }
+
+    /** @return the slot pointing at the record at {@code pos} */
+    private int slotOf(long pos) {
+        ByteBuffer chunk = chunk(pos);
+        int at = offset(pos);
+        byte[] hash = new byte[chunk.getInt(at + 17)];
+        for (int i = 0; i < hash.length; i++)
+            hash[i] = chunk.get(at + RECORD_FIXED + i);
+        int slot = hash(hash, chunk.getInt(at + 5)) & mask;
+        while (slotPos(slot) != pos)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /** @return the slot of output {@code index} of {@code txHash}, or -1 */
+    private int find(byte[] txHash, int index, int h) {
+        int slot = h & mask;
+        long pos;
+        while ((pos = slotPos(slot)) != 0) {
+            if (slots.getInt(slot * SLOT_SIZE + 8) == h && keyMatches(pos, txHash, index))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean keyMatches(long pos, byte[] txHash, int index) {
+        ByteBuffer chunk = chunk(pos);
+        int at = offset(pos);
+        if (chunk.getInt(at + 5) != index || chunk.getInt(at + 17) != txHash.length)
+            return false;
+        for (int i = 0; i < txHash.length; i++) {
+            if (chunk.get(at + RECORD_FIXED + i) != txHash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void deleteSlot(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long pos = slotPos(slot);
+            if (pos == 0)
+                break;
+            int home = slots.getInt(slot * SLOT_SIZE + 8) & mask;
+            boolean stays = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if (stays)
+                continue;
+            slots.putLong(hole * SLOT_SIZE, pos);
+            slots.putInt(hole * SLOT_SIZE + 8, slots.getInt(slot * SLOT_SIZE + 8));
+            hole = slot;
+        }
+        slots.putLong(hole * SLOT_SIZE, 0);
+    }
+
+    /** Appends a live record and returns its position */
+    private long append(byte[] txHash, int index, Transaction.Output out) {
+        byte[] address = out == null || out.address == null ? null : out.encodedAddress();
+        int length = RECORD_FIXED + txHash.length + (address == null ? 0 : address.length);
+        if (length > chunkSize)
+            throw new IllegalArgumentException("record larger than a chunk");
+        long at = placement(appendPos, length);
+        ByteBuffer chunk = chunk(at + 1);
+        int off = offset(at + 1);
+        byte flags = LIVE;
+        if (out == null)
+            flags |= NULL_OUTPUT;
+        else if (address == null)
+            flags |= NULL_ADDRESS;
+        chunk.putInt(off, length);
+        chunk.put(off + 4, flags);
+        chunk.putInt(off + 5, index);
+        chunk.putDouble(off + 9, out == null ? 0 : out.value);
+        chunk.putInt(off + 17, txHash.length);
+        chunk.putInt(off + 21, address == null ? 0 : address.length);
+        for (int i = 0; i < txHash.length; i++)
+            chunk.put(off + RECORD_FIXED + i, txHash[i]);
+        if (address != null) {
+            for (int i = 0; i < address.length; i++)
+                chunk.put(off + RECORD_FIXED + txHash.length + i, address[i]);
+        }
+        appendPos = at + length;
+        liveBytes += length;
+        return at + 1;
+    }
+
+    /**
+     * @return where a record of {@code length} bytes goes at or after {@code at}, padding to the
+     *         next chunk if it does not fit in the current one
+     */
+    private long placement(long at, int length) {
+        long inChunk = at % chunkSize;
+        if (inChunk + length > chunkSize) {
+            if (chunkSize - inChunk >= 4)
+                chunk(at + 1).putInt(offset(at + 1), 0);
+            at += chunkSize - inChunk;
+        }
+        while ((long) chunks.size() * chunkSize < at + length)
+            mapChunk();
+        return at;
+    }
+
+    /** @return {@code at}, or the start of the next chunk if {@code at} is in a chunk's padding */
+    private long skipPadding(long at) {
+        long inChunk = at % chunkSize;
+        if (at < appendPos && (chunkSize - inChunk < 4 || chunk(at + 1).getInt(offset(at + 1)) == 0))
+            return at + chunkSize - inChunk;
+        return at;
+    }
+
+    private void kill(long pos) {
+        ByteBuffer chunk = chunk(pos);
+        int at = offset(pos);
+        chunk.put(at + 4, (byte) (chunk.get(at + 4) & ~LIVE));
+        liveBytes -= chunk.getInt(at);
+    }
+
+    private Transaction.Output readOutput(long pos) {
+        ByteBuffer chunk = chunk(pos);
+        int at = offset(pos);
+        byte flags = chunk.get(at + 4);
+        if ((flags & NULL_OUTPUT) != 0)
+            return null;
+        double value = chunk.getDouble(at + 9);
+        PublicKey address = null;
+        if ((flags & NULL_ADDRESS) == 0) {
+            ByteBuffer encoded = chunk.duplicate();
+            int start = at + RECORD_FIXED + chunk.getInt(at + 17);
+            encoded.limit(start + chunk.getInt(at + 21));
+            encoded.position(start);
+            try {
+                address = keyCache.get(encoded);
+            } catch (InvalidKeySpecException e) {
+                throw new IllegalStateException("corrupt address in UTXO record", e);
+            }
+        }
+        return OUTER.new Output(value, address);
+    }
+
+    private long slotPos(int slot) {
+        return slots.getLong(slot * SLOT_SIZE);
+    }
+
+    /** Positions are offsets into the append region plus one, so that zero marks a free slot */
+    private ByteBuffer chunk(long pos) {
+        return chunks.get((int) ((pos - 1) / chunkSize));
+    }
+
+    private int offset(long pos) {
+        return (int) ((pos - 1) % chunkSize);
+    }
+
+    private void mapChunk() {
+        try {
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE,
+                    dataStart + (long) chunks.size() * chunkSize, chunkSize));
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot grow UTXO pool file", e);
+        }
+    }
+
+    private void writeHeader() {
+        header.putLong(16, appendPos);
+        header.putInt(24, live);
+        header.putLong(32, liveBytes);
+    }
+
+    private static int hash(byte[] txHash, int index) {
+        int h = 1;
+        for (byte b : txHash)
+            h = 31 * h + b;
+        h = h * 0x9E3779B9 + index;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,128 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A {@link TxHandler} that accepts the set of transactions with the highest total fee it can find
+ * greedily: it repeatedly accepts the valid transaction with the largest fee, input value minus
+ * output value, among those whose inputs are all in the pool.
+ *
+ * A transaction's fee is computed once, when all its inputs are available, and it then enters a
+ * heap ordered by fee and, for equal fees, by position in the proposed array, so transactions with
+ * equal fees are all considered. Transactions spending outputs of other transactions in the epoch
+ * wait on those outputs and enter the heap when their parent is accepted. Signatures are verified
+ * only for the transaction at the top of the heap, when it is about to be accepted.
+ */
+public class MaxFeeTxHandler extends TxHandler {
+
+    public MaxFeeTxHandler(UTXOPool utxoPool) {
+        super(utxoPool);
+    }
+
+    public MaxFeeTxHandler(UTXOPool utxoPool, ForkJoinPool forkJoinPool) {
+        super(utxoPool, forkJoinPool);
+    }
+
+    @Override
+    Transaction[] handleEpoch(Transaction[] possibleTxs, UTXOPool ledger) {
+        HashSet<ByteBuffer> hashes = new HashSet<>();
+        for (Transaction tx : possibleTxs) {
+            if (tx.getHash() != null)
+                hashes.add(ByteBuffer.wrap(tx.getHash()));
+        }
+        HashMap<UTXO, ArrayList<Integer>> waiting = new HashMap<>();
+        PriorityQueue<Candidate> heap = new PriorityQueue<>();
+        for (int i = 0; i < possibleTxs.length; i++)
+            offer(possibleTxs, i, ledger, hashes, waiting, heap);
+
+        ArrayList<Transaction> accepted = new ArrayList<>();
+        while (!heap.isEmpty()) {
+            Transaction tx = possibleTxs[heap.poll().index];
+            if (!isAcceptable(tx, ledger))
+                continue;
+            accepted.add(tx);
+            for (Transaction.Input input : tx.getInputs())
+                ledger.removeUTXO(input.getUTXO());
+            for (int o = 0; o < tx.numOutputs(); o++) {
+                UTXO utxo = new UTXO(tx.getTxId(), o);
+                ledger.addUTXO(utxo, tx.getOutput(o));
+                ArrayList<Integer> children = waiting.remove(utxo);
+                if (children != null) {
+                    for (int child : children)
+                        offer(possibleTxs, child, ledger, hashes, waiting, heap);
+                }
+            }
+        }
+        return accepted.toArray(new Transaction[0]);
+    }
+
+    /**
+     * Puts {@code txs[i]} on the heap with its fee if all its inputs are in {@code ledger}, or makes
+     * it wait on the first missing one if a transaction of the epoch may still create it.
+     */
+    private static void offer(Transaction[] txs, int i, UTXOPool ledger, HashSet<ByteBuffer> hashes,
+                              HashMap<UTXO, ArrayList<Integer>> waiting, PriorityQueue<Candidate> heap) {
+        Transaction tx = txs[i];
+        double fee = 0;
+        for (Transaction.Input input : tx.getInputs()) {
+            UTXO utxo = input.getUTXO();
+            Transaction.Output prev = ledger.getTxOutput(utxo);
+            if (prev == null) {
+                if (hashes.contains(ByteBuffer.wrap(input.prevTxHash)))
+                    waiting.computeIfAbsent(utxo, k -> new ArrayList<>()).add(i);
+                return;
+            }
+            fee += prev.value;
+        }
+        for (Transaction.Output output : tx.getOutputs())
+            fee -= output.value;
+        // overspending transactions can never be accepted
+        if (fee >= 0)
+            heap.add(new Candidate(i, fee));
+    }
+
+    /**
+     * @return true if every input of {@code tx} is still unspent and signed by its owner, no input
+     *         repeats and no output is negative; the fee was checked when it entered the heap
+     */
+    private boolean isAcceptable(Transaction tx, UTXOPool ledger) {
+        HashSet<UTXO> distinct = new HashSet<>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            UTXO utxo = input.getUTXO();
+            Transaction.Output prev = ledger.getTxOutput(utxo);
+            // spent by a transaction with a higher fee since this one entered the heap
+            if (prev == null || !distinct.add(utxo))
+                return false;
+            if (input.signature == null || !verifyInputSignature(tx, i, prev.address))
+                return false;
+        }
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** A transaction on the heap; higher fees first, then earlier positions */
+    private static final class Candidate implements Comparable<Candidate> {
+        final int index;
+        final double fee;
+
+        Candidate(int index, double fee) {
+            this.index = index;
+            this.fee = fee;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int byFee = Double.compare(other.fee, fee);
+            return byFee != 0 ? byFee : Integer.compare(index, other.index);
+        }
+    }
+}
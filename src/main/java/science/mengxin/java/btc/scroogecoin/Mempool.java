@@ -0,0 +1,203 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Validates transactions as they arrive instead of in one burst per epoch.
+ *
+ * The mempool keeps a {@link UTXOPoolOverlay} over the ledger holding the outputs of accepted but
+ * unconfirmed transactions, minus the ones they spend, and validates every submission against it
+ * with a {@link TxHandler}, so a transaction may spend outputs of earlier submissions. A
+ * {@link ClaimIndex} maps each outpoint to the mempool transaction spending it: a submission that
+ * double-spends is rejected with one probe per input, and when transactions confirmed elsewhere
+ * spend an outpoint, only the entries claiming it, and their descendants, are evicted. Nothing else
+ * is re-checked. {@link #closeEpoch} commits the validated set to the ledger in one step.
+ *
+ * Submissions spending unknown outputs wait in an {@link OrphanPool}; when a transaction creating
+ * an output they miss is accepted or confirmed, only those direct waiters are validated again.
+ *
+ * The ledger must not be changed other than through the mempool while it holds transactions.
+ */
+public class Mempool {
+
+    private final UTXOPool ledger;
+    private final UTXOPoolOverlay view;
+    private final TxHandler validator;
+    private final ClaimIndex<Transaction> claims = new ClaimIndex<>();
+    private final OrphanPool orphans;
+
+    /** Accepted transactions in submission order, and the same indexed by hash */
+    private final LinkedHashSet<Transaction> entries = new LinkedHashSet<>();
+    private final HashMap<ByteBuffer, Transaction> byHash = new HashMap<>();
+
+    /**
+     * Unspent outputs of transactions applied with {@link #applyConfirmed} since the last commit,
+     * which are in the view but neither in the ledger nor created by an entry
+     */
+    private final HashMap<UTXO, Transaction.Output> confirmedOutputs = new HashMap<>();
+
+    public Mempool(UTXOPool ledger) {
+        this(ledger, new OrphanPool());
+    }
+
+    public Mempool(UTXOPool ledger, OrphanPool orphans) {
+        this.ledger = ledger;
+        this.view = new UTXOPoolOverlay(ledger);
+        this.validator = new TxHandler(view);
+        this.orphans = orphans;
+    }
+
+    public OrphanPool getOrphanPool() {
+        return orphans;
+    }
+
+    /** @return the handler submissions are validated with, e.g. to configure its signature cache */
+    public TxHandler getValidator() {
+        return validator;
+    }
+
+    /** @return the ledger as it would be after committing the current mempool */
+    public UTXOPool view() {
+        return view;
+    }
+
+    /**
+     * Validates {@code tx} against the ledger plus the unconfirmed outputs and accepts it into the
+     * mempool if it is valid.
+     *
+     * @return TRUE if {@code tx} is in the mempool, FALSE if it is invalid or spends an output
+     *         another mempool transaction already spends, and MAYBE if it spends outputs that are
+     *         unknown so far, in which case it is kept as an orphan until they appear
+     */
+    public synchronized TxHandler.ThreeState submit(Transaction tx) {
+        TxHandler.ThreeState state = accept(tx);
+        if (state == TxHandler.ThreeState.TRUE)
+            adoptOrphans(Collections.singletonList(tx));
+        return state;
+    }
+
+    /**
+     * Applies transactions confirmed by some other path, e.g. another node's epoch, which must be
+     * valid against the ledger. Mempool entries they include stay; entries spending the same
+     * outputs are evicted together with their descendants.
+     *
+     * @return the evicted transactions
+     */
+    public synchronized List<Transaction> applyConfirmed(Transaction[] confirmed) {
+        ArrayList<Transaction> evicted = new ArrayList<>();
+        for (Transaction tx : confirmed) {
+            if (byHash.containsKey(ByteBuffer.wrap(tx.getHash())))
+                continue;
+            for (Transaction.Input input : tx.getInputs()) {
+                Transaction claimant = claims.claimant(input.prevTxHash, input.outputIndex);
+                if (claimant != null)
+                    evict(claimant, evicted);
+            }
+            for (Transaction.Input input : tx.getInputs()) {
+                view.removeUTXO(input.getUTXO());
+                confirmedOutputs.remove(input.getUTXO());
+            }
+            for (int o = 0; o < tx.numOutputs(); o++) {
+                UTXO utxo = new UTXO(tx.getTxId(), o);
+                view.addUTXO(utxo, tx.getOutput(o));
+                confirmedOutputs.put(utxo, tx.getOutput(o));
+            }
+        }
+        adoptOrphans(Arrays.asList(confirmed));
+        return evicted;
+    }
+
+    /**
+     * Commits the mempool, and anything applied with {@link #applyConfirmed}, to the ledger with
+     * one {@link UTXOPool#applyUpdates} call and empties it. Orphans stay, aging by one epoch.
+     *
+     * @return the committed mempool transactions in submission order
+     */
+    public synchronized Transaction[] closeEpoch() {
+        Transaction[] committed = entries.toArray(new Transaction[0]);
+        view.commit();
+        entries.clear();
+        byHash.clear();
+        confirmedOutputs.clear();
+        claims.clear();
+        orphans.endEpoch();
+        return committed;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean contains(byte[] txHash) {
+        return byHash.containsKey(ByteBuffer.wrap(txHash));
+    }
+
+    private TxHandler.ThreeState accept(Transaction tx) {
+        if (tx.getHash() == null)
+            return TxHandler.ThreeState.FALSE;
+        if (byHash.containsKey(ByteBuffer.wrap(tx.getHash())))
+            return TxHandler.ThreeState.TRUE;
+        for (Transaction.Input input : tx.getInputs()) {
+            if (claims.claimant(input.prevTxHash, input.outputIndex) != null)
+                return TxHandler.ThreeState.FALSE;
+        }
+        ValidationResult result = validator.validate(tx);
+        if (result.getState() == TxHandler.ThreeState.TRUE)
+            add(tx);
+        else if (result.getState() == TxHandler.ThreeState.MAYBE)
+            orphans.add(tx, result.getMissing());
+        return result.getState();
+    }
+
+    /** Validates the orphans waiting on outputs of {@code parents} again, and so on for the ones accepted */
+    private void adoptOrphans(List<Transaction> parents) {
+        ArrayDeque<Transaction> queue = new ArrayDeque<>(parents);
+        while (!queue.isEmpty()) {
+            for (Transaction child : orphans.resolve(queue.poll())) {
+                if (accept(child) == TxHandler.ThreeState.TRUE)
+                    queue.add(child);
+            }
+        }
+    }
+
+    private void add(Transaction tx) {
+        claims.tryClaim(tx, ClaimIndex.inputsOf(tx));
+        entries.add(tx);
+        byHash.put(ByteBuffer.wrap(tx.getHash()), tx);
+        for (Transaction.Input input : tx.getInputs())
+            view.removeUTXO(input.getUTXO());
+        for (int o = 0; o < tx.numOutputs(); o++)
+            view.addUTXO(new UTXO(tx.getTxId(), o), tx.getOutput(o));
+    }
+
+    /** Removes {@code tx} and everything spending its outputs, restoring the outputs it spent */
+    private void evict(Transaction tx, List<Transaction> evicted) {
+        for (int o = 0; o < tx.numOutputs(); o++) {
+            Transaction child = claims.claimant(tx.getHash(), o);
+            if (child != null)
+                evict(child, evicted);
+            view.removeUTXO(new UTXO(tx.getTxId(), o));
+        }
+        claims.release(tx, ClaimIndex.inputsOf(tx));
+        entries.remove(tx);
+        byHash.remove(ByteBuffer.wrap(tx.getHash()));
+        for (Transaction.Input input : tx.getInputs()) {
+            UTXO utxo = input.getUTXO();
+            Transaction parent = byHash.get(ByteBuffer.wrap(input.prevTxHash));
+            if (parent != null)
+                view.addUTXO(utxo, parent.getOutput(input.outputIndex));
+            else if (confirmedOutputs.containsKey(utxo))
+                view.addUTXO(utxo, confirmedOutputs.get(utxo));
+            else if (ledger.contains(utxo))
+                view.addUTXO(utxo, ledger.getTxOutput(utxo));
+        }
+        evicted.add(tx);
+    }
+}
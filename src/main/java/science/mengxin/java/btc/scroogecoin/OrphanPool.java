@@ -0,0 +1,178 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Bounded holding area for transactions that spend outputs nobody has seen yet, indexed by the
+ * exact outpoints they are missing.
+ *
+ * When a transaction creating outputs arrives, {@link #waitersOf} returns only the orphans waiting
+ * on those outputs, directly or through other orphans, so nothing else is re-validated. Orphans
+ * carry over from epoch to epoch; {@link #endEpoch} evicts the ones that have waited more than the
+ * maximum age, and adding to a full pool evicts the oldest.
+ */
+public class OrphanPool {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_MAX_AGE = 8;
+
+    private final int capacity;
+    private final int maxAge;
+
+    /** Orphans in arrival order */
+    private final LinkedHashMap<ByteBuffer, Orphan> orphans = new LinkedHashMap<>();
+    private final HashMap<UTXO, LinkedHashSet<Orphan>> waiting = new HashMap<>();
+    private int epoch;
+
+    public OrphanPool() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Creates a pool holding at most {@code capacity} orphans, each for at most {@code maxAge}
+     * epochs
+     */
+    public OrphanPool(int capacity, int maxAge) {
+        if (capacity <= 0 || maxAge < 0)
+            throw new IllegalArgumentException("bad orphan pool bounds: " + capacity + ", " + maxAge);
+        this.capacity = capacity;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Adds {@code tx} waiting on {@code missing}, evicting the oldest orphan if the pool is full.
+     * If {@code tx} is already an orphan, only the outpoints it waits on are updated, and it keeps
+     * its age.
+     */
+    public synchronized void add(Transaction tx, Collection<UTXO> missing) {
+        ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+        Orphan orphan = orphans.get(hash);
+        if (orphan != null) {
+            unindex(orphan);
+        } else {
+            if (orphans.size() >= capacity)
+                remove(orphans.values().iterator().next());
+            orphan = new Orphan(tx, epoch);
+            orphans.put(hash, orphan);
+        }
+        orphan.missing = new ArrayList<>(missing);
+        for (UTXO utxo : orphan.missing)
+            waiting.computeIfAbsent(utxo, k -> new LinkedHashSet<>()).add(orphan);
+    }
+
+    /**
+     * @return the orphans waiting on outputs of {@code parents}, and recursively on outputs of
+     *         those orphans, in arrival order; they stay in the pool
+     */
+    public synchronized List<Transaction> waitersOf(Collection<Transaction> parents) {
+        LinkedHashSet<Orphan> found = new LinkedHashSet<>();
+        ArrayDeque<Transaction> queue = new ArrayDeque<>(parents);
+        while (!queue.isEmpty()) {
+            Transaction parent = queue.poll();
+            if (parent.getHash() == null)
+                continue;
+            for (int o = 0; o < parent.numOutputs(); o++) {
+                LinkedHashSet<Orphan> children = waiting.get(new UTXO(parent.getTxId(), o));
+                if (children == null)
+                    continue;
+                for (Orphan child : children) {
+                    if (found.add(child))
+                        queue.add(child.tx);
+                }
+            }
+        }
+        ArrayList<Transaction> result = new ArrayList<>(found.size());
+        for (Orphan orphan : orphans.values()) {
+            if (found.contains(orphan))
+                result.add(orphan.tx);
+        }
+        return result;
+    }
+
+    /** Removes and returns the orphans waiting directly on an output of {@code parent} */
+    public synchronized List<Transaction> resolve(Transaction parent) {
+        ArrayList<Transaction> resolved = new ArrayList<>();
+        for (int o = 0; o < parent.numOutputs(); o++) {
+            LinkedHashSet<Orphan> children = waiting.get(new UTXO(parent.getTxId(), o));
+            if (children == null)
+                continue;
+            for (Orphan child : new ArrayList<>(children)) {
+                remove(child);
+                resolved.add(child.tx);
+            }
+        }
+        return resolved;
+    }
+
+    /** Removes {@code tx} if it is an orphan */
+    public synchronized void remove(Transaction tx) {
+        Orphan orphan = orphans.get(ByteBuffer.wrap(tx.getHash()));
+        if (orphan != null)
+            remove(orphan);
+    }
+
+    /**
+     * Ends the current epoch, evicting orphans that have waited longer than the maximum age.
+     *
+     * @return the number of orphans evicted
+     */
+    public synchronized int endEpoch() {
+        epoch++;
+        int evicted = 0;
+        Iterator<Orphan> it = orphans.values().iterator();
+        while (it.hasNext()) {
+            Orphan orphan = it.next();
+            // arrival order is age order, except for orphans re-added after a partial resolve
+            if (epoch - orphan.epoch > maxAge) {
+                it.remove();
+                unindex(orphan);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public synchronized boolean contains(byte[] txHash) {
+        return orphans.containsKey(ByteBuffer.wrap(txHash));
+    }
+
+    public synchronized int size() {
+        return orphans.size();
+    }
+
+    private void remove(Orphan orphan) {
+        orphans.remove(ByteBuffer.wrap(orphan.tx.getHash()));
+        unindex(orphan);
+    }
+
+    private void unindex(Orphan orphan) {
+        for (UTXO utxo : orphan.missing) {
+            LinkedHashSet<Orphan> set = waiting.get(utxo);
+            if (set != null) {
+                set.remove(orphan);
+                if (set.isEmpty())
+                    waiting.remove(utxo);
+            }
+        }
+    }
+
+    private static final class Orphan {
+        final Transaction tx;
+        /** Epoch the transaction arrived in */
+        final int epoch;
+        List<UTXO> missing;
+
+        Orphan(Transaction tx, int epoch) {
+            this.tx = tx;
+            this.epoch = epoch;
+        }
+    }
+}
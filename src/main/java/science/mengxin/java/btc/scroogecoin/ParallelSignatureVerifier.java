@@ -0,0 +1,191 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verifies the input signatures of a whole epoch on a {@link ForkJoinPool}.
+ *
+ * All inputs of all candidate transactions are flattened into one work list before forking, so
+ * the inputs of a single very large transaction are split across workers the same way as inputs
+ * of different transactions. The spent output of each input is resolved against the pool or, for
+ * in-epoch dependencies, against the outputs of the other candidates; inputs that resolve to
+ * neither are left to the sequential path.
+ */
+public class ParallelSignatureVerifier {
+
+    /** Below this many inputs a task verifies serially instead of forking */
+    private static final int SPLIT_THRESHOLD = 8;
+
+    private final ForkJoinPool forkJoinPool;
+
+    public ParallelSignatureVerifier(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+
+    /**
+     * Verifies every resolvable input signature of {@code txs}. The pool is only read, and only
+     * on the calling thread.
+     */
+    public Results verify(Transaction[] txs, UTXOPool pool) {
+        return verify(txs, pool, null);
+    }
+
+    /**
+     * Like {@link #verify(Transaction[], UTXOPool)}, but skips inputs that {@code cache} already
+     * knows to be valid and records the new successes in it.
+     */
+    public Results verify(Transaction[] txs, UTXOPool pool, SignatureCache cache) {
+        return verify(txs, new Transaction[0], pool, cache);
+    }
+
+    /**
+     * Like {@link #verify(Transaction[], UTXOPool, SignatureCache)}, but also resolves inputs
+     * against the outputs of {@code parents}, e.g. an earlier epoch not yet applied to the pool
+     */
+    public Results verify(Transaction[] txs, Transaction[] parents, UTXOPool pool, SignatureCache cache) {
+        HashMap<UTXO, Transaction.Output> epochOutputs = new HashMap<>();
+        for (Transaction[] group : new Transaction[][]{txs, parents}) {
+            for (Transaction tx : group) {
+                if (tx.getHash() == null)
+                    continue;
+                for (int i = 0; i < tx.numOutputs(); i++) {
+                    epochOutputs.putIfAbsent(new UTXO(tx.getTxId(), i), tx.getOutput(i));
+                }
+            }
+        }
+
+        Results results = new Results();
+        ArrayList<Check> checks = new ArrayList<>();
+        for (Transaction tx : txs) {
+            if (results.entries.containsKey(tx))
+                continue;
+            Entry entry = new Entry(tx.numInputs());
+            results.entries.put(tx, entry);
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                if (input.prevTxHash == null || input.signature == null)
+                    continue;
+                UTXO utxo = input.getUTXO();
+                Transaction.Output spent = pool.getTxOutput(utxo);
+                if (spent == null)
+                    spent = epochOutputs.get(utxo);
+                if (spent == null || spent.address == null)
+                    continue;
+                SignatureCache.Key key = cache == null ? null : SignatureCache.Key.of(tx, i);
+                if (cache != null && cache.isVerified(key, spent.address))
+                    continue;
+                entry.addresses[i] = spent.address;
+                entry.signatures[i] = input.signature;
+                checks.add(new Check(tx, i, entry, key));
+            }
+        }
+
+        if (!checks.isEmpty())
+            forkJoinPool.invoke(new VerifyTask(checks.toArray(new Check[0]), 0, checks.size()));
+        if (cache != null) {
+            for (Check check : checks) {
+                if (check.entry.valid[check.index])
+                    cache.markVerified(check.key, check.entry.addresses[check.index]);
+            }
+        }
+        return results;
+    }
+
+    /** Outcome of a parallel verification pass, consulted by the handler's sequential logic */
+    public static class Results {
+        private final IdentityHashMap<Transaction, Entry> entries = new IdentityHashMap<>();
+
+        /**
+         * @return the precomputed result for input {@code index} of {@code tx} verified against
+         *         {@code address}, or null if that exact check was not performed
+         */
+        public Boolean get(Transaction tx, int index, PublicKey address) {
+            Entry entry = entries.get(tx);
+            if (entry == null || index >= entry.addresses.length)
+                return null;
+            if (entry.addresses[index] != address
+                    || entry.signatures[index] != tx.getInput(index).signature)
+                return null;
+            return entry.valid[index];
+        }
+    }
+
+    private static class Entry {
+        final PublicKey[] addresses;
+        final byte[][] signatures;
+        final boolean[] valid;
+
+        Entry(int numInputs) {
+            addresses = new PublicKey[numInputs];
+            signatures = new byte[numInputs][];
+            valid = new boolean[numInputs];
+        }
+    }
+
+    private static class Check {
+        final Transaction tx;
+        final int index;
+        final Entry entry;
+        /** The input's signature cache key, computed once for the lookup and the mark; null without a cache */
+        final SignatureCache.Key key;
+
+        Check(Transaction tx, int index, Entry entry, SignatureCache.Key key) {
+            this.tx = tx;
+            this.index = index;
+            this.entry = entry;
+            this.key = key;
+        }
+    }
+
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Check[] checks;
+        private final int from;
+        private final int to;
+
+        VerifyTask(Check[] checks, int from, int to) {
+            this.checks = checks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                verifyBatch();
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new VerifyTask(checks, from, mid), new VerifyTask(checks, mid, to));
+        }
+
+        private void verifyBatch() {
+            int n = to - from;
+            PublicKey[] keys = new PublicKey[n];
+            byte[][] messages = new byte[n][];
+            byte[][] signatures = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                Check check = checks[from + i];
+                keys[i] = check.entry.addresses[check.index];
+                messages[i] = check.tx.getRawDataToSign(check.index);
+                signatures[i] = check.entry.signatures[check.index];
+            }
+            BitSet valid = Crypto.verifyBatch(keys, messages, signatures);
+            for (int i = 0; i < n; i++) {
+                Check check = checks[from + i];
+                check.entry.valid[check.index] = valid.get(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.ArrayList;
+
+/**
+ * A {@link UTXOPool} kept in a persistent hash array mapped trie, so that copies share structure.
+ *
+ * Copying a pool is O(1): the copy takes the same root and both pools stop modifying the nodes
+ * they now share. An update then copies only the path from the root to the changed entry, at most
+ * seven nodes, and nodes created since the last copy are modified in place. Speculative and nested
+ * epoch processing on copies therefore costs time proportional to the changes made rather than to
+ * the size of the pool. Like {@link UTXOPool}, a pool must not be used from several threads at
+ * once, but copies may be used independently of each other.
+ */
+public class PersistentUTXOPool extends UTXOPool {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /** Returned by lookups that find nothing, since null is a valid output */
+    private static final Object NOT_FOUND = new Object();
+
+    private Node root;
+    private int count;
+
+    /** Nodes carrying this token belong to this pool alone and may be modified in place */
+    private Object edit = new Object();
+
+    /** Creates a new empty pool */
+    public PersistentUTXOPool() {
+    }
+
+    /** Creates a new pool holding the same UTXOs as {@code uPool}, in O(1) if it is persistent too */
+    public PersistentUTXOPool(UTXOPool uPool) {
+        if (uPool instanceof PersistentUTXOPool) {
+            PersistentUTXOPool p = (PersistentUTXOPool) uPool;
+            root = p.root;
+            count = p.count;
+            // the source must not modify the nodes it now shares either
+            p.edit = new Object();
+            return;
+        }
+        for (UTXO ut : uPool.getAllUTXO())
+            addUTXO(ut, uPool.getTxOutput(ut));
+    }
+
+    @Override
+    public PersistentUTXOPool copy() {
+        return new PersistentUTXOPool(this);
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        boolean[] added = new boolean[1];
+        Node node = root == null ? new BitmapNode(edit, 0, new Object[0]) : root;
+        root = node.assoc(edit, 0, hash(utxo), utxo, txOut, added);
+        if (added[0])
+            count++;
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        if (root == null)
+            return;
+        boolean[] removed = new boolean[1];
+        root = root.without(edit, 0, hash(utxo), utxo, removed);
+        if (removed[0])
+            count--;
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        Object out = root == null ? NOT_FOUND : root.find(0, hash(ut), ut);
+        return out == NOT_FOUND ? null : (Transaction.Output) out;
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return root != null && root.find(0, hash(utxo), utxo) != NOT_FOUND;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> all = new ArrayList<>(count);
+        if (root != null)
+            root.collect(all);
+        return all;
+    }
+
+    private static int hash(UTXO ut) {
+        int h = ut.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A trie node. Its array holds key/value pairs; a null key marks a slot whose value is a child
+     * node. Operations return this node when nothing changed, and null when the node became empty.
+     */
+    private abstract static class Node {
+        final Object edit;
+        Object[] array;
+
+        Node(Object edit, Object[] array) {
+            this.edit = edit;
+            this.array = array;
+        }
+
+        abstract Object find(int shift, int hash, UTXO key);
+
+        abstract Node assoc(Object edit, int shift, int hash, UTXO key, Object val, boolean[] added);
+
+        abstract Node without(Object edit, int shift, int hash, UTXO key, boolean[] removed);
+
+        /** @return true if the node holds exactly one entry and no children */
+        abstract boolean isSingleEntry();
+
+        void collect(ArrayList<UTXO> all) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] != null)
+                    all.add((UTXO) array[i]);
+                else
+                    ((Node) array[i + 1]).collect(all);
+            }
+        }
+
+        /** @return this node with {@code array[i] = v}, modified in place if {@code edit} owns it */
+        Node set(Object edit, int i, Object v) {
+            if (this.edit == edit) {
+                array[i] = v;
+                return this;
+            }
+            Object[] copy = array.clone();
+            copy[i] = v;
+            return withArray(edit, copy);
+        }
+
+        abstract Node withArray(Object edit, Object[] array);
+    }
+
+    private static final class BitmapNode extends Node {
+        int bitmap;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit, array);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Object find(int shift, int hash, UTXO key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return NOT_FOUND;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null)
+                return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+            return key.equals(k) ? array[i + 1] : NOT_FOUND;
+        }
+
+        @Override
+        Node assoc(Object edit, int shift, int hash, UTXO key, Object val, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, i);
+                grown[i] = key;
+                grown[i + 1] = val;
+                System.arraycopy(array, i, grown, i + 2, array.length - i);
+                if (this.edit == edit) {
+                    bitmap |= bit;
+                    array = grown;
+                    return this;
+                }
+                return new BitmapNode(edit, bitmap | bit, grown);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).assoc(edit, shift + BITS, hash, key, val, added);
+                return child == v ? this : set(edit, i + 1, child);
+            }
+            if (key.equals(k))
+                return v == val ? this : set(edit, i + 1, val);
+            added[0] = true;
+            Node child = pair(edit, shift + BITS, (UTXO) k, v, hash, key, val);
+            Node node = set(edit, i, null);
+            node.array[i + 1] = child;
+            return node;
+        }
+
+        @Override
+        Node without(Object edit, int shift, int hash, UTXO key, boolean[] removed) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return this;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).without(edit, shift + BITS, hash, key, removed);
+                if (child == v)
+                    return this;
+                if (child == null)
+                    return remove(edit, bit, i);
+                if (child.isSingleEntry()) {
+                    // pull a lone entry up so removals do not leave chains of one-entry nodes
+                    Node node = set(edit, i, child.array[0]);
+                    node.array[i + 1] = child.array[1];
+                    return node;
+                }
+                return set(edit, i + 1, child);
+            }
+            if (!key.equals(k))
+                return this;
+            removed[0] = true;
+            return remove(edit, bit, i);
+        }
+
+        private Node remove(Object edit, int bit, int i) {
+            if (bitmap == bit)
+                return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (this.edit == edit) {
+                bitmap ^= bit;
+                array = shrunk;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap ^ bit, shrunk);
+        }
+
+        @Override
+        boolean isSingleEntry() {
+            return array.length == 2 && array[0] != null;
+        }
+
+        @Override
+        Node withArray(Object edit, Object[] array) {
+            return new BitmapNode(edit, bitmap, array);
+        }
+
+        /** @return a node holding two entries whose hashes agree below {@code shift} */
+        private static Node pair(Object edit, int shift, UTXO k1, Object v1, int h2, UTXO k2, Object v2) {
+            int h1 = hash(k1);
+            if (h1 == h2)
+                return new CollisionNode(edit, h1, new Object[]{k1, v1, k2, v2});
+            boolean[] added = new boolean[1];
+            return new BitmapNode(edit, 0, new Object[0])
+                    .assoc(edit, shift, h1, k1, v1, added)
+                    .assoc(edit, shift, h2, k2, v2, added);
+        }
+    }
+
+    /** Holds entries whose 32-bit hashes are all equal */
+    private static final class CollisionNode extends Node {
+        final int hash;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit, array);
+            this.hash = hash;
+        }
+
+        @Override
+        Object find(int shift, int hash, UTXO key) {
+            int i = indexOf(key);
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+        @Override
+        Node assoc(Object edit, int shift, int hash, UTXO key, Object val, boolean[] added) {
+            if (hash != this.hash) {
+                // only reachable above the last level, where the hashes still differ in some bits
+                Node nest = new BitmapNode(edit, 1 << ((this.hash >>> shift) & MASK), new Object[]{null, this});
+                return nest.assoc(edit, shift, hash, key, val, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0)
+                return array[i + 1] == val ? this : set(edit, i + 1, val);
+            added[0] = true;
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            grown[array.length] = key;
+            grown[array.length + 1] = val;
+            if (this.edit == edit) {
+                array = grown;
+                return this;
+            }
+            return new CollisionNode(edit, hash, grown);
+        }
+
+        @Override
+        Node without(Object edit, int shift, int hash, UTXO key, boolean[] removed) {
+            int i = indexOf(key);
+            if (i < 0)
+                return this;
+            removed[0] = true;
+            if (array.length == 2)
+                return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (this.edit == edit) {
+                array = shrunk;
+                return this;
+            }
+            return new CollisionNode(edit, hash, shrunk);
+        }
+
+        @Override
+        boolean isSingleEntry() {
+            return array.length == 2;
+        }
+
+        @Override
+        Node withArray(Object edit, Object[] array) {
+            return new CollisionNode(edit, hash, array);
+        }
+
+        private int indexOf(UTXO key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i]))
+                    return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link UTXOPool} backed by flat primitive arrays instead of {@link UTXO} keys.
+ *
+ * A 256-bit transaction hash is stored as four longs next to the output index, in an
+ * open-addressing table with linear probing and backward-shift deletion, so there are no
+ * per-entry key objects and no tombstones. The slot is taken from the hash bits themselves, which
+ * are already uniformly distributed. Lookups by hash and index do not allocate. Hashes that are not
+ * 32 bytes long, which only occur in hand-built pools, are kept in a small side map.
+ */
+public class PrimitiveUTXOPool extends UTXOPool {
+
+    private static final int HASH_BYTES = 32;
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    /** Stands in for a null output, since a null slot marks a free one */
+    private static final Transaction.Output NULL_OUTPUT = new Transaction().new Output(0, null);
+
+    private long[] h0;
+    private long[] h1;
+    private long[] h2;
+    private long[] h3;
+    private int[] indices;
+    private Transaction.Output[] outputs;
+    private int mask;
+    private int count;
+    private int growAt;
+
+    /** UTXOs whose tx hash is not 32 bytes long */
+    private HashMap<UTXO, Transaction.Output> other;
+
+    /** Creates a new empty pool */
+    public PrimitiveUTXOPool() {
+        this(MIN_CAPACITY);
+    }
+
+    /** Creates a new empty pool sized for {@code expectedSize} UTXOs without resizing */
+    public PrimitiveUTXOPool(int expectedSize) {
+        allocate(tableSize(expectedSize));
+    }
+
+    /** Creates a new pool holding the same UTXOs as {@code uPool} */
+    public PrimitiveUTXOPool(UTXOPool uPool) {
+        if (uPool instanceof PrimitiveUTXOPool) {
+            PrimitiveUTXOPool p = (PrimitiveUTXOPool) uPool;
+            h0 = p.h0.clone();
+            h1 = p.h1.clone();
+            h2 = p.h2.clone();
+            h3 = p.h3.clone();
+            indices = p.indices.clone();
+            outputs = p.outputs.clone();
+            mask = p.mask;
+            count = p.count;
+            growAt = p.growAt;
+            if (p.other != null)
+                other = new HashMap<>(p.other);
+            return;
+        }
+        ArrayList<UTXO> all = uPool.getAllUTXO();
+        allocate(tableSize(all.size()));
+        for (UTXO ut : all)
+            addUTXO(ut, uPool.getTxOutput(ut));
+    }
+
+    @Override
+    public PrimitiveUTXOPool copy() {
+        return new PrimitiveUTXOPool(this);
+    }
+
+    /** Makes room for {@code additional} more UTXOs without resizing while they are inserted */
+    public void ensureCapacity(int additional) {
+        int needed = count + additional;
+        if (needed > growAt)
+            rehash(tableSize(needed));
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != HASH_BYTES) {
+            if (other == null)
+                other = new HashMap<>();
+            other.put(utxo, txOut);
+            return;
+        }
+        put(longAt(hash, 0), longAt(hash, 8), longAt(hash, 16), longAt(hash, 24), utxo.getIndex(),
+                txOut == null ? NULL_OUTPUT : txOut);
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != HASH_BYTES) {
+            if (other != null)
+                other.remove(utxo);
+            return;
+        }
+        int slot = find(hash, utxo.getIndex());
+        if (slot >= 0)
+            delete(slot);
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return getTxOutput(ut.getTxHash(), ut.getIndex());
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (txHash.length != HASH_BYTES)
+            return other == null ? null : other.get(new UTXO(txHash, index));
+        int slot = find(txHash, index);
+        if (slot < 0)
+            return null;
+        Transaction.Output out = outputs[slot];
+        return out == NULL_OUTPUT ? null : out;
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        if (txHash.length != HASH_BYTES)
+            return other != null && other.containsKey(new UTXO(txHash, index));
+        return find(txHash, index) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return count + (other == null ? 0 : other.size());
+    }
+
+    /** Four hash words, an index and an output reference per slot, used or not */
+    @Override
+    public long estimatedHeapBytes() {
+        return (long) outputs.length * (4 * Long.BYTES + Integer.BYTES + 4)
+                + (other == null ? 0 : other.size() * ENTRY_HEAP_BYTES);
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> all = new ArrayList<>(size());
+        byte[] hash = new byte[HASH_BYTES];
+        for (int slot = 0; slot < outputs.length; slot++) {
+            if (outputs[slot] == null)
+                continue;
+            putLong(hash, 0, h0[slot]);
+            putLong(hash, 8, h1[slot]);
+            putLong(hash, 16, h2[slot]);
+            putLong(hash, 24, h3[slot]);
+            all.add(new UTXO(hash, indices[slot]));
+        }
+        if (other != null)
+            all.addAll(other.keySet());
+        return all;
+    }
+
+    /** Presizes the table for the whole update before applying it */
+    @Override
+    public void applyUpdates(Collection<UTXO> spent, Map<UTXO, Transaction.Output> created) {
+        ensureCapacity(created.size());
+        super.applyUpdates(spent, created);
+    }
+
+    private void put(long a, long b, long c, long d, int index, Transaction.Output out) {
+        int slot = slot(a, index);
+        while (outputs[slot] != null) {
+            if (matches(slot, a, b, c, d, index)) {
+                outputs[slot] = out;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        h0[slot] = a;
+        h1[slot] = b;
+        h2[slot] = c;
+        h3[slot] = d;
+        indices[slot] = index;
+        outputs[slot] = out;
+        if (++count > growAt)
+            rehash(outputs.length << 1);
+    }
+
+    /** @return the slot holding output {@code index} of {@code hash}, or -1 */
+    private int find(byte[] hash, int index) {
+        long a = longAt(hash, 0);
+        int slot = slot(a, index);
+        if (outputs[slot] == null)
+            return -1;
+        long b = longAt(hash, 8), c = longAt(hash, 16), d = longAt(hash, 24);
+        while (outputs[slot] != null) {
+            if (matches(slot, a, b, c, d, index))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Empties {@code hole}, shifting back later entries of its probe run that may fill it */
+    private void delete(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (outputs[slot] == null)
+                break;
+            int home = slot(h0[slot], indices[slot]);
+            // the entry may move if its home does not lie cyclically in (hole, slot]
+            boolean stays = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if (stays)
+                continue;
+            h0[hole] = h0[slot];
+            h1[hole] = h1[slot];
+            h2[hole] = h2[slot];
+            h3[hole] = h3[slot];
+            indices[hole] = indices[slot];
+            outputs[hole] = outputs[slot];
+            hole = slot;
+        }
+        outputs[hole] = null;
+        count--;
+    }
+
+    private boolean matches(int slot, long a, long b, long c, long d, int index) {
+        return h0[slot] == a && indices[slot] == index && h1[slot] == b && h2[slot] == c && h3[slot] == d;
+    }
+
+    private int slot(long a, int index) {
+        long x = a ^ (index * 0x9E3779B97F4A7C15L);
+        return (int) (x ^ (x >>> 32)) & mask;
+    }
+
+    private void rehash(int capacity) {
+        long[] a = h0, b = h1, c = h2, d = h3;
+        int[] idx = indices;
+        Transaction.Output[] outs = outputs;
+        allocate(capacity);
+        for (int slot = 0; slot < outs.length; slot++) {
+            if (outs[slot] != null)
+                put(a[slot], b[slot], c[slot], d[slot], idx[slot], outs[slot]);
+        }
+    }
+
+    private void allocate(int capacity) {
+        h0 = new long[capacity];
+        h1 = new long[capacity];
+        h2 = new long[capacity];
+        h3 = new long[capacity];
+        indices = new int[capacity];
+        outputs = new Transaction.Output[capacity];
+        mask = capacity - 1;
+        count = 0;
+        growAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int tableSize(int expectedSize) {
+        long needed = (long) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR) + 1;
+        long size = Long.highestOneBit(Math.max(needed - 1, MIN_CAPACITY - 1)) << 1;
+        if (size > 1 << 30)
+            throw new IllegalArgumentException("pool too large: " + expectedSize);
+        return (int) size;
+    }
+
+    private static long longAt(byte[] b, int off) {
+        long v = 0;
+        for (int i = off; i < off + 8; i++)
+            v = (v << 8) | (b[i] & 0xFF);
+        return v;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = off + 7; i >= off; i--) {
+            b[i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.io.IOException;
+
+/**
+ * Writes a snapshot of {@link HandlerMetrics} in the Prometheus text exposition format, one
+ * {@code handler} label per metrics instance. Durations are exported in seconds.
+ */
+public class PrometheusWriter {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final Appendable out;
+
+    public PrometheusWriter(Appendable out) {
+        this.out = out;
+    }
+
+    /** Writes every metric of each of {@code metrics}, grouped by metric name */
+    public void write(HandlerMetrics... metrics) throws IOException {
+        header("scrooge_epochs_total", "counter", "Epochs handled");
+        for (HandlerMetrics m : metrics)
+            sample("scrooge_epochs_total", m, "", m.getEpochs());
+        header("scrooge_transactions_proposed_total", "counter", "Transactions proposed to handleTxs");
+        for (HandlerMetrics m : metrics)
+            sample("scrooge_transactions_proposed_total", m, "", m.getProposed());
+        header("scrooge_transactions_accepted_total", "counter", "Transactions accepted by handleTxs");
+        for (HandlerMetrics m : metrics)
+            sample("scrooge_transactions_accepted_total", m, "", m.getAccepted());
+        header("scrooge_transactions_rejected_total", "counter", "Transactions rejected, by the first rule they break");
+        for (HandlerMetrics m : metrics) {
+            for (RejectReason reason : RejectReason.values())
+                sample("scrooge_transactions_rejected_total", m, ",reason=\"" + reason.label() + "\"", m.getRejected(reason));
+        }
+        header("scrooge_utxo_pool_size", "gauge", "Outputs in the pool after the last epoch");
+        for (HandlerMetrics m : metrics)
+            sample("scrooge_utxo_pool_size", m, "", m.getPoolSize());
+        header("scrooge_utxo_pool_heap_bytes", "gauge", "Estimated heap footprint of the pool after the last epoch");
+        for (HandlerMetrics m : metrics)
+            sample("scrooge_utxo_pool_heap_bytes", m, "", m.getPoolHeapBytes());
+
+        histogram("scrooge_signature_verify_seconds", "Single signature verifications", metrics, Stage.SIGNATURE);
+        histogram("scrooge_epoch_verification_seconds", "Parallel signature verification per epoch", metrics, Stage.VERIFICATION);
+        histogram("scrooge_epoch_apply_seconds", "Validation against the pool and pool updates per epoch", metrics, Stage.APPLY);
+        histogram("scrooge_epoch_seconds", "Whole epochs", metrics, Stage.EPOCH);
+    }
+
+    private enum Stage {
+        SIGNATURE, VERIFICATION, APPLY, EPOCH;
+
+        LatencyHistogram of(HandlerMetrics m) {
+            switch (this) {
+                case SIGNATURE:
+                    return m.getSignatureLatency();
+                case VERIFICATION:
+                    return m.getVerificationLatency();
+                case APPLY:
+                    return m.getApplyLatency();
+                default:
+                    return m.getEpochLatency();
+            }
+        }
+    }
+
+    private void histogram(String name, String help, HandlerMetrics[] metrics, Stage stage) throws IOException {
+        header(name, "histogram", help);
+        for (HandlerMetrics m : metrics) {
+            LatencyHistogram histogram = stage.of(m);
+            long cumulative = 0;
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                cumulative += histogram.bucketCount(i);
+                String le = i == LatencyHistogram.BUCKETS - 1 ? "+Inf"
+                        : number(LatencyHistogram.upperBoundNanos(i) / NANOS_PER_SECOND);
+                sample(name + "_bucket", m, ",le=\"" + le + "\"", cumulative);
+            }
+            out.append(name).append("_sum").append(labels(m, "")).append(' ')
+                    .append(number(histogram.sumNanos() / NANOS_PER_SECOND)).append('\n');
+            sample(name + "_count", m, "", cumulative);
+        }
+    }
+
+    private void header(String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void sample(String name, HandlerMetrics m, String extraLabels, long value) throws IOException {
+        out.append(name).append(labels(m, extraLabels)).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private static String labels(HandlerMetrics m, String extraLabels) {
+        return "{handler=\"" + escape(m.getName()) + "\"" + extraLabels + "}";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String number(double value) {
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,54 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes X.509-encoded RSA public keys through a {@link KeyFactory}, handing out one
+ * {@link PublicKey} instance per distinct encoding. Lookups take the encoding as a buffer and do
+ * not copy it unless the key is new.
+ */
+public class PublicKeyCache {
+
+    private static final ThreadLocal<KeyFactory> RSA = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("RSA is not available", e);
+        }
+    });
+
+    private final ConcurrentHashMap<ByteBuffer, PublicKey> keys = new ConcurrentHashMap<>();
+
+    /**
+     * @return the key encoded in the remaining bytes of {@code encoded}, which is left unchanged
+     * @throws InvalidKeySpecException if the bytes are not an RSA public key
+     */
+    public PublicKey get(ByteBuffer encoded) throws InvalidKeySpecException {
+        PublicKey key = keys.get(encoded);
+        if (key != null)
+            return key;
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.duplicate().get(bytes);
+        key = RSA.get().generatePublic(new X509EncodedKeySpec(bytes));
+        PublicKey raced = keys.putIfAbsent(ByteBuffer.wrap(bytes), key);
+        return raced == null ? key : raced;
+    }
+
+    public PublicKey get(byte[] encoded) throws InvalidKeySpecException {
+        return get(ByteBuffer.wrap(encoded));
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public void clear() {
+        keys.clear();
+    }
+}
@@ -0,0 +1,22 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.Locale;
+
+/** The validity rule a rejected transaction broke, as counted by {@link HandlerMetrics} */
+public enum RejectReason {
+    /** An input spends an output that is not in the pool */
+    MISSING_INPUT,
+    /** An input signature is missing or does not verify under the spent output's address */
+    BAD_SIGNATURE,
+    /** An output is spent twice, by the transaction itself or by another accepted transaction */
+    DOUBLE_CLAIM,
+    /** An output value is negative */
+    NEGATIVE_OUTPUT,
+    /** The outputs are worth more than the inputs */
+    OVERSPEND;
+
+    /** @return the name as a lower-case label value, e.g. {@code missing_input} */
+    public String label() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
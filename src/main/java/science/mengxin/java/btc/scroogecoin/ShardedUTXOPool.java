@@ -0,0 +1,297 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * A thread-safe {@link UTXOPool} split by transaction hash prefix into a power-of-two number of
+ * shards, each a {@code HashMap} behind its own read-write lock.
+ *
+ * Single-key operations lock one shard, so threads working on different shards do not contend and
+ * readers of one shard do not block each other. Operations on several keys ({@link #containsAll},
+ * {@link #spend}, {@link #applyUpdates}, {@link #getAllUTXO} and {@link #copy}) lock every shard
+ * they touch in ascending shard order, which rules out deadlock between them. {@link #spend} checks
+ * and applies a transaction atomically, so validator threads can apply non-conflicting
+ * transactions concurrently and exactly one of two conflicting ones succeeds. All outputs of a
+ * transaction fall in the same shard.
+ */
+public class ShardedUTXOPool extends UTXOPool {
+
+    public static final int DEFAULT_SHARDS = 64;
+
+    private final HashMap<UTXO, Transaction.Output>[] shards;
+    private final ReentrantReadWriteLock[] locks;
+    private final int mask;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public ShardedUTXOPool() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /** Creates an empty pool with {@code shardCount} shards, a power of two up to 65536 */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardedUTXOPool(int shardCount) {
+        if (shardCount <= 0 || shardCount > 1 << 16 || Integer.bitCount(shardCount) != 1)
+            throw new IllegalArgumentException("shard count must be a power of two up to 65536: " + shardCount);
+        shards = new HashMap[shardCount];
+        locks = new ReentrantReadWriteLock[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new HashMap<>();
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        mask = shardCount - 1;
+    }
+
+    /** Creates a pool with {@code shardCount} shards holding the UTXOs of {@code uPool} */
+    public ShardedUTXOPool(UTXOPool uPool, int shardCount) {
+        this(shardCount);
+        for (UTXO ut : uPool.getAllUTXO())
+            shards[shardOf(ut.getTxHash())].put(ut, uPool.getTxOutput(ut));
+        count.set(uPool.size());
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /** @return the shard holding the outputs of the transaction with hash {@code txHash} */
+    public int shardOf(byte[] txHash) {
+        int prefix = (txHash.length > 0 ? (txHash[0] & 0xFF) << 8 : 0) | (txHash.length > 1 ? txHash[1] & 0xFF : 0);
+        return prefix & mask;
+    }
+
+    @Override
+    public ShardedUTXOPool copy() {
+        ShardedUTXOPool copy = new ShardedUTXOPool(shards.length);
+        BitSet all = new BitSet(shards.length);
+        all.set(0, shards.length);
+        lock(all, false);
+        try {
+            for (int i = 0; i < shards.length; i++)
+                copy.shards[i].putAll(shards[i]);
+            copy.count.set(count.get());
+        } finally {
+            unlock(all, false);
+        }
+        return copy;
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        int shard = shardOf(utxo.getTxHash());
+        Lock lock = locks[shard].writeLock();
+        lock.lock();
+        try {
+            // outputs may be null, so put's return value does not tell whether utxo was new
+            if (!shards[shard].containsKey(utxo))
+                count.incrementAndGet();
+            shards[shard].put(utxo, txOut);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        int shard = shardOf(utxo.getTxHash());
+        Lock lock = locks[shard].writeLock();
+        lock.lock();
+        try {
+            if (shards[shard].containsKey(utxo)) {
+                shards[shard].remove(utxo);
+                count.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        int shard = shardOf(ut.getTxHash());
+        Lock lock = locks[shard].readLock();
+        lock.lock();
+        try {
+            return shards[shard].get(ut);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        int shard = shardOf(utxo.getTxHash());
+        Lock lock = locks[shard].readLock();
+        lock.lock();
+        try {
+            return shards[shard].containsKey(utxo);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return getTxOutput(new UTXO(txHash, index));
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return contains(new UTXO(txHash, index));
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        return size() * ENTRY_HEAP_BYTES;
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        BitSet all = new BitSet(shards.length);
+        all.set(0, shards.length);
+        lock(all, false);
+        try {
+            ArrayList<UTXO> utxos = new ArrayList<>(count.get());
+            for (HashMap<UTXO, Transaction.Output> shard : shards)
+                utxos.addAll(shard.keySet());
+            return utxos;
+        } finally {
+            unlock(all, false);
+        }
+    }
+
+    /** @return true if every UTXO of {@code utxos} is in the pool, as of one instant */
+    public boolean containsAll(Collection<UTXO> utxos) {
+        BitSet touched = shardsOf(utxos, null);
+        lock(touched, false);
+        try {
+            for (UTXO ut : utxos) {
+                if (!shards[shardOf(ut.getTxHash())].containsKey(ut))
+                    return false;
+            }
+            return true;
+        } finally {
+            unlock(touched, false);
+        }
+    }
+
+    /**
+     * Atomically removes every UTXO in {@code spent} and adds {@code created}, provided all of
+     * {@code spent} are in the pool; otherwise changes nothing.
+     *
+     * @return true if the update was applied
+     */
+    public boolean spend(Collection<UTXO> spent, Map<UTXO, Transaction.Output> created) {
+        BitSet touched = shardsOf(spent, created.keySet());
+        lock(touched, true);
+        try {
+            for (UTXO ut : spent) {
+                if (!shards[shardOf(ut.getTxHash())].containsKey(ut))
+                    return false;
+            }
+            apply(spent, created);
+            return true;
+        } finally {
+            unlock(touched, true);
+        }
+    }
+
+    /**
+     * Atomically spends the inputs of {@code tx} and adds its outputs if every input is in the
+     * pool and none repeats. Signatures and values are not checked.
+     *
+     * @return true if {@code tx} was applied
+     */
+    public boolean spend(Transaction tx) {
+        ArrayList<UTXO> spent = new ArrayList<>(tx.numInputs());
+        for (Transaction.Input input : tx.getInputs())
+            spent.add(input.getUTXO());
+        HashMap<UTXO, Transaction.Output> created = new HashMap<>();
+        for (int o = 0; o < tx.numOutputs(); o++)
+            created.put(new UTXO(tx.getTxId(), o), tx.getOutput(o));
+        return spent.size() == new HashSet<>(spent).size() && spend(spent, created);
+    }
+
+    /**
+     * Applies the epoch shard by shard in parallel, each shard under its own lock; other threads
+     * may see some shards updated before others.
+     */
+    @Override
+    public void applyUpdates(Collection<UTXO> spent, Map<UTXO, Transaction.Output> created) {
+        ArrayList<ArrayList<UTXO>> spentByShard = new ArrayList<>(shards.length);
+        ArrayList<HashMap<UTXO, Transaction.Output>> createdByShard = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            spentByShard.add(new ArrayList<>());
+            createdByShard.add(new HashMap<>());
+        }
+        for (UTXO ut : spent)
+            spentByShard.get(shardOf(ut.getTxHash())).add(ut);
+        for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet())
+            createdByShard.get(shardOf(e.getKey().getTxHash())).put(e.getKey(), e.getValue());
+        IntStream.range(0, shards.length).parallel().forEach(i -> {
+            if (spentByShard.get(i).isEmpty() && createdByShard.get(i).isEmpty())
+                return;
+            Lock lock = locks[i].writeLock();
+            lock.lock();
+            try {
+                apply(spentByShard.get(i), createdByShard.get(i));
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /** Removes {@code spent}, then adds {@code created}; the caller holds the shards' write locks */
+    private void apply(Collection<UTXO> spent, Map<UTXO, Transaction.Output> created) {
+        int delta = 0;
+        for (UTXO ut : spent) {
+            HashMap<UTXO, Transaction.Output> shard = shards[shardOf(ut.getTxHash())];
+            if (shard.containsKey(ut)) {
+                shard.remove(ut);
+                delta--;
+            }
+        }
+        for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet()) {
+            HashMap<UTXO, Transaction.Output> shard = shards[shardOf(e.getKey().getTxHash())];
+            if (!shard.containsKey(e.getKey()))
+                delta++;
+            shard.put(e.getKey(), e.getValue());
+        }
+        count.addAndGet(delta);
+    }
+
+    private BitSet shardsOf(Collection<UTXO> first, Collection<UTXO> second) {
+        BitSet touched = new BitSet(shards.length);
+        for (UTXO ut : first)
+            touched.set(shardOf(ut.getTxHash()));
+        if (second != null) {
+            for (UTXO ut : second)
+                touched.set(shardOf(ut.getTxHash()));
+        }
+        return touched;
+    }
+
+    /** Locks the shards in {@code touched} in ascending order */
+    private void lock(BitSet touched, boolean write) {
+        for (int i = touched.nextSetBit(0); i >= 0; i = touched.nextSetBit(i + 1))
+            (write ? locks[i].writeLock() : locks[i].readLock()).lock();
+    }
+
+    private void unlock(BitSet touched, boolean write) {
+        for (int i = touched.previousSetBit(shards.length - 1); i >= 0; i = touched.previousSetBit(i - 1))
+            (write ? locks[i].writeLock() : locks[i].readLock()).unlock();
+    }
+}
@@ -0,0 +1,141 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of input signatures that already verified, keyed by a digest of the signed
+ * data and the signature and remembering the key they verified under. A hit lets a handler skip
+ * the RSA check when the same transaction is validated again, in the same or a later epoch.
+ *
+ * Only successful verifications are cached. The key covers exactly what the signature covers,
+ * the spent outpoint and every output, so the transaction hash, which callers may set to anything,
+ * is never trusted: a transaction carrying the hash and signature of a verified one but different
+ * outputs misses the cache and fails the RSA check.
+ *
+ * Keys are hashed outside the cache's lock, so concurrent verifiers only serialize on the map
+ * itself. Callers that look up and then mark the same input compute its {@link Key} once and use
+ * the key-based overloads.
+ */
+public class SignatureCache {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private final int capacity;
+    private final LinkedHashMap<Key, PublicKey> entries;
+    private long hits;
+    private long misses;
+
+    /** Creates a cache holding at most {@code capacity} verified signatures */
+    public SignatureCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, PublicKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PublicKey> eldest) {
+                return size() > SignatureCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true if input {@code index} of {@code tx} is known to carry a valid signature under
+     *         {@code address}
+     */
+    public boolean isVerified(Transaction tx, int index, PublicKey address) {
+        return isVerified(Key.of(tx, index), address);
+    }
+
+    /** Like {@link #isVerified(Transaction, int, PublicKey)}, for a key from {@link Key#of}, which may be null */
+    synchronized boolean isVerified(Key key, PublicKey address) {
+        PublicKey verifiedUnder = key == null ? null : entries.get(key);
+        if (verifiedUnder != null && (verifiedUnder == address || verifiedUnder.equals(address))) {
+            hits++;
+            return true;
+        }
+        misses++;
+        return false;
+    }
+
+    /** Records that input {@code index} of {@code tx} has a valid signature under {@code address} */
+    public void markVerified(Transaction tx, int index, PublicKey address) {
+        markVerified(Key.of(tx, index), address);
+    }
+
+    /** Like {@link #markVerified(Transaction, int, PublicKey)}, for a key from {@link Key#of}, which may be null */
+    synchronized void markVerified(Key key, PublicKey address) {
+        if (key != null && address != null)
+            entries.put(key, address);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    static final class Key {
+        private final byte[] digest;
+        private final int hash;
+
+        private Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        /**
+         * @return the key of input {@code index} of {@code tx}, a digest of the length of its data
+         *         to sign, that data and its signature, or null if it cannot be cached
+         */
+        static Key of(Transaction tx, int index) {
+            Transaction.Input input = tx.getInput(index);
+            if (input == null || input.signature == null)
+                return null;
+            MessageDigest md = SHA256.get();
+            int length = TransactionSerializer.rawDataToSignSize(tx, index);
+            for (int shift = 24; shift >= 0; shift -= 8)
+                md.update((byte) (length >>> shift));
+            TransactionSerializer.digestRawDataToSign(tx, index, md);
+            md.update(input.signature);
+            return new Key(md.digest());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key) other;
+            return hash == key.hash && Arrays.equals(digest, key.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -10,21 +10,59 @@ import java.security.PublicKey;
 public class Transaction {
 
     public class Input {
-        /** hash of the Transaction whose output is being used */
+        /**
+         * hash of the Transaction whose output is being used. The array may be shared with the
+         * {@link TxId}s of other inputs and UTXOs, so it must not be modified in place; assign a new
+         * array instead, which the input copies on its next use.
+         */
         public byte[] prevTxHash;
         /** used output's index in the previous transaction */
         public int outputIndex;
         /** the signature produced to check validity */
         public byte[] signature;
 
+        /** id over {@code prevTxHash}, made on first use and remade if the field is reassigned */
+        private TxId prevTxId;
+
+        /** Creates an input spending output {@code index} of the transaction with hash {@code prevHash}, copying it once */
         public Input(byte[] prevHash, int index) {
-            if (prevHash == null)
+            if (prevHash == null) {
                 prevTxHash = null;
-            else
-                prevTxHash = Arrays.copyOf(prevHash, prevHash.length);
+            } else {
+                prevTxId = TxId.of(prevHash);
+                prevTxHash = prevTxId.getBytes();
+            }
             outputIndex = index;
         }
 
+        /** Creates an input spending output {@code index} of transaction {@code prevId}, sharing its hash */
+        public Input(TxId prevId, int index) {
+            prevTxHash = prevId.getBytes();
+            prevTxId = prevId;
+            outputIndex = index;
+        }
+
+        /**
+         * @return the id of the transaction whose output is being used. If {@code prevTxHash} was
+         *         assigned an array since the last call, the id takes a copy of it and the field is
+         *         pointed at that copy, so ids never share an array callers still hold.
+         */
+        public TxId getPrevTxId() {
+            TxId id = prevTxId;
+            byte[] hash = prevTxHash;
+            if (id == null || id.getBytes() != hash) {
+                id = hash == null ? TxId.wrap(null) : TxId.of(hash);
+                prevTxId = id;
+                prevTxHash = id.getBytes();
+            }
+            return id;
+        }
+
+        /** @return the output this input spends, sharing {@link #getPrevTxId} rather than copying the hash */
+        public UTXO getUTXO() {
+            return new UTXO(getPrevTxId(), outputIndex);
+        }
+
         public void addSignature(byte[] sig) {
             if (sig == null)
                 signature = null;
@@ -39,14 +77,39 @@ public class Transaction {
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        /** encoding of {@code address}, kept together with the key it was computed from */
+        private EncodedAddress encoded;
+
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
+
+        /** @return the encoded form of {@code address}, computed once per key; do not modify */
+        byte[] encodedAddress() {
+            EncodedAddress e = encoded;
+            if (e == null || e.key != address) {
+                e = new EncodedAddress(address);
+                encoded = e;
+            }
+            return e.bytes;
+        }
+    }
+
+    private static final class EncodedAddress {
+        final PublicKey key;
+        final byte[] bytes;
+
+        EncodedAddress(PublicKey key) {
+            this.key = key;
+            this.bytes = key.getEncoded();
+        }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
+    /** id over {@code hash}, made on first use */
+    private TxId txId;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
 
@@ -66,6 +129,20 @@ public class Transaction {
         inputs.add(in);
     }
 
+    /**
+     * Adds an input spending output {@code outputIndex} of the transaction with hash
+     * {@code prevTxHash}, through {@code txIds}, so inputs of different transactions spending the
+     * same parent share one {@link TxId} and its bytes
+     */
+    public void addInput(byte[] prevTxHash, int outputIndex, TxIdInterner txIds) {
+        inputs.add(new Input(txIds.intern(prevTxHash), outputIndex));
+    }
+
+    /** Adds an input spending {@code spent}, sharing its {@link TxId} instead of copying the hash */
+    public void addInput(UTXO spent) {
+        inputs.add(new Input(spent.getTxId(), spent.getIndex()));
+    }
+
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
@@ -78,8 +155,7 @@ public class Transaction {
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            if (in.getUTXO().equals(ut)) {
                 inputs.remove(i);
                 return;
             }
@@ -88,34 +164,10 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
+        byte[] sigD = new byte[TransactionSerializer.rawDataToSignSize(this, index)];
+        TransactionSerializer.writeRawDataToSign(this, index, ByteBuffer.wrap(sigD));
         return sigD;
     }
 
@@ -124,60 +176,47 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
-
-        }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
+        byte[] tx = new byte[TransactionSerializer.rawTxSize(this)];
+        TransactionSerializer.writeRawTx(this, ByteBuffer.wrap(tx));
         return tx;
     }
 
     public void finalize() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
+            TransactionSerializer.digestRawTx(this, md);
             hash = md.digest();
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
         }
     }
 
+    /** Sets the hash to a copy of {@code h} */
     public void setHash(byte[] h) {
-        hash = h;
+        hash = h == null ? null : h.clone();
     }
 
+    /** @return the hash, shared with {@link #getTxId} and the UTXOs built from it; do not modify */
     public byte[] getHash() {
         return hash;
     }
 
+    /** @return the id of this transaction, over the array {@link #getHash} returns */
+    public TxId getTxId() {
+        TxId id = txId;
+        if (hash == null)
+            return null;
+        if (id == null || id.getBytes() != hash)
+            txId = id = TxId.wrap(hash);
+        return id;
+    }
+
+    /** Sets the hash to that of {@code id}, e.g. an interned one, sharing its bytes */
+    public void setTxId(TxId id) {
+        hash = id.getBytes();
+        txId = id;
+    }
+
     public ArrayList<Input> getInputs() {
         return inputs;
     }
@@ -0,0 +1,447 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An epoch of transactions in structure-of-arrays form.
+ *
+ * Transaction {@code t} owns inputs {@code firstInput[t]} to {@code firstInput[t + 1] - 1} and
+ * outputs {@code firstOutput[t]} to {@code firstOutput[t + 1] - 1}. Hashes and signatures of all
+ * transactions are packed into shared byte arrays addressed by offset, values are a
+ * {@code double[]} and addresses are ids into a table of distinct keys, so walking an epoch touches
+ * a handful of flat arrays instead of an object graph per transaction. A batch is built from
+ * {@link Transaction} objects with {@link #of} or decoded straight from the wire format written by
+ * {@link TransactionEncoder} with {@link #read}, and is immutable.
+ */
+public final class TransactionBatch {
+
+    private static final Transaction OUTER = new Transaction();
+
+    final int size;
+
+    final byte[] txHashes;
+    final int[] txHashOffset;
+    final int[] firstInput;
+    final int[] firstOutput;
+
+    final byte[] prevTxHashes;
+    final int[] prevTxHashOffset;
+    final int[] outputIndex;
+    final byte[] signatures;
+    final int[] signatureOffset;
+    /** Signature length per input, or -1 for a missing signature */
+    final int[] signatureLength;
+
+    final double[] value;
+    /** Address id per output, or -1 for a null address */
+    final int[] addressId;
+
+    final PublicKey[] addresses;
+    final byte[][] encodedAddresses;
+
+    /** The transactions the batch was built from, or null if it was decoded */
+    private final Transaction[] source;
+
+    private TransactionBatch(Builder b, Transaction[] source) {
+        this.size = b.txCount;
+        this.txHashes = Arrays.copyOf(b.txHashes, b.txHashLength);
+        this.txHashOffset = Arrays.copyOf(b.txHashOffset, size + 1);
+        this.firstInput = Arrays.copyOf(b.firstInput, size + 1);
+        this.firstOutput = Arrays.copyOf(b.firstOutput, size + 1);
+        int inputs = firstInput[size];
+        this.prevTxHashes = Arrays.copyOf(b.prevTxHashes, b.prevTxHashLength);
+        this.prevTxHashOffset = Arrays.copyOf(b.prevTxHashOffset, inputs + 1);
+        this.outputIndex = Arrays.copyOf(b.outputIndex, inputs);
+        this.signatures = Arrays.copyOf(b.signatures, b.signatureBytes);
+        this.signatureOffset = Arrays.copyOf(b.signatureOffset, inputs);
+        this.signatureLength = Arrays.copyOf(b.signatureLength, inputs);
+        int outputs = firstOutput[size];
+        this.value = Arrays.copyOf(b.value, outputs);
+        this.addressId = Arrays.copyOf(b.addressId, outputs);
+        this.addresses = b.addresses.toArray(new PublicKey[0]);
+        this.encodedAddresses = b.encodedAddresses.toArray(new byte[0][]);
+        this.source = source;
+    }
+
+    /** @return a batch holding {@code txs}, which must all be finalized */
+    public static TransactionBatch of(Transaction[] txs) {
+        Builder b = new Builder();
+        HashMap<PublicKey, Integer> ids = new HashMap<>();
+        for (Transaction tx : txs) {
+            if (tx.getHash() == null)
+                throw new IllegalArgumentException("transaction is not finalized");
+            b.txHash(tx.getHash(), 0, tx.getHash().length);
+            for (Transaction.Input in : tx.getInputs()) {
+                if (in.prevTxHash == null)
+                    throw new IllegalArgumentException("input without a previous tx hash");
+                b.input(in.prevTxHash, 0, in.prevTxHash.length, in.outputIndex);
+                if (in.signature == null)
+                    b.signature(null, 0, -1);
+                else
+                    b.signature(in.signature, 0, in.signature.length);
+            }
+            for (Transaction.Output op : tx.getOutputs()) {
+                int id = -1;
+                if (op.address != null) {
+                    Integer known = ids.get(op.address);
+                    if (known == null) {
+                        known = b.addresses.size();
+                        ids.put(op.address, known);
+                        b.address(op.address, op.encodedAddress());
+                    }
+                    id = known;
+                }
+                b.output(op.value, id);
+            }
+            b.endTx();
+        }
+        return new TransactionBatch(b, txs);
+    }
+
+    /** Decodes every transaction in {@code file}, ignoring epoch boundaries */
+    public static TransactionBatch read(Path file, PublicKeyCache keyCache) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (fc.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large for one batch");
+            return read(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), keyCache);
+        }
+    }
+
+    /**
+     * Decodes every transaction in the remaining bytes of {@code stream}, which must hold a whole
+     * stream, copying hashes and signatures straight into the batch columns. Like
+     * {@link TransactionDecoder}, it fails if a transaction's hash does not match its contents.
+     */
+    public static TransactionBatch read(ByteBuffer stream, PublicKeyCache keyCache) throws IOException {
+        ByteBuffer src = stream.slice();
+        Builder b = new Builder();
+        try {
+            if (src.remaining() < 5)
+                throw new EOFException("missing stream header");
+            if (src.getInt() != WireFormat.MAGIC)
+                throw new IOException("not a transaction stream");
+            byte version = src.get();
+            if (version != WireFormat.VERSION)
+                throw new IOException("unsupported stream version " + version);
+            while (src.hasRemaining()) {
+                byte tag = src.get();
+                int size = WireFormat.getVarInt(src);
+                if (size < 0 || size > src.remaining())
+                    throw new EOFException("truncated record");
+                int end = src.position() + size;
+                int limit = src.limit();
+                src.limit(end);
+                switch (tag) {
+                    case WireFormat.TAG_KEY:
+                        try {
+                            PublicKey key = keyCache.get(src);
+                            byte[] encoded = new byte[src.remaining()];
+                            src.get(encoded);
+                            b.address(key, encoded);
+                        } catch (InvalidKeySpecException e) {
+                            throw new IOException("invalid public key record", e);
+                        }
+                        break;
+                    case WireFormat.TAG_TX:
+                        readTx(src, b);
+                        break;
+                    default:
+                        // epoch markers and unknown records
+                        src.position(end);
+                }
+                if (src.position() != end)
+                    throw new IOException("record length mismatch");
+                src.limit(limit);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("record shorter than its contents", e);
+        }
+        TransactionBatch batch = new TransactionBatch(b, null);
+        MessageDigest md = WireFormat.newTxDigest();
+        for (int t = 0; t < batch.size; t++) {
+            if (!batch.hashMatches(t, md))
+                throw new IOException("hash of transaction " + t + " does not match its contents");
+        }
+        return batch;
+    }
+
+    private static void readTx(ByteBuffer src, Builder b) throws IOException {
+        int hashLength = WireFormat.getVarInt(src) - 1;
+        if (hashLength < 0)
+            throw new IOException("transaction without a hash");
+        b.txHash(src, hashLength);
+        int numInputs = WireFormat.getVarInt(src);
+        for (int i = 0; i < numInputs; i++) {
+            int prevLength = WireFormat.getVarInt(src) - 1;
+            if (prevLength < 0)
+                throw new IOException("input without a previous tx hash");
+            b.input(src, prevLength);
+            b.outputIndex[b.inputCount] = WireFormat.unZigZag(WireFormat.getVarInt(src));
+            b.signature(src, WireFormat.getVarInt(src) - 1);
+        }
+        int numOutputs = WireFormat.getVarInt(src);
+        for (int i = 0; i < numOutputs; i++) {
+            double v = src.getDouble();
+            int keyRef = WireFormat.getVarInt(src);
+            if (keyRef < 0 || keyRef > b.addresses.size())
+                throw new IOException("undefined public key id " + (keyRef - 1));
+            b.output(v, keyRef - 1);
+        }
+        b.endTx();
+    }
+
+    /** @return the number of transactions */
+    public int size() {
+        return size;
+    }
+
+    public int numInputs(int tx) {
+        return firstInput[tx + 1] - firstInput[tx];
+    }
+
+    public int numOutputs(int tx) {
+        return firstOutput[tx + 1] - firstOutput[tx];
+    }
+
+    /** @return a copy of the hash of transaction {@code tx} */
+    public byte[] getHash(int tx) {
+        return Arrays.copyOfRange(txHashes, txHashOffset[tx], txHashOffset[tx + 1]);
+    }
+
+    /** @return the UTXO spent by input {@code input}, a global input index */
+    UTXO spentBy(int input) {
+        int from = prevTxHashOffset[input];
+        return new UTXO(prevTxHashes, from, prevTxHashOffset[input + 1] - from, outputIndex[input]);
+    }
+
+    /** @return output {@code o} of transaction {@code tx} as a UTXO */
+    UTXO createdBy(int tx, int o) {
+        int from = txHashOffset[tx];
+        return new UTXO(txHashes, from, txHashOffset[tx + 1] - from, o);
+    }
+
+    /** @return output {@code output}, a global output index, as an object for a {@link UTXOPool} */
+    Transaction.Output output(int tx, int output) {
+        if (source != null)
+            return source[tx].getOutput(output - firstOutput[tx]);
+        int id = addressId[output];
+        return OUTER.new Output(value[output], id < 0 ? null : addresses[id]);
+    }
+
+    /** @return transaction {@code tx}, the original object if the batch was built from objects */
+    public Transaction toTransaction(int tx) {
+        if (source != null)
+            return source[tx];
+        Transaction t = new Transaction();
+        for (int i = firstInput[tx]; i < firstInput[tx + 1]; i++) {
+            TxId prevId = TxId.wrap(Arrays.copyOfRange(prevTxHashes, prevTxHashOffset[i], prevTxHashOffset[i + 1]));
+            Transaction.Input in = t.new Input(prevId, outputIndex[i]);
+            t.getInputs().add(in);
+            if (signatureLength[i] >= 0)
+                in.signature = Arrays.copyOfRange(signatures, signatureOffset[i], signatureOffset[i] + signatureLength[i]);
+        }
+        for (int o = firstOutput[tx]; o < firstOutput[tx + 1]; o++)
+            t.addOutput(value[o], addressId[o] < 0 ? null : addresses[addressId[o]]);
+        t.setTxId(TxId.wrap(getHash(tx)));
+        return t;
+    }
+
+    /**
+     * Feeds the data to sign for input {@code input} of transaction {@code tx} into {@code sig},
+     * byte for byte the same as {@link TransactionSerializer#updateRawDataToSign}.
+     *
+     * @return false if an output has no address, so there is no data to sign
+     */
+    boolean updateRawDataToSign(int tx, int input, Signature sig) throws SignatureException {
+        for (int o = firstOutput[tx]; o < firstOutput[tx + 1]; o++) {
+            if (addressId[o] < 0)
+                return false;
+        }
+        int from = prevTxHashOffset[input];
+        sig.update(prevTxHashes, from, prevTxHashOffset[input + 1] - from);
+        int v = outputIndex[input];
+        for (int shift = 24; shift >= 0; shift -= 8)
+            sig.update((byte) (v >>> shift));
+        for (int o = firstOutput[tx]; o < firstOutput[tx + 1]; o++) {
+            long bits = Double.doubleToRawLongBits(value[o]);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                sig.update((byte) (bits >>> shift));
+            sig.update(encodedAddresses[addressId[o]]);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the hash of transaction {@code tx} is the digest of its raw form, byte for
+     *         byte as {@link TransactionSerializer#digestRawTx} computes it
+     */
+    private boolean hashMatches(int tx, MessageDigest md) {
+        for (int o = firstOutput[tx]; o < firstOutput[tx + 1]; o++) {
+            if (addressId[o] < 0)
+                return false;
+        }
+        for (int in = firstInput[tx]; in < firstInput[tx + 1]; in++) {
+            int from = prevTxHashOffset[in];
+            md.update(prevTxHashes, from, prevTxHashOffset[in + 1] - from);
+            int v = outputIndex[in];
+            for (int shift = 24; shift >= 0; shift -= 8)
+                md.update((byte) (v >>> shift));
+            if (signatureLength[in] >= 0)
+                md.update(signatures, signatureOffset[in], signatureLength[in]);
+        }
+        for (int o = firstOutput[tx]; o < firstOutput[tx + 1]; o++) {
+            long bits = Double.doubleToRawLongBits(value[o]);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                md.update((byte) (bits >>> shift));
+            md.update(encodedAddresses[addressId[o]]);
+        }
+        int from = txHashOffset[tx];
+        byte[] digest = md.digest();
+        return Arrays.equals(digest, 0, digest.length, txHashes, from, txHashOffset[tx + 1]);
+    }
+
+    /** Growable columns, filled one transaction at a time */
+    private static final class Builder {
+        int txCount;
+        byte[] txHashes = new byte[1024];
+        int txHashLength;
+        int[] txHashOffset = new int[33];
+        int[] firstInput = new int[33];
+        int[] firstOutput = new int[33];
+
+        int inputCount;
+        byte[] prevTxHashes = new byte[1024];
+        int prevTxHashLength;
+        int[] prevTxHashOffset = new int[65];
+        int[] outputIndex = new int[64];
+        byte[] signatures = new byte[4096];
+        int signatureBytes;
+        int[] signatureOffset = new int[64];
+        int[] signatureLength = new int[64];
+
+        int outputCount;
+        double[] value = new double[64];
+        int[] addressId = new int[64];
+
+        final ArrayList<PublicKey> addresses = new ArrayList<>();
+        final ArrayList<byte[]> encodedAddresses = new ArrayList<>();
+
+        void txHash(byte[] src, int from, int length) {
+            txHashes = grow(txHashes, txHashLength + length);
+            System.arraycopy(src, from, txHashes, txHashLength, length);
+            txHashLength += length;
+        }
+
+        void txHash(ByteBuffer src, int length) throws IOException {
+            checkLength(src, length);
+            txHashes = grow(txHashes, txHashLength + length);
+            src.get(txHashes, txHashLength, length);
+            txHashLength += length;
+        }
+
+        void input(byte[] src, int from, int length, int index) {
+            beginInput(length, index);
+            System.arraycopy(src, from, prevTxHashes, prevTxHashLength, length);
+            prevTxHashLength += length;
+        }
+
+        /** Adds an input whose index is set separately, as the wire format stores it after the hash */
+        void input(ByteBuffer src, int length) throws IOException {
+            checkLength(src, length);
+            beginInput(length, 0);
+            src.get(prevTxHashes, prevTxHashLength, length);
+            prevTxHashLength += length;
+        }
+
+        private void beginInput(int length, int index) {
+            prevTxHashes = grow(prevTxHashes, prevTxHashLength + length);
+            if (inputCount + 2 > prevTxHashOffset.length) {
+                int capacity = prevTxHashOffset.length * 2;
+                prevTxHashOffset = Arrays.copyOf(prevTxHashOffset, capacity);
+                outputIndex = Arrays.copyOf(outputIndex, capacity);
+                signatureOffset = Arrays.copyOf(signatureOffset, capacity);
+                signatureLength = Arrays.copyOf(signatureLength, capacity);
+            }
+            prevTxHashOffset[inputCount] = prevTxHashLength;
+            prevTxHashOffset[inputCount + 1] = prevTxHashLength + length;
+            outputIndex[inputCount] = index;
+        }
+
+        /** Sets the signature of the input just added; a negative length means none */
+        void signature(byte[] src, int from, int length) {
+            signatureOffset[inputCount] = signatureBytes;
+            signatureLength[inputCount] = length;
+            if (length > 0) {
+                signatures = grow(signatures, signatureBytes + length);
+                System.arraycopy(src, from, signatures, signatureBytes, length);
+                signatureBytes += length;
+            }
+            inputCount++;
+        }
+
+        void signature(ByteBuffer src, int length) throws IOException {
+            if (length != -1)
+                checkLength(src, length);
+            signatureOffset[inputCount] = signatureBytes;
+            signatureLength[inputCount] = length;
+            if (length > 0) {
+                signatures = grow(signatures, signatureBytes + length);
+                src.get(signatures, signatureBytes, length);
+                signatureBytes += length;
+            }
+            inputCount++;
+        }
+
+        /** Rejects a length read from the wire before anything is allocated for it */
+        private static void checkLength(ByteBuffer src, int length) throws IOException {
+            if (length < 0 || length > src.remaining())
+                throw new IOException("byte array length " + length + " exceeds record");
+        }
+
+        void output(double v, int id) {
+            if (outputCount == value.length) {
+                value = Arrays.copyOf(value, outputCount * 2);
+                addressId = Arrays.copyOf(addressId, outputCount * 2);
+            }
+            value[outputCount] = v;
+            addressId[outputCount] = id;
+            outputCount++;
+        }
+
+        void address(PublicKey key, byte[] encoded) {
+            addresses.add(key);
+            encodedAddresses.add(encoded);
+        }
+
+        void endTx() {
+            if (txCount + 2 > txHashOffset.length) {
+                int capacity = txHashOffset.length * 2;
+                txHashOffset = Arrays.copyOf(txHashOffset, capacity);
+                firstInput = Arrays.copyOf(firstInput, capacity);
+                firstOutput = Arrays.copyOf(firstOutput, capacity);
+            }
+            txCount++;
+            txHashOffset[txCount] = txHashLength;
+            firstInput[txCount] = inputCount;
+            firstOutput[txCount] = outputCount;
+        }
+
+        private static byte[] grow(byte[] array, int needed) {
+            return needed <= array.length ? array : Arrays.copyOf(array, Math.max(needed, array.length * 2));
+        }
+    }
+}
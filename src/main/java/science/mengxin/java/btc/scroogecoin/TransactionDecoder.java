@@ -0,0 +1,267 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+
+/**
+ * Streams transactions out of the binary wire format written by {@link TransactionEncoder}.
+ *
+ * The decoder reads either from a {@link ReadableByteChannel} through a reusable buffer, or
+ * directly from a buffer holding the whole stream, such as a memory-mapped file; in both cases
+ * hashes and signatures are copied exactly once, into the arrays the transaction keeps. Key
+ * records are resolved through a {@link PublicKeyCache}, so every output paying to the same key
+ * shares one {@link PublicKey}. Transaction hashes go through a {@link TxIdInterner}, so an input
+ * spending a transaction decoded shortly before shares its {@link TxId} and bytes. Each decoder has
+ * its own interner of {@link TxIdInterner#DEFAULT_CAPACITY} ids unless it is given one, which
+ * decoders reading related streams may share.
+ *
+ * The hash on the wire is never trusted: it is recomputed from the decoded transaction, and a
+ * transaction whose hash does not match its contents fails the stream with an {@link IOException}.
+ */
+public class TransactionDecoder implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final PublicKeyCache keyCache;
+    private final ArrayList<PublicKey> keys = new ArrayList<>();
+    private final MessageDigest txDigest = WireFormat.newTxDigest();
+    private final TxIdInterner txIds;
+    private ByteBuffer buffer;
+    private boolean endOfEpoch;
+
+    /** Creates a decoder reading from {@code channel} with a private key cache */
+    public TransactionDecoder(ReadableByteChannel channel) throws IOException {
+        this(channel, new PublicKeyCache());
+    }
+
+    public TransactionDecoder(ReadableByteChannel channel, PublicKeyCache keyCache) throws IOException {
+        this(channel, keyCache, new TxIdInterner());
+    }
+
+    public TransactionDecoder(ReadableByteChannel channel, PublicKeyCache keyCache, TxIdInterner txIds) throws IOException {
+        this.channel = channel;
+        this.keyCache = keyCache;
+        this.txIds = txIds;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.flip();
+        readHeader();
+    }
+
+    /** Creates a decoder over the remaining bytes of {@code stream}, which must hold a whole stream */
+    public TransactionDecoder(ByteBuffer stream, PublicKeyCache keyCache) throws IOException {
+        this(stream, keyCache, new TxIdInterner());
+    }
+
+    public TransactionDecoder(ByteBuffer stream, PublicKeyCache keyCache, TxIdInterner txIds) throws IOException {
+        this.channel = null;
+        this.keyCache = keyCache;
+        this.txIds = txIds;
+        this.buffer = stream.slice();
+        readHeader();
+    }
+
+    /** Opens {@code file} memory-mapped, or streamed if it is too large to map in one piece */
+    public static TransactionDecoder open(Path file, PublicKeyCache keyCache) throws IOException {
+        return open(file, keyCache, new TxIdInterner());
+    }
+
+    public static TransactionDecoder open(Path file, PublicKeyCache keyCache, TxIdInterner txIds) throws IOException {
+        FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (fc.size() > Integer.MAX_VALUE)
+                return new TransactionDecoder(fc, keyCache, txIds);
+            ByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            // the mapping stays valid after the channel is closed
+            fc.close();
+            return new TransactionDecoder(mapped, keyCache, txIds);
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /** @return the next transaction, skipping epoch boundaries, or null at the end of the stream */
+    public Transaction next() throws IOException {
+        Transaction tx;
+        while ((tx = nextRecord()) == null && endOfEpoch)
+            endOfEpoch = false;
+        return tx;
+    }
+
+    /**
+     * @return the transactions up to the next epoch boundary or the end of the stream, or null if
+     *         the stream has ended
+     */
+    public Transaction[] nextEpoch() throws IOException {
+        ArrayList<Transaction> txs = new ArrayList<>();
+        Transaction tx;
+        while ((tx = nextRecord()) != null)
+            txs.add(tx);
+        if (!endOfEpoch && txs.isEmpty())
+            return null;
+        endOfEpoch = false;
+        return txs.toArray(new Transaction[0]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+
+    private void readHeader() throws IOException {
+        if (!require(5))
+            throw new EOFException("missing stream header");
+        int magic = buffer.getInt();
+        byte version = buffer.get();
+        if (magic != WireFormat.MAGIC)
+            throw new IOException("not a transaction stream");
+        if (version != WireFormat.VERSION)
+            throw new IOException("unsupported stream version " + version);
+    }
+
+    /**
+     * Reads records up to the next transaction. Returns null either at the end of the stream or,
+     * with {@code endOfEpoch} set, at an epoch boundary.
+     */
+    private Transaction nextRecord() throws IOException {
+        while (true) {
+            if (!require(1))
+                return null;
+            byte tag = buffer.get();
+            int size = readLength();
+            if (size < 0 || size > WireFormat.MAX_RECORD_BYTES)
+                throw new IOException("invalid record length " + size);
+            if (!require(size))
+                throw new EOFException("truncated record");
+            int end = buffer.position() + size;
+            int limit = buffer.limit();
+            buffer.limit(end);
+            try {
+                switch (tag) {
+                    case WireFormat.TAG_KEY:
+                        readKey();
+                        break;
+                    case WireFormat.TAG_TX:
+                        Transaction tx = readTx();
+                        checkEnd(end);
+                        return tx;
+                    case WireFormat.TAG_EPOCH:
+                        checkEnd(end);
+                        endOfEpoch = true;
+                        return null;
+                    default:
+                        // unknown records from newer writers are skipped
+                        buffer.position(end);
+                }
+                checkEnd(end);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("record shorter than its contents", e);
+            } finally {
+                buffer.limit(limit);
+            }
+        }
+    }
+
+    private void readKey() throws IOException {
+        try {
+            keys.add(keyCache.get(buffer));
+        } catch (InvalidKeySpecException e) {
+            throw new IOException("invalid public key record", e);
+        }
+        buffer.position(buffer.limit());
+    }
+
+    private Transaction readTx() throws IOException {
+        Transaction tx = new Transaction();
+        // the decoded arrays are fresh, hand them over instead of letting Input copy them
+        byte[] hash = WireFormat.getBytes(buffer);
+        int numInputs = WireFormat.getVarInt(buffer);
+        for (int i = 0; i < numInputs; i++) {
+            byte[] prevTxHash = WireFormat.getBytes(buffer);
+            int outputIndex = WireFormat.unZigZag(WireFormat.getVarInt(buffer));
+            if (prevTxHash == null)
+                tx.addInput(null, outputIndex);
+            else
+                tx.addInput(new UTXO(txIds.internOwned(prevTxHash), outputIndex));
+            tx.getInput(i).signature = WireFormat.getBytes(buffer);
+        }
+        int numOutputs = WireFormat.getVarInt(buffer);
+        for (int i = 0; i < numOutputs; i++) {
+            double value = buffer.getDouble();
+            int keyRef = WireFormat.getVarInt(buffer);
+            if (keyRef < 0 || keyRef > keys.size())
+                throw new IOException("undefined public key id " + (keyRef - 1));
+            tx.addOutput(value, keyRef == 0 ? null : keys.get(keyRef - 1));
+        }
+        // only a checked hash may be interned, or a peer could pick the id other inputs resolve to
+        if (hash != null) {
+            checkHash(tx, hash);
+            tx.setTxId(txIds.internOwned(hash));
+        }
+        return tx;
+    }
+
+    private void checkHash(Transaction tx, byte[] hash) throws IOException {
+        // a transaction paying to no one has no raw form to hash
+        for (Transaction.Output op : tx.getOutputs()) {
+            if (op.address == null)
+                throw new IOException("transaction hash does not match its contents");
+        }
+        TransactionSerializer.digestRawTx(tx, txDigest);
+        if (!MessageDigest.isEqual(txDigest.digest(), hash))
+            throw new IOException("transaction hash does not match its contents");
+    }
+
+    private int readLength() throws IOException {
+        require(WireFormat.MAX_VARINT_BYTES);
+        try {
+            return WireFormat.getVarInt(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("truncated record header");
+        }
+    }
+
+    private void checkEnd(int end) throws IOException {
+        if (buffer.position() != end)
+            throw new IOException("record length mismatch");
+    }
+
+    /**
+     * Makes at least {@code n} bytes available at the buffer position, reading from the channel
+     * if there is one.
+     *
+     * @return false if the stream ends first
+     */
+    private boolean require(int n) throws IOException {
+        if (buffer.remaining() >= n)
+            return true;
+        if (channel == null)
+            return false;
+        if (n > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(n, buffer.capacity() * 2));
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < n) {
+            if (channel.read(buffer) < 0)
+                break;
+        }
+        buffer.flip();
+        return buffer.remaining() >= n;
+    }
+}
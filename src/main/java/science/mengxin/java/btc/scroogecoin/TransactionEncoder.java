@@ -0,0 +1,128 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.PublicKey;
+import java.util.HashMap;
+
+/**
+ * Writes transactions in the versioned binary wire format read by {@link TransactionDecoder}.
+ *
+ * A stream is a header (magic and version) followed by records, each a tag byte, the varint
+ * length of its body, and the body. Public keys are written once, in a key record, the first time
+ * an output pays to them; later outputs refer to them by id. Epoch records separate the
+ * transactions of consecutive epochs.
+ */
+public class TransactionEncoder implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final HashMap<PublicKey, Integer> keyIds = new HashMap<>();
+
+    /** Creates an encoder writing to {@code channel}, starting with the stream header */
+    public TransactionEncoder(WritableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.putInt(WireFormat.MAGIC);
+        buffer.put(WireFormat.VERSION);
+    }
+
+    /** Appends {@code tx}, defining any public keys it pays to that are new to this stream */
+    public void write(Transaction tx) throws IOException {
+        for (Transaction.Output op : tx.getOutputs()) {
+            if (op.address != null && !keyIds.containsKey(op.address))
+                writeKey(op.address, op.encodedAddress());
+        }
+
+        int size = WireFormat.bytesSize(tx.getHash()) + WireFormat.varIntSize(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            size += WireFormat.bytesSize(in.prevTxHash)
+                    + WireFormat.varIntSize(WireFormat.zigZag(in.outputIndex))
+                    + WireFormat.bytesSize(in.signature);
+        }
+        size += WireFormat.varIntSize(tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            size += Double.BYTES + WireFormat.varIntSize(keyRef(op.address));
+        }
+
+        ByteBuffer dst = beginRecord(WireFormat.TAG_TX, size);
+        WireFormat.putBytes(dst, tx.getHash());
+        WireFormat.putVarInt(dst, tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            WireFormat.putBytes(dst, in.prevTxHash);
+            WireFormat.putVarInt(dst, WireFormat.zigZag(in.outputIndex));
+            WireFormat.putBytes(dst, in.signature);
+        }
+        WireFormat.putVarInt(dst, tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            dst.putDouble(op.value);
+            WireFormat.putVarInt(dst, keyRef(op.address));
+        }
+        endRecord(dst);
+    }
+
+    public void writeAll(Transaction[] txs) throws IOException {
+        for (Transaction tx : txs)
+            write(tx);
+    }
+
+    /** Marks the end of the current epoch */
+    public void endEpoch() throws IOException {
+        endRecord(beginRecord(WireFormat.TAG_EPOCH, 0));
+    }
+
+    /** Writes out everything buffered so far */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /** Flushes and closes the underlying channel */
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private void writeKey(PublicKey key, byte[] encoded) throws IOException {
+        ByteBuffer dst = beginRecord(WireFormat.TAG_KEY, encoded.length);
+        dst.put(encoded);
+        endRecord(dst);
+        keyIds.put(key, keyIds.size());
+    }
+
+    /** @return the key id plus one, or zero for a null address */
+    private int keyRef(PublicKey key) {
+        return key == null ? 0 : keyIds.get(key) + 1;
+    }
+
+    /**
+     * @return a buffer with room for a record body of {@code size} bytes, already holding its tag
+     *         and length: the shared buffer if it fits there, else a dedicated one
+     */
+    private ByteBuffer beginRecord(byte tag, int size) throws IOException {
+        if (size > WireFormat.MAX_RECORD_BYTES)
+            throw new IOException("record of " + size + " bytes exceeds " + WireFormat.MAX_RECORD_BYTES);
+        int total = 1 + WireFormat.varIntSize(size) + size;
+        if (buffer.remaining() < total)
+            flush();
+        ByteBuffer dst = total <= buffer.capacity() ? buffer : ByteBuffer.allocate(total);
+        dst.put(tag);
+        WireFormat.putVarInt(dst, size);
+        return dst;
+    }
+
+    private void endRecord(ByteBuffer dst) throws IOException {
+        if (dst == buffer)
+            return;
+        dst.flip();
+        while (dst.hasRemaining())
+            channel.write(dst);
+    }
+}
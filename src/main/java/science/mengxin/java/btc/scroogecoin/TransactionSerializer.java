@@ -0,0 +1,148 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Writes the raw forms of a {@link Transaction} without intermediate collections.
+ *
+ * The raw transaction is, for each input, its previous tx hash, output index and signature,
+ * followed by, for each output, its value and encoded address. The data to sign for input
+ * {@code i} is that input's previous tx hash and output index followed by all outputs. Ints and
+ * doubles are big-endian. Sizes are computed up front so callers can supply a buffer of the exact
+ * length, heap or direct, or stream the bytes straight into a digest or signature engine.
+ */
+public final class TransactionSerializer {
+
+    private TransactionSerializer() {
+    }
+
+    /** @return the length of {@link Transaction#getRawTx()} for {@code tx} */
+    public static int rawTxSize(Transaction tx) {
+        int size = 0;
+        for (Transaction.Input in : tx.getInputs()) {
+            size += length(in.prevTxHash) + Integer.BYTES + length(in.signature);
+        }
+        return size + outputsSize(tx);
+    }
+
+    /** @return the length of {@link Transaction#getRawDataToSign(int)} for {@code tx} and {@code index} */
+    public static int rawDataToSignSize(Transaction tx, int index) {
+        Transaction.Input in = tx.getInputs().get(index);
+        return length(in.prevTxHash) + Integer.BYTES + outputsSize(tx);
+    }
+
+    /**
+     * Writes the raw transaction at the position of {@code dst}, advancing it by
+     * {@link #rawTxSize}.
+     */
+    public static void writeRawTx(Transaction tx, ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        try {
+            for (Transaction.Input in : tx.getInputs()) {
+                putBytes(dst, in.prevTxHash);
+                dst.putInt(in.outputIndex);
+                putBytes(dst, in.signature);
+            }
+            writeOutputs(tx, dst);
+        } finally {
+            dst.order(order);
+        }
+    }
+
+    /**
+     * Writes the data to sign for input {@code index} at the position of {@code dst}, advancing it
+     * by {@link #rawDataToSignSize}.
+     */
+    public static void writeRawDataToSign(Transaction tx, int index, ByteBuffer dst) {
+        Transaction.Input in = tx.getInputs().get(index);
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        try {
+            putBytes(dst, in.prevTxHash);
+            dst.putInt(in.outputIndex);
+            writeOutputs(tx, dst);
+        } finally {
+            dst.order(order);
+        }
+    }
+
+    /** Feeds the raw transaction into {@code md} */
+    public static void digestRawTx(Transaction tx, MessageDigest md) {
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null)
+                md.update(in.prevTxHash);
+            int v = in.outputIndex;
+            for (int shift = 24; shift >= 0; shift -= 8)
+                md.update((byte) (v >>> shift));
+            if (in.signature != null)
+                md.update(in.signature);
+        }
+        for (Transaction.Output op : tx.getOutputs()) {
+            long bits = Double.doubleToRawLongBits(op.value);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                md.update((byte) (bits >>> shift));
+            md.update(op.encodedAddress());
+        }
+    }
+
+    /** Feeds the data to sign for input {@code index} into {@code md} */
+    public static void digestRawDataToSign(Transaction tx, int index, MessageDigest md) {
+        Transaction.Input in = tx.getInputs().get(index);
+        if (in.prevTxHash != null)
+            md.update(in.prevTxHash);
+        int v = in.outputIndex;
+        for (int shift = 24; shift >= 0; shift -= 8)
+            md.update((byte) (v >>> shift));
+        for (Transaction.Output op : tx.getOutputs()) {
+            long bits = Double.doubleToRawLongBits(op.value);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                md.update((byte) (bits >>> shift));
+            md.update(op.encodedAddress());
+        }
+    }
+
+    /** Feeds the data to sign for input {@code index} into {@code sig} */
+    public static void updateRawDataToSign(Transaction tx, int index, Signature sig) throws SignatureException {
+        Transaction.Input in = tx.getInputs().get(index);
+        if (in.prevTxHash != null)
+            sig.update(in.prevTxHash);
+        int v = in.outputIndex;
+        for (int shift = 24; shift >= 0; shift -= 8)
+            sig.update((byte) (v >>> shift));
+        for (Transaction.Output op : tx.getOutputs()) {
+            long bits = Double.doubleToRawLongBits(op.value);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                sig.update((byte) (bits >>> shift));
+            sig.update(op.encodedAddress());
+        }
+    }
+
+    private static int outputsSize(Transaction tx) {
+        int size = 0;
+        for (Transaction.Output op : tx.getOutputs()) {
+            size += Double.BYTES + op.encodedAddress().length;
+        }
+        return size;
+    }
+
+    private static void writeOutputs(Transaction tx, ByteBuffer dst) {
+        for (Transaction.Output op : tx.getOutputs()) {
+            dst.putDouble(op.value);
+            dst.put(op.encodedAddress());
+        }
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer dst, byte[] bytes) {
+        if (bytes != null)
+            dst.put(bytes);
+    }
+}
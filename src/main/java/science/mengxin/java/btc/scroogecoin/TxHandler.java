@@ -1,12 +1,35 @@
 package science.mengxin.java.btc.scroogecoin;
 
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.function.BinaryOperator;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
 
 public class TxHandler {
-    UTXOPool pool;
+    /** Number of verified input signatures remembered across epochs by default */
+    public static final int DEFAULT_SIGNATURE_CACHE_SIZE = 1 << 16;
+
+    /**
+     * The ledger. Each epoch is applied to a pool of its own from {@link UTXOPool#beginEpoch},
+     * which becomes the ledger once, at the end of {@link #handleTxs}; volatile so other threads
+     * may read it while an epoch runs.
+     */
+    volatile UTXOPool pool;
+
+    /** Signatures that already verified, so re-validation skips the RSA check; null disables it */
+    private SignatureCache signatureCache = new SignatureCache(DEFAULT_SIGNATURE_CACHE_SIZE);
+
+    /** Verifies epoch signatures in parallel when set; null keeps verification on the calling thread */
+    private ParallelSignatureVerifier verifier;
+
+    /** Transactions carried over to later epochs while their parents are unknown; null drops them */
+    private OrphanPool orphans;
+
+    /** Counters and latencies; null, the default, records nothing */
+    private HandlerMetrics metrics;
+
+    /** Signature results of the epoch currently being handled, if verified in parallel */
+    private ParallelSignatureVerifier.Results verified;
 
     public UTXOPool getPool() {
         return pool;
@@ -29,6 +52,73 @@ public class TxHandler {
         pool = utxoPool;
     }
 
+    /**
+     * Creates a ledger like {@link #TxHandler(UTXOPool)} that verifies the signatures of each epoch
+     * on {@code forkJoinPool} before applying it. The accepted transactions and the resulting pool
+     * are the same as with sequential verification.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool forkJoinPool) {
+        pool = utxoPool;
+        setVerificationPool(forkJoinPool);
+    }
+
+    /** Enables parallel signature verification on {@code forkJoinPool}, or disables it if null */
+    public void setVerificationPool(ForkJoinPool forkJoinPool) {
+        verifier = forkJoinPool == null ? null : new ParallelSignatureVerifier(forkJoinPool);
+    }
+
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /** Replaces the verified-signature cache, e.g. to share one between handlers; null disables caching */
+    public void setSignatureCache(SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    public HandlerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Starts recording into {@code metrics}, or stops recording if null */
+    public void setMetrics(HandlerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public OrphanPool getOrphanPool() {
+        return orphans;
+    }
+
+    /**
+     * Keeps transactions spending unknown outputs in {@code orphanPool} and re-submits them with
+     * the later epochs that propose their parents; null, the default, drops them after each epoch
+     */
+    public void setOrphanPool(OrphanPool orphanPool) {
+        this.orphans = orphanPool;
+    }
+
+    /** @return true if the signature on input {@code index} of {@code tx} is valid under {@code address} */
+    boolean verifyInputSignature(Transaction tx, int index, PublicKey address) {
+        SignatureCache cache = signatureCache;
+        SignatureCache.Key key = cache == null ? null : SignatureCache.Key.of(tx, index);
+        if (cache != null && cache.isVerified(key, address))
+            return true;
+        Boolean result = verified == null ? null : verified.get(tx, index, address);
+        boolean valid;
+        if (result != null) {
+            valid = result;
+        } else if (metrics == null) {
+            valid = Crypto.verifySignature(address, tx, index, tx.getInput(index).signature);
+        } else {
+            long start = System.nanoTime();
+            valid = Crypto.verifySignature(address, tx, index, tx.getInput(index).signature);
+            metrics.recordSignature(System.nanoTime() - start);
+        }
+        if (valid && cache != null)
+            cache.markVerified(key, address);
+        return valid;
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current ScroogeCore.UTXO pool,
@@ -39,21 +129,22 @@ public class TxHandler {
      * values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
+        UTXOPool pool = this.pool;
         HashSet<UTXO> utxoSet = new HashSet<>();
         double sumOfInputVals = 0, sumOfOutputVals = 0;
         int i = 0;
         // traverse all the input in the transaction,
         for (Transaction.Input input : tx.getInputs()) {
             // create unspent transaction output based on input information
-            UTXO lastUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            // check 1 - all output claimed by tx are in current utxopool
-            if (!pool.contains(lastUTXO)) {
+            UTXO lastUTXO = input.getUTXO();
+            // check 1 - all output claimed by tx are in current utxopool; one lookup, since a
+            // pool committed in place by another thread may drop the output between two
+            Transaction.Output prevTx = pool.getTxOutput(lastUTXO);
+            if (prevTx == null) {
                 return false;
             }
-            // pool contain the utxo, get the output
-            Transaction.Output prevTx = pool.getTxOutput(lastUTXO);
             // check 2 - signatures of each input are valid
-            if (input.signature == null || !Crypto.verifySignature(prevTx.address, tx.getRawDataToSign(i), input.signature)) {
+            if (input.signature == null || !verifyInputSignature(tx, i, prevTx.address)) {
                 return false;
             }
             // signature verify successfully, add it to spend set.
@@ -82,90 +173,173 @@ public class TxHandler {
     }
 
     public ThreeState isValidTxV2(Transaction tx) {
+        return validate(tx).getState();
+    }
+
+    /**
+     * Classifies {@code tx} like {@link #isValidTxV2}. A MAYBE result also lists every outpoint
+     * {@code tx} spends that is not in the pool; signatures after the first missing input are not
+     * checked.
+     */
+    public ValidationResult validate(Transaction tx) {
+        return validate(tx, pool);
+    }
+
+    /** Classifies {@code tx} like {@link #validate(Transaction)}, against {@code pool} */
+    ValidationResult validate(Transaction tx, UTXOPool pool) {
         HashSet<UTXO> utxoSet = new HashSet<>();
         double sumOfInputVals = 0, sumOfOutputVals = 0;
+        ArrayList<UTXO> missing = null;
         int i = 0;
         for (Transaction.Input input : tx.getInputs()) {
-            UTXO lastUTXO = new UTXO(input.prevTxHash, input.outputIndex);
+            UTXO lastUTXO = input.getUTXO();
+            // check 1 - all output claimed by tx are in current utxopool, with a single lookup
             Transaction.Output prevTx = pool.getTxOutput(lastUTXO);
-            // check 1 - all output claimed by tx are in current utxopool
-            if (!pool.contains(lastUTXO)) {
-                return ThreeState.MAYBE;
+            if (prevTx == null) {
+                if (missing == null)
+                    missing = new ArrayList<>();
+                missing.add(lastUTXO);
+            } else if (missing == null) {
+                // check 2 - signatures of each input are valid
+                if (input.signature == null || !verifyInputSignature(tx, i, prevTx.address)) {
+                    return ValidationResult.invalid();
+                }
+                utxoSet.add(lastUTXO);
+                sumOfInputVals += prevTx.value;
             }
-            // check 2 - signatures of each input are valid
-            if (input.signature == null || !Crypto.verifySignature(prevTx.address, tx.getRawDataToSign(i), input.signature)) {
-                return ThreeState.FALSE;
-            }
-            utxoSet.add(lastUTXO);
-            sumOfInputVals += prevTx.value;
             i++;
         }
+        if (missing != null)
+            return ValidationResult.missing(missing);
 
         // check 3 - no utxo is claimed multiple times
         if (utxoSet.size() != tx.getInputs().size())
-            return ThreeState.FALSE;
+            return ValidationResult.invalid();
 
         // check 4 - non negative output values
         for (Transaction.Output output : tx.getOutputs()) {
             sumOfOutputVals += output.value;
             if (output.value < 0)
-                return ThreeState.FALSE;
+                return ValidationResult.invalid();
         }
 
         // check 5 - validating input values >= sum of output values
         if (sumOfInputVals < sumOfOutputVals)
-            return ThreeState.FALSE;
-        ;
+            return ValidationResult.invalid();
 
-        return ThreeState.TRUE;
+        return ValidationResult.valid();
     }
 
-    private static <T> BinaryOperator<ArrayList<T>> arrayListMerger() {
-        return (u, v) -> {
-            ArrayList<T> temp = new ArrayList<>();
-            temp.addAll(u);
-            temp.addAll(v);
-            return temp;
-        };
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
+     * transaction for correctness, returning a mutually valid array of accepted transactions, and
+     * updating the current ScroogeCore.UTXO pool as appropriate.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        Transaction[] epoch = possibleTxs;
+        List<Transaction> carried = Collections.emptyList();
+        if (orphans != null) {
+            carried = orphans.waitersOf(Arrays.asList(possibleTxs));
+            epoch = withOrphans(possibleTxs, carried);
+        }
+        UTXOPool live = pool;
+        UTXOPool ledger = live.beginEpoch();
+        Transaction[] accepted = verifyAndHandle(epoch, ledger);
+        if (orphans != null)
+            keepOrphans(possibleTxs, carried, accepted, ledger);
+        UTXOPool next = live.endEpoch(ledger);
+        pool = next;
+        if (metrics != null)
+            metrics.recordEpoch(epoch, accepted, next, System.nanoTime() - start);
+        return accepted;
     }
 
-    private Map<ComparableTransactionInput, ArrayList<Transaction>> getInputTransactionMap(ArrayList<Transaction> iValidTxns) {
-        Map<ComparableTransactionInput, ArrayList<Transaction>> inputTxn = iValidTxns.stream().map(tx -> {
-            Map<ComparableTransactionInput, ArrayList<Transaction>> inputTxMap = new HashMap<ComparableTransactionInput, ArrayList<Transaction>>();
-            ArrayList<Transaction> at = new ArrayList<Transaction>();
-            at.add(tx);
-            for (Transaction.Input input : tx.getInputs()) {
-                inputTxMap.put(new ComparableTransactionInput(input.prevTxHash, input.outputIndex), at);
-            }
-            return inputTxMap;
-        }).map(Map::entrySet).flatMap(Set::stream)
-                .collect(
-                        Collectors.toMap(
-                                Entry::getKey,
-                                Entry::getValue,
-                                arrayListMerger()
-                        ));
-        return inputTxn;
-    }
-
-    private boolean checkIfMutuallyValid(ArrayList<Transaction> goodTxnSet, Transaction tx, UTXOPool pool) {
-        goodTxnSet.add(tx);
-        Map<ComparableTransactionInput, ArrayList<Transaction>> inputTransactionMap = getInputTransactionMap(goodTxnSet);
-
-        for (ComparableTransactionInput input : inputTransactionMap.keySet()) {
-            if (inputTransactionMap.get(input).size() > 1) return false;
+    /**
+     * @return the transactions {@link #handleTxs} would accept for {@code possibleTxs}, leaving the
+     *         ledger unchanged. The epoch runs over a {@link UTXOPoolOverlay} that is never
+     *         published, so the ledger pool is neither copied nor visible to other threads.
+     */
+    public Transaction[] simulate(Transaction[] possibleTxs) {
+        UTXOPool ledger = new UTXOPoolOverlay(pool);
+        if (orphans == null)
+            return verifyAndHandle(possibleTxs, ledger);
+        return verifyAndHandle(withOrphans(possibleTxs, orphans.waitersOf(Arrays.asList(possibleTxs))), ledger);
+    }
+
+    /** Runs the epoch {@code possibleTxs}, applying it to {@code ledger} */
+    private Transaction[] verifyAndHandle(Transaction[] possibleTxs, UTXOPool ledger) {
+        if (verifier != null) {
+            long start = metrics == null ? 0 : System.nanoTime();
+            verified = verifier.verify(possibleTxs, ledger, signatureCache);
+            if (metrics != null)
+                metrics.recordVerification(System.nanoTime() - start);
         }
-        return true;
+        try {
+            long start = metrics == null ? 0 : System.nanoTime();
+            Transaction[] accepted = handleEpoch(possibleTxs, ledger);
+            if (metrics != null)
+                metrics.recordApply(System.nanoTime() - start);
+            return accepted;
+        } finally {
+            verified = null;
+        }
+    }
+
+    /** @return the carried orphans, in arrival order, followed by the proposed transactions not among them */
+    private static Transaction[] withOrphans(Transaction[] possibleTxs, List<Transaction> carried) {
+        if (carried.isEmpty())
+            return possibleTxs;
+        HashSet<ByteBuffer> orphanHashes = new HashSet<>();
+        for (Transaction tx : carried)
+            orphanHashes.add(ByteBuffer.wrap(tx.getHash()));
+        ArrayList<Transaction> epoch = new ArrayList<>(carried);
+        for (Transaction tx : possibleTxs) {
+            if (tx.getHash() == null || !orphanHashes.contains(ByteBuffer.wrap(tx.getHash())))
+                epoch.add(tx);
+        }
+        return epoch.toArray(new Transaction[0]);
     }
 
     /**
-     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
-     * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current ScroogeCore.UTXO pool as appropriate.
+     * Moves the transactions of the epoch that are still waiting on unknown outputs into the orphan
+     * pool and drops the rest. A transaction missing an outpoint the epoch spent lost a double
+     * spend and is not kept.
      */
-    public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        UTXOPool tempPool = new UTXOPool(pool);
+    private void keepOrphans(Transaction[] possibleTxs, List<Transaction> carried, Transaction[] accepted,
+                             UTXOPool ledger) {
+        Set<Transaction> done = Collections.newSetFromMap(new IdentityHashMap<>());
+        HashSet<UTXO> spent = new HashSet<>();
+        for (Transaction tx : accepted) {
+            done.add(tx);
+            orphans.remove(tx);
+            for (Transaction.Input input : tx.getInputs())
+                spent.add(input.getUTXO());
+        }
+        ArrayList<Transaction> rest = new ArrayList<>(carried);
+        rest.addAll(Arrays.asList(possibleTxs));
+        for (Transaction tx : rest) {
+            if (tx.getHash() == null || !done.add(tx))
+                continue;
+            // only a transaction with a missing input can be an orphan, which saves re-verifying
+            // the signatures of the ones rejected outright
+            boolean complete = true;
+            for (Transaction.Input input : tx.getInputs())
+                complete &= ledger.contains(input.getUTXO());
+            ValidationResult result = complete ? ValidationResult.invalid() : validate(tx, ledger);
+            if (result.getState() == ThreeState.MAYBE && Collections.disjoint(result.getMissing(), spent))
+                orphans.add(tx, result.getMissing());
+            else
+                orphans.remove(tx);
+        }
+        orphans.endEpoch();
+    }
 
+    /**
+     * Runs one epoch, applying it to {@code ledger}, a pool private to the epoch; subclasses
+     * replace the acceptance strategy here
+     */
+    Transaction[] handleEpoch(Transaction[] possibleTxs, UTXOPool ledger) {
         ArrayList<Transaction> mValidTxns = new ArrayList<>(); // mutually valid txns
         ArrayList<Transaction> ignoredValidTxns = new ArrayList<>();  // independently valid txns
         ArrayList<Transaction> iValidTxns = new ArrayList<>();  // independently valid txns
@@ -175,42 +349,40 @@ public class TxHandler {
         // definition of depends - tx ref is of one that doesn't exist in utxo pool
         // step 1 find out independently valid transactions and possible dependent txns..
         for (Transaction tx : possibleTxs) {
-            if (isValidTxV2(tx) == ThreeState.TRUE)
+            ThreeState state = validate(tx, ledger).getState();
+            if (state == ThreeState.TRUE)
                 iValidTxns.add(tx);
-            else if (isValidTxV2(tx) == ThreeState.MAYBE)
+            else if (state == ThreeState.MAYBE)
                 pendingTxns.add(tx);
         }
 
-        while (iValidTxns.size() != 0) {
-            Transaction tx = iValidTxns.get(0);
-            if (checkIfMutuallyValid(new ArrayList<>(mValidTxns), tx, pool)) {
+        // accept in order, skipping transactions that spend an output claimed earlier in the round
+        ClaimIndex<Transaction> claims = new ClaimIndex<>();
+        for (Transaction tx : iValidTxns) {
+            if (claims.tryClaim(tx, ClaimIndex.inputsOf(tx)))
                 mValidTxns.add(tx);
-                iValidTxns.remove(0);
-            } else {
+            else
                 ignoredValidTxns.add(tx);
-                iValidTxns.remove(0);
-            }
         }
 
+        // apply the round in one call, which pools may parallelize or presize for
+        ArrayList<UTXO> spent = new ArrayList<>();
+        HashMap<UTXO, Transaction.Output> created = new HashMap<>();
         for (Transaction txn : mValidTxns) {
-            for (Transaction.Input input : txn.getInputs()) { // remove utxos that have been spent
-                UTXO lastUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-                tempPool.removeUTXO(lastUTXO);
-            }
+            for (Transaction.Input input : txn.getInputs()) // remove utxos that have been spent
+                spent.add(input.getUTXO());
             int idx = 0;
             for (Transaction.Output out : txn.getOutputs()) {
-                UTXO utxo = new UTXO(txn.getHash(), idx);
-                tempPool.addUTXO(utxo, out);
+                created.put(new UTXO(txn.getTxId(), idx), out);
                 idx++;
             }
         }
-
-        pool = tempPool;
+        ledger.applyUpdates(spent, created);
 
         while (pendingTxns.size() > 0 && mValidTxns.size() > 0) { // check new transactions in the new pool.. apply if can
             Transaction[] pendingTx = new Transaction[pendingTxns.size()];
             pendingTx = pendingTxns.toArray(pendingTx);
-            Transaction[] txnPendingCorrect = this.handleTxs(pendingTx);
+            Transaction[] txnPendingCorrect = handleEpoch(pendingTx, ledger);
 
             if (txnPendingCorrect.length == 0) {
                 break;
@@ -224,31 +396,4 @@ public class TxHandler {
 
         return retVal;
     }
-
-    private class ComparableTransactionInput {
-        public byte[] prevTxHash;
-        public int outputIndex;
-
-        public ComparableTransactionInput(byte[] prevHash, int index) {
-            if (prevHash == null)
-                prevTxHash = null;
-            else
-                prevTxHash = Arrays.copyOf(prevHash, prevHash.length);
-            outputIndex = index;
-        }
-
-        public boolean equals(Object other) {
-            if (other != null && Arrays.equals(((ComparableTransactionInput) other).prevTxHash, prevTxHash) && ((ComparableTransactionInput) other).outputIndex == outputIndex)
-                return true;
-            else
-                return false;
-        }
-
-        public int hashCode() {
-            int sum = outputIndex;
-            for (byte b : prevTxHash) sum += b;
-            return sum;
-        }
-    }
-
-}
\ No newline at end of file
+}
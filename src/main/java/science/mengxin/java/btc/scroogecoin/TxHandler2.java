@@ -6,6 +6,9 @@ public class TxHandler2 {
 
     private UTXOPool utxoPool;
 
+    /** Counters and latencies; null, the default, records nothing */
+    private HandlerMetrics metrics;
+
     /**
      * Creates a public ledger whose current science.mengxin.java.btc.scroogecoin.UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the science.mengxin.java.btc.scroogecoin.UTXOPool(science.mengxin.java.btc.scroogecoin.UTXOPool uPool)
@@ -65,6 +68,7 @@ public class TxHandler2 {
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
+        long start = metrics == null ? 0 : System.nanoTime();
         HashSet<Transaction> txVis = new HashSet<>();
         //fixed point algorithm,iter untill no new transaction is valid
         while (true) {
@@ -93,7 +97,18 @@ public class TxHandler2 {
         int idx =0;
         for(Transaction tx : txVis)
             ret[idx++] = tx;
+        if (metrics != null)
+            metrics.recordEpoch(possibleTxs, ret, utxoPool, System.nanoTime() - start);
         return ret;
     }
 
+    public HandlerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Starts recording into {@code metrics}, or stops recording if null */
+    public void setMetrics(HandlerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
 }
@@ -0,0 +1,62 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.Arrays;
+
+/**
+ * The hash of a transaction as an immutable value, with its hash code computed once.
+ *
+ * A {@link Transaction} hands out one {@code TxId} over its own hash array, and {@link UTXO}s and
+ * {@link Transaction.Input}s built from a {@code TxId} keep it instead of copying the hash, so the
+ * outputs and spenders of a transaction can all share one 32-byte array. Two ids of the same
+ * instance compare equal without reading the bytes, which a {@link TxIdInterner} makes the common
+ * case.
+ */
+public final class TxId {
+
+    private final byte[] bytes;
+    private final int hashCode;
+
+    private TxId(byte[] bytes) {
+        this.bytes = bytes;
+        this.hashCode = Arrays.hashCode(bytes);
+    }
+
+    /** @return the id of the transaction with hash {@code hash}, holding a copy of it */
+    public static TxId of(byte[] hash) {
+        return new TxId(hash.clone());
+    }
+
+    /** @return an id over {@code hash} itself, which must never change afterwards */
+    static TxId wrap(byte[] hash) {
+        return new TxId(hash);
+    }
+
+    /** @return the hash bytes; do not modify */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof TxId))
+            return false;
+        TxId id = (TxId) other;
+        return hashCode == id.hashCode && Arrays.equals(bytes, id.bytes);
+    }
+
+    /** @return {@code Arrays.hashCode} of the hash bytes */
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hands out one {@link TxId} instance per distinct transaction hash, so every input, UTXO and
+ * transaction referring to the same transaction shares it and its bytes, and equality checks
+ * between them stop at the reference comparison.
+ *
+ * The interner is a bounded LRU: once it holds {@code capacity} ids it forgets the least recently
+ * used one. A forgotten id still works everywhere; later lookups of that hash just get a new
+ * instance. Lookups by hash do not copy it unless the id is new.
+ *
+ * A full interner of 32-byte hashes takes about {@link #ENTRY_HEAP_BYTES} per id, so size it for
+ * the window of transactions whose spenders are expected soon rather than for the whole history,
+ * and share one between decoders reading related streams.
+ */
+public class TxIdInterner {
+
+    /** About 8 MB of heap when full */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * Estimated heap bytes per id with compressed references: a linked map entry (40), the
+     * {@link TxId} (24) and its 32-byte hash array (48) and a table slot at the default load
+     * factor (11). The array is counted although the transaction it came from may share it.
+     */
+    static final long ENTRY_HEAP_BYTES = 123;
+
+    private final int capacity;
+    private final LinkedHashMap<TxId, TxId> ids;
+
+    public TxIdInterner() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates an interner remembering at most {@code capacity} ids */
+    public TxIdInterner(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.ids = new LinkedHashMap<TxId, TxId>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TxId, TxId> eldest) {
+                return size() > TxIdInterner.this.capacity;
+            }
+        };
+    }
+
+    /** @return the shared instance equal to {@code id}, which becomes it if there is none */
+    public synchronized TxId intern(TxId id) {
+        TxId existing = ids.putIfAbsent(id, id);
+        return existing == null ? id : existing;
+    }
+
+    /** @return the shared id of the transaction with hash {@code hash} */
+    public synchronized TxId intern(byte[] hash) {
+        TxId existing = ids.get(TxId.wrap(hash));
+        return existing != null ? existing : intern(TxId.of(hash));
+    }
+
+    /** Like {@link #intern(byte[])}, but a new id takes over {@code hash}, which must never change afterwards */
+    synchronized TxId internOwned(byte[] hash) {
+        return intern(TxId.wrap(hash));
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return an estimate of the heap this interner's ids take */
+    public long estimatedHeapBytes() {
+        return size() * ENTRY_HEAP_BYTES;
+    }
+
+    public synchronized void clear() {
+        ids.clear();
+    }
+}
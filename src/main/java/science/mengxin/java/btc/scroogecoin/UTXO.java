@@ -7,24 +7,43 @@ import java.util.Arrays;
  */
 public class UTXO implements Comparable<UTXO> {
 
-    /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    /** Id of the transaction from which this UTXO originates */
+    private final TxId txId;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        this.txId = TxId.of(txHash);
         this.index = index;
     }
 
-    /** @return the transaction hash of this UTXO */
+    /**
+     * Creates a new UTXO for output {@code index} of the transaction whose hash is the
+     * {@code length} bytes of {@code buf} starting at {@code offset}
+     */
+    public UTXO(byte[] buf, int offset, int length, int index) {
+        this.txId = TxId.wrap(Arrays.copyOfRange(buf, offset, offset + length));
+        this.index = index;
+    }
+
+    /** Creates a new UTXO for output {@code index} of transaction {@code txId}, sharing the id */
+    public UTXO(TxId txId, int index) {
+        this.txId = txId;
+        this.index = index;
+    }
+
+    /** @return the transaction hash of this UTXO; do not modify */
     public byte[] getTxHash() {
-        return txHash;
+        return txId.getBytes();
+    }
+
+    public TxId getTxId() {
+        return txId;
     }
 
     /** @return the index of this UTXO */
@@ -45,15 +64,7 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
-            return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return index == utxo.index && txId.equals(utxo.txId);
     }
 
     /**
@@ -63,13 +74,14 @@ public class UTXO implements Comparable<UTXO> {
     public int hashCode() {
         int hash = 1;
         hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
+        hash = hash * 31 + txId.hashCode();
         return hash;
     }
 
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
-        byte[] hash = utxo.txHash;
+        byte[] txHash = getTxHash();
+        byte[] hash = utxo.getTxHash();
         int in = utxo.index;
         if (in > index)
             return -1;
@@ -0,0 +1,451 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write-ahead journal and checkpoints that make a {@link UTXOPool} durable.
+ *
+ * Every accepted epoch is appended as one record holding its UTXO removals and additions in the
+ * order they were applied. Records are framed with their length, a CRC32 of the body and a
+ * sequence number, and are buffered until {@link #sync}, which writes and forces everything
+ * pending for all waiting threads at once (group commit). {@link #checkpoint} writes a compact
+ * snapshot of the pool and starts a new journal segment, deleting the segments and checkpoints it
+ * supersedes.
+ *
+ * {@link #open} recovers by loading the latest checkpoint and replaying only the journal records
+ * written after it; records are decoded in parallel and applied in order. A torn or corrupt record
+ * at the end of the journal, left by a crash mid-write, ends the replay and is truncated away.
+ */
+public class UTXOJournal implements Closeable {
+
+    private static final int CHECKPOINT_MAGIC = 0x55434B50; // "UCKP"
+    private static final int FRAME_HEADER = 4 + 4 + 8;
+
+    private static final byte SPEND = 0;
+    private static final byte CREATE = 1;
+    private static final byte NULL_OUTPUT = 1;
+    private static final byte NULL_ADDRESS = 2;
+
+    private static final Transaction OUTER = new Transaction();
+
+    private final Path dir;
+    private final PublicKeyCache keyCache = new PublicKeyCache();
+    private final Object lock = new Object();
+
+    private FileChannel segment;
+    private long segmentStart;
+    private ArrayList<ByteBuffer> pending = new ArrayList<>();
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean writing;
+    private IOException failure;
+
+    private UTXOJournal(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Opens the journal in {@code dir}, creating it if needed, and recovers the ledger into
+     * {@code pool}, which should be empty.
+     */
+    public static UTXOJournal open(Path dir, UTXOPool pool) throws IOException {
+        Files.createDirectories(dir);
+        UTXOJournal journal = new UTXOJournal(dir);
+        journal.recover(pool);
+        return journal;
+    }
+
+    /** @return the sequence number of the last appended epoch */
+    public long lastSeq() {
+        synchronized (lock) {
+            return appendedSeq;
+        }
+    }
+
+    /**
+     * Appends the UTXO changes of the epoch that accepted {@code accepted}, in acceptance order.
+     * The record is durable once {@link #sync} returns for the returned sequence number.
+     */
+    public long append(Transaction[] accepted) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int ops = 0;
+            for (Transaction tx : accepted)
+                ops += tx.numInputs() + tx.numOutputs();
+            out.writeInt(ops);
+            for (Transaction tx : accepted) {
+                for (Transaction.Input in : tx.getInputs()) {
+                    out.writeByte(SPEND);
+                    writeKey(out, in.prevTxHash, in.outputIndex);
+                }
+                for (int i = 0; i < tx.numOutputs(); i++) {
+                    out.writeByte(CREATE);
+                    writeKey(out, tx.getHash(), i);
+                    writeOutput(out, tx.getOutput(i));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        synchronized (lock) {
+            long seq = ++appendedSeq;
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + body.length);
+            frame.putInt(body.length).putInt((int) crc.getValue()).putLong(seq).put(body);
+            frame.flip();
+            pending.add(frame);
+            return seq;
+        }
+    }
+
+    /** Appends the epoch and waits until it is durable */
+    public long commit(Transaction[] accepted) throws IOException {
+        long seq = append(accepted);
+        sync(seq);
+        return seq;
+    }
+
+    /**
+     * Waits until every record up to {@code seq} is on disk. One caller writes and forces all
+     * records pending at that moment while the others wait for it.
+     */
+    public void sync(long seq) throws IOException {
+        ByteBuffer[] batch;
+        long upTo;
+        synchronized (lock) {
+            while (true) {
+                if (failure != null)
+                    throw new IOException("journal failed earlier", failure);
+                if (durableSeq >= seq)
+                    return;
+                if (!writing)
+                    break;
+                waitForWriter();
+            }
+            writing = true;
+            batch = pending.toArray(new ByteBuffer[0]);
+            pending = new ArrayList<>();
+            upTo = appendedSeq;
+        }
+        IOException error = null;
+        try {
+            long remaining = 0;
+            for (ByteBuffer b : batch)
+                remaining += b.remaining();
+            while (remaining > 0)
+                remaining -= segment.write(batch);
+            segment.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (lock) {
+            writing = false;
+            if (error == null)
+                durableSeq = upTo;
+            else
+                failure = error;
+            lock.notifyAll();
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Writes a checkpoint of {@code pool}, which must reflect every epoch appended so far, and
+     * starts a new journal segment after it. Epochs must not be appended while this runs.
+     */
+    public void checkpoint(UTXOPool pool) throws IOException {
+        long seq;
+        synchronized (lock) {
+            seq = appendedSeq;
+        }
+        sync(seq);
+
+        Path tmp = dir.resolve(checkpointName(seq) + ".tmp");
+        try (OutputStream file = Files.newOutputStream(tmp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            ArrayList<UTXO> all = pool.getAllUTXO();
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(seq);
+            out.writeInt(all.size());
+            for (UTXO ut : all) {
+                writeKey(out, ut.getTxHash(), ut.getIndex());
+                writeOutput(out, pool.getTxOutput(ut));
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+        }
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            fc.force(true);
+        }
+        Files.move(tmp, dir.resolve(checkpointName(seq)), StandardCopyOption.ATOMIC_MOVE);
+
+        long current;
+        synchronized (lock) {
+            while (writing)
+                waitForWriter();
+            writing = true;
+        }
+        try {
+            // roll only if nothing after the checkpoint has reached the old segment yet
+            if (durableSeq == seq && segmentStart != seq + 1) {
+                segment.close();
+                openSegment(seq + 1);
+            }
+            current = segmentStart;
+        } finally {
+            synchronized (lock) {
+                writing = false;
+                lock.notifyAll();
+            }
+        }
+        deleteObsolete(seq, current);
+    }
+
+    @Override
+    public void close() throws IOException {
+        long seq;
+        synchronized (lock) {
+            seq = appendedSeq;
+        }
+        sync(seq);
+        segment.close();
+    }
+
+    private void recover(UTXOPool pool) throws IOException {
+        TreeMap<Long, Path> checkpoints = new TreeMap<>();
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("checkpoint-") && name.endsWith(".ckp"))
+                    checkpoints.put(Long.parseLong(name.substring(11, name.length() - 4)), file);
+                else if (name.startsWith("journal-") && name.endsWith(".log"))
+                    segments.put(Long.parseLong(name.substring(8, name.length() - 4)), file);
+            }
+        }
+
+        long seq = 0;
+        if (!checkpoints.isEmpty())
+            seq = loadCheckpoint(checkpoints.lastEntry().getValue(), pool);
+
+        // read the raw records after the checkpoint, then decode them in parallel
+        ArrayList<byte[]> bodies = new ArrayList<>();
+        Path tail = null;
+        long tailEnd = 0;
+        for (Path file : segments.values()) {
+            tail = file;
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer data = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+                tailEnd = 0;
+                while (data.remaining() >= FRAME_HEADER) {
+                    int length = data.getInt();
+                    int crc = data.getInt();
+                    long recordSeq = data.getLong();
+                    if (length < 0 || length > data.remaining())
+                        break;
+                    byte[] body = new byte[length];
+                    data.get(body);
+                    CRC32 check = new CRC32();
+                    check.update(body, 0, length);
+                    if ((int) check.getValue() != crc)
+                        break;
+                    tailEnd = data.position();
+                    if (recordSeq <= seq)
+                        continue;
+                    if (recordSeq != seq + bodies.size() + 1)
+                        throw new IOException("journal gap before epoch " + recordSeq);
+                    bodies.add(body);
+                }
+            }
+        }
+        Op[][] epochs = bodies.parallelStream().map(this::decode).toArray(Op[][]::new);
+        for (Op[] ops : epochs) {
+            for (Op op : ops) {
+                if (op.spend)
+                    pool.removeUTXO(op.utxo);
+                else
+                    pool.addUTXO(op.utxo, op.output);
+            }
+        }
+        seq += bodies.size();
+        appendedSeq = seq;
+        durableSeq = seq;
+
+        if (tail == null) {
+            openSegment(seq + 1);
+        } else {
+            segment = FileChannel.open(tail, StandardOpenOption.WRITE);
+            segment.truncate(tailEnd);
+            segment.position(tailEnd);
+            String name = tail.getFileName().toString();
+            segmentStart = Long.parseLong(name.substring(8, name.length() - 4));
+        }
+    }
+
+    private long loadCheckpoint(Path file, UTXOPool pool) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in, 1 << 16), new CRC32());
+            DataInputStream data = new DataInputStream(checked);
+            if (data.readInt() != CHECKPOINT_MAGIC)
+                throw new IOException(file + " is not a checkpoint");
+            long seq = data.readLong();
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                UTXO ut = readKey(data);
+                pool.addUTXO(ut, readOutput(data));
+            }
+            long expected = checked.getChecksum().getValue();
+            if (data.readLong() != expected)
+                throw new IOException("checksum mismatch in " + file);
+            return seq;
+        }
+    }
+
+    private Op[] decode(byte[] body) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            Op[] ops = new Op[in.readInt()];
+            for (int i = 0; i < ops.length; i++) {
+                boolean spend = in.readByte() == SPEND;
+                UTXO ut = readKey(in);
+                ops[i] = new Op(spend, ut, spend ? null : readOutput(in));
+            }
+            return ops;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void openSegment(long start) throws IOException {
+        segment = FileChannel.open(dir.resolve(String.format("journal-%020d.log", start)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentStart = start;
+    }
+
+    /**
+     * Deletes the checkpoints older than {@code seq} and the segments before {@code current}, all
+     * of whose records the checkpoint at {@code seq} covers
+     */
+    private void deleteObsolete(long seq, long current) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("checkpoint-") && name.endsWith(".ckp")
+                        && Long.parseLong(name.substring(11, name.length() - 4)) < seq)
+                    Files.delete(file);
+                else if (name.startsWith("journal-") && name.endsWith(".log")
+                        && Long.parseLong(name.substring(8, name.length() - 4)) < current)
+                    Files.delete(file);
+            }
+        }
+    }
+
+    private void waitForWriter() throws IOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the journal", e);
+        }
+    }
+
+    private static String checkpointName(long seq) {
+        return String.format("checkpoint-%020d.ckp", seq);
+    }
+
+    private static void writeKey(DataOutput out, byte[] txHash, int index) throws IOException {
+        out.writeInt(txHash.length);
+        out.write(txHash);
+        out.writeInt(index);
+    }
+
+    private static UTXO readKey(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new EOFException("negative hash length");
+        byte[] hash = new byte[length];
+        in.readFully(hash);
+        return new UTXO(hash, in.readInt());
+    }
+
+    private static void writeOutput(DataOutput out, Transaction.Output output) throws IOException {
+        if (output == null) {
+            out.writeByte(NULL_OUTPUT);
+            return;
+        }
+        if (output.address == null) {
+            out.writeByte(NULL_ADDRESS);
+            out.writeDouble(output.value);
+            return;
+        }
+        byte[] address = output.encodedAddress();
+        out.writeByte(0);
+        out.writeDouble(output.value);
+        out.writeInt(address.length);
+        out.write(address);
+    }
+
+    private Transaction.Output readOutput(DataInput in) throws IOException {
+        byte flags = in.readByte();
+        if (flags == NULL_OUTPUT)
+            return null;
+        double value = in.readDouble();
+        PublicKey address = null;
+        if (flags != NULL_ADDRESS) {
+            byte[] encoded = new byte[in.readInt()];
+            in.readFully(encoded);
+            try {
+                address = keyCache.get(encoded);
+            } catch (InvalidKeySpecException e) {
+                throw new IOException("invalid address in journal", e);
+            }
+        }
+        return OUTER.new Output(value, address);
+    }
+
+    private static final class Op {
+        final boolean spend;
+        final UTXO utxo;
+        final Transaction.Output output;
+
+        Op(boolean spend, UTXO utxo, Transaction.Output output) {
+            this.spend = spend;
+            this.utxo = utxo;
+            this.output = output;
+        }
+    }
+}
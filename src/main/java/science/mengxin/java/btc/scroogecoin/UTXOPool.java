@@ -1,11 +1,26 @@
 package science.mengxin.java.btc.scroogecoin;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * The set of unspent transaction outputs. This class keeps them in a {@code HashMap}; alternative
+ * backends extend it and override every public accessor.
+ */
 public class UTXOPool {
 
+    /**
+     * Estimated heap bytes per UTXO of a hash-based pool with compressed references: a map entry
+     * (32), the UTXO (24), its {@link TxId} (24) and 32-byte hash array (48) and a table slot at
+     * the default load factor (8). The id and array are counted in full although UTXOs built from
+     * a transaction's id share them with it. The outputs are not counted, since the transactions
+     * that created them hold them too.
+     */
+    static final long ENTRY_HEAP_BYTES = 136;
+
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
@@ -18,7 +33,41 @@ public class UTXOPool {
 
     /** Creates a new UTXOPool that is a copy of {@code uPool} */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        if (uPool.getClass() == UTXOPool.class) {
+            H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        } else {
+            ArrayList<UTXO> all = uPool.getAllUTXO();
+            H = new HashMap<UTXO, Transaction.Output>(Math.max(16, (int) (all.size() / 0.75f) + 1));
+            for (UTXO ut : all)
+                H.put(ut, uPool.getTxOutput(ut));
+        }
+    }
+
+    /**
+     * @return a pool holding the same UTXOs that can be changed independently of this one.
+     *         Backends override this to copy in their own representation; the default is an
+     *         in-memory {@code UTXOPool}.
+     */
+    public UTXOPool copy() {
+        return new UTXOPool(this);
+    }
+
+    /**
+     * @return the pool a handler applies its next epoch to, which {@link #endEpoch} then turns
+     *         into the ledger. The default is a {@link #copy}, so this pool never changes; a backend
+     *         too large to copy returns a view over itself and applies the epoch in place.
+     */
+    public UTXOPool beginEpoch() {
+        return copy();
+    }
+
+    /**
+     * @return the ledger after the epoch applied to {@code epoch}, which {@link #beginEpoch} of
+     *         this pool returned; by default {@code epoch} itself. A handler that abandons an epoch
+     *         drops {@code epoch} without calling this.
+     */
+    public UTXOPool endEpoch(UTXOPool epoch) {
+        return epoch;
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
@@ -44,6 +93,54 @@ public class UTXOPool {
         return H.containsKey(utxo);
     }
 
+    /**
+     * @return the output with index {@code index} of the transaction whose hash is {@code txHash},
+     *         or null if it is not in the pool. Backends that can look this up without building a
+     *         {@link UTXO} override it.
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return getTxOutput(new UTXO(txHash, index));
+    }
+
+    /** @return true if output {@code index} of the transaction with hash {@code txHash} is in the pool */
+    public boolean contains(byte[] txHash, int index) {
+        return contains(new UTXO(txHash, index));
+    }
+
+    /**
+     * @return the output with index {@code index} of transaction {@code txId}, or null if it is
+     *         not in the pool. The lookup shares {@code txId} instead of copying its hash.
+     */
+    public Transaction.Output getTxOutput(TxId txId, int index) {
+        return getTxOutput(new UTXO(txId, index));
+    }
+
+    /** @return true if output {@code index} of transaction {@code txId} is in the pool */
+    public boolean contains(TxId txId, int index) {
+        return contains(new UTXO(txId, index));
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /** @return an estimate of the heap this pool's index takes, excluding the outputs themselves */
+    public long estimatedHeapBytes() {
+        return size() * ENTRY_HEAP_BYTES;
+    }
+
+    /**
+     * Applies an epoch in one step: removes every UTXO in {@code spent}, then adds every mapping
+     * in {@code created}.
+     */
+    public void applyUpdates(Collection<UTXO> spent, Map<UTXO, Transaction.Output> created) {
+        for (UTXO ut : spent)
+            removeUTXO(ut);
+        for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet())
+            addUTXO(e.getKey(), e.getValue());
+    }
+
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
         Set<UTXO> setUTXO = H.keySet();
@@ -0,0 +1,140 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A {@link UTXOPool} view that records additions and removals over a base pool without changing
+ * it. {@link #commit} applies the recorded changes to the base in one
+ * {@link UTXOPool#applyUpdates} call and {@link #rollback} discards them, so a speculative epoch
+ * allocates in proportion to the changes it makes rather than to the size of the base. Copies
+ * duplicate only the changes and share the base.
+ *
+ * The base must not be changed by anything else while an overlay has pending changes over it.
+ * Overlays may be stacked.
+ */
+public class UTXOPoolOverlay extends UTXOPool {
+
+    private final UTXOPool base;
+
+    /** UTXOs added or replaced over the base */
+    private final HashMap<UTXO, Transaction.Output> added;
+
+    /** UTXOs of the base that are hidden; never overlaps {@code added} */
+    private final HashSet<UTXO> removed;
+
+    /** Difference between this view's size and the base's */
+    private int sizeDelta;
+
+    /** Creates an overlay with no changes over {@code base} */
+    public UTXOPoolOverlay(UTXOPool base) {
+        this.base = base;
+        this.added = new HashMap<>();
+        this.removed = new HashSet<>();
+    }
+
+    private UTXOPoolOverlay(UTXOPoolOverlay other) {
+        this.base = other.base;
+        this.added = new HashMap<>(other.added);
+        this.removed = new HashSet<>(other.removed);
+        this.sizeDelta = other.sizeDelta;
+    }
+
+    public UTXOPool getBase() {
+        return base;
+    }
+
+    /** @return true if this view differs from the base */
+    public boolean hasChanges() {
+        return !added.isEmpty() || !removed.isEmpty();
+    }
+
+    /** Applies the recorded changes to the base and clears them */
+    public void commit() {
+        base.applyUpdates(removed, added);
+        rollback();
+    }
+
+    /** Discards the recorded changes */
+    public void rollback() {
+        added.clear();
+        removed.clear();
+        sizeDelta = 0;
+    }
+
+    /** @return a view over the same base with a copy of the recorded changes */
+    @Override
+    public UTXOPoolOverlay copy() {
+        return new UTXOPoolOverlay(this);
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        if (!contains(utxo))
+            sizeDelta++;
+        added.put(utxo, txOut);
+        removed.remove(utxo);
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        if (!contains(utxo))
+            return;
+        sizeDelta--;
+        added.remove(utxo);
+        if (base.contains(utxo))
+            removed.add(utxo);
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        Transaction.Output out = added.get(ut);
+        if (out != null || added.containsKey(ut))
+            return out;
+        return removed.contains(ut) ? null : base.getTxOutput(ut);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        if (added.containsKey(utxo))
+            return true;
+        return !removed.contains(utxo) && base.contains(utxo);
+    }
+
+    /** Reads straight through to the base, without building a {@link UTXO}, while nothing changed */
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (!hasChanges())
+            return base.getTxOutput(txHash, index);
+        return getTxOutput(new UTXO(txHash, index));
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        if (!hasChanges())
+            return base.contains(txHash, index);
+        return contains(new UTXO(txHash, index));
+    }
+
+    @Override
+    public int size() {
+        return base.size() + sizeDelta;
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        return base.estimatedHeapBytes() + (added.size() + removed.size()) * ENTRY_HEAP_BYTES;
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> all = new ArrayList<>(size());
+        for (UTXO ut : base.getAllUTXO()) {
+            if (!removed.contains(ut) && !added.containsKey(ut))
+                all.add(ut);
+        }
+        all.addAll(added.keySet());
+        return all;
+    }
+}
@@ -0,0 +1,51 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of {@link TxHandler#validate}: the {@link TxHandler.ThreeState} of the transaction
+ * and, for MAYBE, the outpoints it spends that are not in the pool.
+ */
+public final class ValidationResult {
+
+    private static final ValidationResult VALID = new ValidationResult(TxHandler.ThreeState.TRUE, Collections.emptyList());
+    private static final ValidationResult INVALID = new ValidationResult(TxHandler.ThreeState.FALSE, Collections.emptyList());
+
+    private final TxHandler.ThreeState state;
+    private final List<UTXO> missing;
+
+    private ValidationResult(TxHandler.ThreeState state, List<UTXO> missing) {
+        this.state = state;
+        this.missing = missing;
+    }
+
+    public static ValidationResult valid() {
+        return VALID;
+    }
+
+    public static ValidationResult invalid() {
+        return INVALID;
+    }
+
+    /** @return a MAYBE result waiting on {@code missing}, which must not be empty */
+    public static ValidationResult missing(List<UTXO> missing) {
+        if (missing.isEmpty())
+            throw new IllegalArgumentException("a MAYBE result needs a missing outpoint");
+        return new ValidationResult(TxHandler.ThreeState.MAYBE, Collections.unmodifiableList(missing));
+    }
+
+    public TxHandler.ThreeState getState() {
+        return state;
+    }
+
+    /** @return the outpoints not in the pool, in input order; empty unless the state is MAYBE */
+    public List<UTXO> getMissing() {
+        return missing;
+    }
+
+    @Override
+    public String toString() {
+        return missing.isEmpty() ? state.toString() : state + " missing " + missing.size();
+    }
+}
@@ -0,0 +1,212 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates single transactions submitted from many threads, coalescing them into micro-batches.
+ *
+ * {@link #submit} only queues the transaction and returns a future, so a caller never blocks a
+ * thread while it waits. A batcher thread collects requests until it has {@code maxBatch} of them or
+ * the first has waited {@code maxDelay}. Each batch then runs on its own virtual thread, or on a
+ * pooled platform thread where the runtime has none. Signatures are verified for the whole batch
+ * on a {@link ForkJoinPool} into the handler's {@link SignatureCache}, and every transaction is then
+ * classified by {@link TxHandler#validate} against one snapshot of the handler's pool.
+ *
+ * The snapshot is the pool published by the last epoch the handler finished. Handlers apply each
+ * epoch to a pool of their own and publish it once, when {@link TxHandler#handleTxs} ends, and
+ * {@link TxHandler#simulate} publishes nothing, so the service may run while another thread calls
+ * either and never sees part of an epoch or a speculative one. The exception is a backend that
+ * applies epochs in place, such as {@link MappedUTXOPool}: a batch running while an epoch is
+ * committed to it may see part of that epoch.
+ */
+public class ValidationService implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_BATCH = 256;
+    public static final long DEFAULT_MAX_DELAY_MICROS = 500;
+
+    private static final class Request {
+        final Transaction tx;
+        final CompletableFuture<ValidationResult> future = new CompletableFuture<>();
+
+        Request(Transaction tx) {
+            this.tx = tx;
+        }
+    }
+
+    /** Tells the batcher to stop once everything queued before it is dispatched */
+    private static final Request SHUTDOWN = new Request(null);
+
+    private final TxHandler handler;
+    private final ParallelSignatureVerifier verifier;
+    private final SignatureCache cache;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService workers = newWorkers();
+    private final Thread batcher;
+    private volatile boolean closed;
+
+    /** Creates a service with the default batching, verifying on the common {@link ForkJoinPool} */
+    public ValidationService(TxHandler handler) {
+        this(handler, ForkJoinPool.commonPool(), DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Creates a service validating against the pool of {@code handler}. A batch is dispatched once
+     * it holds {@code maxBatch} requests or its first request has waited {@code maxDelay}. A handler
+     * without a signature cache is given one, since the cache carries the batch verification to
+     * the per-transaction checks.
+     */
+    public ValidationService(TxHandler handler, ForkJoinPool forkJoinPool, int maxBatch, long maxDelay, TimeUnit unit) {
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("maxBatch must be at least 1: " + maxBatch);
+        if (handler.getSignatureCache() == null)
+            handler.setSignatureCache(new SignatureCache(TxHandler.DEFAULT_SIGNATURE_CACHE_SIZE));
+        this.handler = handler;
+        this.verifier = new ParallelSignatureVerifier(forkJoinPool);
+        this.cache = handler.getSignatureCache();
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.batcher = new Thread(this::batch, "validation-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /**
+     * Queues {@code tx} for validation.
+     *
+     * @return the result of {@link TxHandler#validate} for {@code tx}; fails with an
+     * {@link IllegalStateException} once the service is closed
+     */
+    public CompletableFuture<ValidationResult> submit(Transaction tx) {
+        Request request = new Request(tx);
+        queue.add(request);
+        // the batcher drains the queue one last time after close; take back what came too late
+        if (closed && queue.remove(request))
+            request.future.completeExceptionally(new IllegalStateException("validation service is closed"));
+        return request.future;
+    }
+
+    /**
+     * Like {@link #submit(Transaction)}, but the future fails with a
+     * {@link java.util.concurrent.TimeoutException} if no result is ready within {@code timeout}. A
+     * request that times out before its batch runs is not validated at all.
+     */
+    public CompletableFuture<ValidationResult> submit(Transaction tx, long timeout, TimeUnit unit) {
+        return submit(tx).orTimeout(timeout, unit);
+    }
+
+    public TxHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Validates what is already queued, waits for it and stops accepting transactions. If the
+     * calling thread is interrupted, stops waiting and keeps the interrupt status set; the batcher
+     * still validates what was queued.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        queue.add(SHUTDOWN);
+        try {
+            batcher.join();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void batch() {
+        ArrayList<Request> batch = new ArrayList<>(maxBatch);
+        try {
+            boolean stop = false;
+            while (!stop) {
+                Request first = queue.take();
+                if (first == SHUTDOWN)
+                    break;
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null)
+                        break;
+                    if (next == SHUTDOWN) {
+                        stop = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+                batch = dispatch(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // requests that raced with close
+        Request request;
+        while ((request = queue.poll()) != null) {
+            if (request != SHUTDOWN)
+                batch.add(request);
+            if (batch.size() == maxBatch)
+                batch = dispatch(batch);
+        }
+        dispatch(batch);
+        // the batcher is the only one handing work to the workers
+        workers.shutdown();
+    }
+
+    /** Hands {@code batch} to a worker and returns an empty list for the next one */
+    private ArrayList<Request> dispatch(ArrayList<Request> batch) {
+        if (!batch.isEmpty())
+            workers.execute(() -> validate(batch));
+        return new ArrayList<>(maxBatch);
+    }
+
+    private void validate(List<Request> batch) {
+        ArrayList<Request> live = new ArrayList<>(batch.size());
+        for (Request request : batch) {
+            if (!request.future.isDone())
+                live.add(request);
+        }
+        if (live.isEmpty())
+            return;
+        try {
+            UTXOPool snapshot = handler.getPool();
+            Transaction[] txs = new Transaction[live.size()];
+            for (int i = 0; i < txs.length; i++)
+                txs[i] = live.get(i).tx;
+            verifier.verify(txs, snapshot, cache);
+
+            TxHandler view = new TxHandler(snapshot);
+            view.setSignatureCache(cache);
+            for (Request request : live)
+                request.future.complete(view.validate(request.tx));
+        } catch (RuntimeException | Error e) {
+            for (Request request : live)
+                request.future.completeExceptionally(e);
+        }
+    }
+
+    /** @return a virtual-thread-per-task executor, or a cached pool of daemon threads before JDK 21 */
+    private static ExecutorService newWorkers() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "validation-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Constants and primitive helpers shared by the binary encodings of transactions and pool state.
+ * Counts and lengths are unsigned LEB128 varints; values that may be negative are zigzag encoded.
+ */
+final class WireFormat {
+
+    /** "SCRG" */
+    static final int MAGIC = 0x53435247;
+    static final byte VERSION = 1;
+
+    /** Defines the next public key id; followed by the key's X.509 encoding */
+    static final byte TAG_KEY = 1;
+    /** One transaction */
+    static final byte TAG_TX = 2;
+    /** Marks the end of an epoch */
+    static final byte TAG_EPOCH = 3;
+
+    /** Longest varint of an int */
+    static final int MAX_VARINT_BYTES = 5;
+
+    /** Largest record body; readers reject longer ones before buffering them */
+    static final int MAX_RECORD_BYTES = 1 << 24;
+
+    private WireFormat() {
+    }
+
+    /** @return a digest computing transaction hashes, to check the hashes read from the wire */
+    static MessageDigest newTxDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static int varIntSize(int v) {
+        int size = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarInt(ByteBuffer dst, int v) {
+        while ((v & ~0x7F) != 0) {
+            dst.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        dst.put((byte) v);
+    }
+
+    static int getVarInt(ByteBuffer src) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = src.get();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    static int zigZag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    static int unZigZag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** @return the encoded size of a nullable byte array */
+    static int bytesSize(byte[] bytes) {
+        return bytes == null ? 1 : varIntSize(bytes.length + 1) + bytes.length;
+    }
+
+    /** Writes a nullable byte array as its length plus one (zero for null) and its contents */
+    static void putBytes(ByteBuffer dst, byte[] bytes) {
+        if (bytes == null) {
+            dst.put((byte) 0);
+            return;
+        }
+        putVarInt(dst, bytes.length + 1);
+        dst.put(bytes);
+    }
+
+    /** Reads an array written by {@link #putBytes}, copying it once out of {@code src} */
+    static byte[] getBytes(ByteBuffer src) throws IOException {
+        int length = getVarInt(src) - 1;
+        if (length < 0)
+            return null;
+        if (length > src.remaining())
+            throw new IOException("byte array length " + length + " exceeds record");
+        byte[] bytes = new byte[length];
+        src.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,85 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A genesis transaction plus a sequence of epochs spending from it, as produced by
+ * {@link WorkloadGenerator} and stored as a fixture file.
+ *
+ * A fixture is a {@link TransactionEncoder} stream whose first epoch holds only the genesis
+ * transaction; each following epoch is one epoch of the workload. Loading one decodes the stream,
+ * so no keys are generated and nothing is signed.
+ */
+public class Workload {
+
+    private final Transaction genesis;
+    private final List<Transaction[]> epochs;
+
+    public Workload(Transaction genesis, List<Transaction[]> epochs) {
+        this.genesis = genesis;
+        this.epochs = Collections.unmodifiableList(new ArrayList<>(epochs));
+    }
+
+    /** @return the transaction whose outputs make up the genesis pool */
+    public Transaction getGenesis() {
+        return genesis;
+    }
+
+    public List<Transaction[]> getEpochs() {
+        return epochs;
+    }
+
+    /** @return the number of transactions over all epochs */
+    public int size() {
+        int size = 0;
+        for (Transaction[] epoch : epochs)
+            size += epoch.length;
+        return size;
+    }
+
+    /** @return a new pool holding every output of the genesis transaction */
+    public UTXOPool genesisPool() {
+        return genesisPool(new UTXOPool());
+    }
+
+    /** Adds every output of the genesis transaction to {@code pool} and returns it */
+    public <T extends UTXOPool> T genesisPool(T pool) {
+        for (int i = 0; i < genesis.numOutputs(); i++)
+            pool.addUTXO(new UTXO(genesis.getTxId(), i), genesis.getOutput(i));
+        return pool;
+    }
+
+    /** Writes the workload to {@code file} as a fixture, replacing it if it exists */
+    public void write(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try (TransactionEncoder encoder = new TransactionEncoder(channel)) {
+            encoder.write(genesis);
+            encoder.endEpoch();
+            for (Transaction[] epoch : epochs) {
+                encoder.writeAll(epoch);
+                encoder.endEpoch();
+            }
+        }
+    }
+
+    /** Loads a fixture written by {@link #write} */
+    public static Workload read(Path file) throws IOException {
+        try (TransactionDecoder decoder = TransactionDecoder.open(file, new PublicKeyCache())) {
+            Transaction[] first = decoder.nextEpoch();
+            if (first == null || first.length != 1)
+                throw new IOException("fixture does not start with a genesis epoch");
+            ArrayList<Transaction[]> epochs = new ArrayList<>();
+            Transaction[] epoch;
+            while ((epoch = decoder.nextEpoch()) != null)
+                epochs.add(epoch);
+            return new Workload(first[0], epochs);
+        }
+    }
+}
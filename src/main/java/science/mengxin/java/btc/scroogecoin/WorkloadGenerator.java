@@ -0,0 +1,301 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds signed {@link Workload}s that depend only on a seed and a {@link Shape}.
+ *
+ * Keys come from a seeded SHA1PRNG and RSA signatures are deterministic, so the same seed and
+ * shape always give byte-identical transactions. Each epoch spends outputs confirmed by the
+ * previous ones. To know which outputs are confirmed, the generator runs every epoch through a
+ * {@link DagTxHandler}, so double spends resolve the way a handler resolves them.
+ *
+ * Generating costs a key pair per key and an RSA signature per input. Write the result once with
+ * {@link Workload#write} and load it with {@link Workload#read} afterwards.
+ */
+public class WorkloadGenerator {
+
+    /** Parameters of a workload; every setter returns the shape, for chaining */
+    public static class Shape {
+        int epochs = 10;
+        int txsPerEpoch = 1000;
+        int genesisOutputs = 1000;
+        double genesisValue = 1000000;
+        int keys = 16;
+        int keyBits = 1024;
+        double meanInputs = 1.5;
+        int maxInputs = 8;
+        double meanOutputs = 2;
+        int maxOutputs = 64;
+        double fanOutRate = 0.01;
+        double chainRate = 0.3;
+        double doubleSpendRate = 0.02;
+        double invalidSignatureRate = 0.01;
+        double overspendRate = 0.01;
+        boolean shuffle = true;
+
+        public Shape epochs(int epochs) {
+            this.epochs = atLeast(epochs, 0, "epochs");
+            return this;
+        }
+
+        public Shape txsPerEpoch(int txsPerEpoch) {
+            this.txsPerEpoch = atLeast(txsPerEpoch, 0, "txsPerEpoch");
+            return this;
+        }
+
+        /** Number and value of the outputs of the genesis transaction */
+        public Shape genesis(int outputs, double value) {
+            this.genesisOutputs = atLeast(outputs, 1, "genesis outputs");
+            if (value < 1)
+                throw new IllegalArgumentException("genesis value must be at least 1: " + value);
+            this.genesisValue = value;
+            return this;
+        }
+
+        /** Number and size of the RSA key pairs outputs pay to */
+        public Shape keys(int keys, int keyBits) {
+            this.keys = atLeast(keys, 2, "keys");
+            this.keyBits = atLeast(keyBits, 512, "keyBits");
+            return this;
+        }
+
+        /** Geometric distribution of the input count, with mean {@code mean} capped at {@code max} */
+        public Shape inputs(double mean, int max) {
+            this.maxInputs = atLeast(max, 1, "max inputs");
+            this.meanInputs = mean(mean, "inputs");
+            return this;
+        }
+
+        /** Geometric distribution of the output count, with mean {@code mean} capped at {@code max} */
+        public Shape outputs(double mean, int max) {
+            this.maxOutputs = atLeast(max, 1, "max outputs");
+            this.meanOutputs = mean(mean, "outputs");
+            return this;
+        }
+
+        /** Fraction of transactions paying to the maximum number of outputs */
+        public Shape fanOutRate(double rate) {
+            this.fanOutRate = rate(rate, "fanOutRate");
+            return this;
+        }
+
+        /**
+         * Fraction of inputs spending the newest output created earlier in the same epoch; close to
+         * 1 gives long dependency chains
+         */
+        public Shape chainRate(double rate) {
+            this.chainRate = rate(rate, "chainRate");
+            return this;
+        }
+
+        /** Fraction of transactions spending an output another transaction of the epoch spends */
+        public Shape doubleSpendRate(double rate) {
+            this.doubleSpendRate = rate(rate, "doubleSpendRate");
+            return this;
+        }
+
+        /** Fraction of transactions with an input signed by the wrong key */
+        public Shape invalidSignatureRate(double rate) {
+            this.invalidSignatureRate = rate(rate, "invalidSignatureRate");
+            return this;
+        }
+
+        /** Fraction of transactions paying out more than they spend */
+        public Shape overspendRate(double rate) {
+            this.overspendRate = rate(rate, "overspendRate");
+            return this;
+        }
+
+        /** Whether each epoch is shuffled, so children may come before their parents */
+        public Shape shuffle(boolean shuffle) {
+            this.shuffle = shuffle;
+            return this;
+        }
+
+        private static int atLeast(int value, int min, String name) {
+            if (value < min)
+                throw new IllegalArgumentException(name + " must be at least " + min + ": " + value);
+            return value;
+        }
+
+        private static double rate(double rate, String name) {
+            if (!(rate >= 0 && rate <= 1))
+                throw new IllegalArgumentException(name + " must be between 0 and 1: " + rate);
+            return rate;
+        }
+
+        private static double mean(double mean, String name) {
+            if (!(mean >= 1))
+                throw new IllegalArgumentException("mean " + name + " must be at least 1: " + mean);
+            return mean;
+        }
+    }
+
+    /** An output the generator may spend */
+    private static final class Coin {
+        final UTXO utxo;
+        final double value;
+        final int owner;
+
+        Coin(UTXO utxo, double value, int owner) {
+            this.utxo = utxo;
+            this.value = value;
+            this.owner = owner;
+        }
+    }
+
+    private final Shape shape;
+    private final Random random;
+    private final SecureRandom keyRandom;
+
+    public WorkloadGenerator(long seed, Shape shape) {
+        this.shape = shape;
+        this.random = new Random(seed);
+        try {
+            // SHA1PRNG is deterministic when seeded before first use
+            this.keyRandom = SecureRandom.getInstance("SHA1PRNG");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA1PRNG is not available", e);
+        }
+        keyRandom.setSeed(seed);
+    }
+
+    public Workload generate() throws GeneralSecurityException {
+        KeyPair[] keys = new KeyPair[shape.keys];
+        HashMap<PublicKey, Integer> owners = new HashMap<>();
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(shape.keyBits, keyRandom);
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = keyGen.generateKeyPair();
+            owners.put(keys[k].getPublic(), k);
+        }
+
+        Transaction genesis = new Transaction();
+        for (int i = 0; i < shape.genesisOutputs; i++)
+            genesis.addOutput(shape.genesisValue, keys[random.nextInt(keys.length)].getPublic());
+        genesis.finalize();
+
+        TxHandler handler = new DagTxHandler(new Workload(genesis, Collections.emptyList()).genesisPool());
+        handler.setSignatureCache(null);
+        ArrayList<Transaction[]> epochs = new ArrayList<>(shape.epochs);
+        for (int e = 0; e < shape.epochs; e++) {
+            Transaction[] epoch = epoch(confirmed(handler.getPool(), owners), keys, owners);
+            handler.handleTxs(epoch);
+            epochs.add(epoch);
+        }
+        return new Workload(genesis, epochs);
+    }
+
+    /** @return the outputs in {@code pool}, in a fixed order */
+    private static ArrayList<Coin> confirmed(UTXOPool pool, HashMap<PublicKey, Integer> owners) {
+        ArrayList<UTXO> utxos = pool.getAllUTXO();
+        Collections.sort(utxos);
+        ArrayList<Coin> coins = new ArrayList<>(utxos.size());
+        for (UTXO utxo : utxos) {
+            Transaction.Output output = pool.getTxOutput(utxo);
+            coins.add(new Coin(utxo, output.value, owners.get(output.address)));
+        }
+        return coins;
+    }
+
+    private Transaction[] epoch(ArrayList<Coin> available, KeyPair[] keys, HashMap<PublicKey, Integer> owners) throws GeneralSecurityException {
+        ArrayList<Coin> created = new ArrayList<>();
+        ArrayList<Coin> spent = new ArrayList<>();
+        ArrayList<Transaction> txs = new ArrayList<>(shape.txsPerEpoch);
+        for (int t = 0; t < shape.txsPerEpoch; t++) {
+            boolean doubleSpend = !spent.isEmpty() && random.nextDouble() < shape.doubleSpendRate;
+            boolean overspend = random.nextDouble() < shape.overspendRate;
+            boolean badSignature = random.nextDouble() < shape.invalidSignatureRate;
+
+            ArrayList<Coin> inputs = new ArrayList<>();
+            if (doubleSpend)
+                inputs.add(spent.get(random.nextInt(spent.size())));
+            int numInputs = geometric(shape.meanInputs, shape.maxInputs);
+            while (inputs.size() < numInputs) {
+                Coin coin;
+                if (!created.isEmpty() && random.nextDouble() < shape.chainRate)
+                    coin = created.remove(created.size() - 1);
+                else if (!available.isEmpty())
+                    coin = takeRandom(available);
+                else if (!created.isEmpty())
+                    coin = takeRandom(created);
+                else
+                    break;
+                inputs.add(coin);
+                spent.add(coin);
+            }
+            if (inputs.isEmpty())
+                break;
+
+            Transaction tx = transaction(inputs, keys, overspend, badSignature);
+            txs.add(tx);
+            if (!doubleSpend && !overspend && !badSignature) {
+                for (int o = 0; o < tx.numOutputs(); o++) {
+                    Transaction.Output output = tx.getOutput(o);
+                    created.add(new Coin(new UTXO(tx.getTxId(), o), output.value, owners.get(output.address)));
+                }
+            }
+        }
+        if (shape.shuffle)
+            Collections.shuffle(txs, random);
+        return txs.toArray(new Transaction[0]);
+    }
+
+    private Transaction transaction(List<Coin> inputs, KeyPair[] keys, boolean overspend, boolean badSignature)
+            throws GeneralSecurityException {
+        double sumIn = 0;
+        Transaction tx = new Transaction();
+        for (Coin coin : inputs) {
+            tx.addInput(coin.utxo.getTxHash(), coin.utxo.getIndex());
+            sumIn += coin.value;
+        }
+        double payable = overspend ? sumIn + 1 + random.nextInt(100) : sumIn - Math.floor(sumIn * random.nextDouble() * 0.05);
+        int numOutputs = random.nextDouble() < shape.fanOutRate ? shape.maxOutputs
+                : geometric(shape.meanOutputs, shape.maxOutputs);
+        numOutputs = (int) Math.max(1, Math.min(numOutputs, payable));
+        double share = Math.floor(payable / numOutputs);
+        for (int o = 0; o < numOutputs; o++) {
+            double value = o == numOutputs - 1 ? payable - share * (numOutputs - 1) : share;
+            tx.addOutput(value, keys[random.nextInt(keys.length)].getPublic());
+        }
+
+        int wrong = badSignature ? random.nextInt(inputs.size()) : -1;
+        for (int i = 0; i < inputs.size(); i++) {
+            int owner = inputs.get(i).owner;
+            KeyPair signer = keys[i == wrong ? (owner + 1) % keys.length : owner];
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(signer.getPrivate());
+            sig.update(tx.getRawDataToSign(i));
+            tx.addSignature(sig.sign(), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** @return a count from 1 to {@code max} with mean {@code mean} before capping */
+    private int geometric(double mean, int max) {
+        int count = 1;
+        while (count < max && random.nextDouble() >= 1 / mean)
+            count++;
+        return count;
+    }
+
+    private Coin takeRandom(ArrayList<Coin> coins) {
+        int i = random.nextInt(coins.size());
+        Coin coin = coins.get(i);
+        coins.set(i, coins.get(coins.size() - 1));
+        coins.remove(coins.size() - 1);
+        return coin;
+    }
+}
@@ -0,0 +1,46 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+class ClaimIndexTest {
+
+	static Transaction spending(byte[] parent, int... indices) {
+		Transaction tx = new Transaction();
+		for (int index : indices) {
+			tx.addInput(parent, index);
+		}
+		tx.addOutput(1, null);
+		return tx;
+	}
+
+	@Test
+	void shouldRejectConflictsAndExposeConflictSets() {
+		byte[] parent = new byte[32];
+		Transaction a = spending(parent, 0, 1);
+		Transaction b = spending(parent, 1, 2);
+		Transaction c = spending(parent, 2);
+		Transaction d = spending(parent, 0);
+
+		ClaimIndex<Transaction> claims = new ClaimIndex<>();
+		assert(claims.tryClaim(a, ClaimIndex.inputsOf(a)));
+		assert(!claims.tryClaim(b, ClaimIndex.inputsOf(b)));
+		// b lost, so output 2 is still free
+		assert(claims.tryClaim(c, ClaimIndex.inputsOf(c)));
+		assert(!claims.tryClaim(d, ClaimIndex.inputsOf(d)));
+		assert(claims.size() == 3);
+		assert(claims.claimant(parent, 1) == a);
+		assert(claims.claimant(parent, 2) == c);
+
+		assert(claims.conflictSet(new UTXO(parent, 0)).equals(Arrays.asList(a, d)));
+		assert(claims.conflictSet(new UTXO(parent, 1)).equals(Arrays.asList(a, b)));
+		assert(claims.conflictsOf(b, ClaimIndex.inputsOf(b)).size() == 2);
+		assert(claims.conflictsOf(b, ClaimIndex.inputsOf(b)).containsAll(Arrays.asList(a, c)));
+
+		claims.release(a, ClaimIndex.inputsOf(a));
+		assert(claims.claimant(parent, 0) == null);
+		assert(claims.conflictSet(new UTXO(parent, 0)).equals(Arrays.asList(d)));
+		assert(claims.tryClaim(d, ClaimIndex.inputsOf(d)));
+	}
+}
@@ -0,0 +1,175 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class ConcurrentUTXOPoolTest {
+
+	private static Transaction funding(int outputs) {
+		Transaction funding = new Transaction();
+		for (int i = 0; i < outputs; i++) {
+			funding.addOutput(1, null);
+		}
+		funding.setHash(new byte[]{7});
+		return funding;
+	}
+
+	private static ConcurrentUTXOPool pool(Transaction funding) {
+		ConcurrentUTXOPool pool = new ConcurrentUTXOPool();
+		for (int i = 0; i < funding.numOutputs(); i++) {
+			pool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+		}
+		return pool;
+	}
+
+	/** Spenders of one to three random funding outputs, some of them missing or repeated */
+	private static List<Transaction> spenders(Transaction funding, int count, Random random) {
+		List<Transaction> spenders = new ArrayList<>();
+		for (int t = 0; t < count; t++) {
+			Transaction tx = new Transaction();
+			int inputs = 1 + random.nextInt(3);
+			for (int i = 0; i < inputs; i++) {
+				tx.addInput(funding.getHash(), random.nextInt(funding.numOutputs() + 2));
+			}
+			tx.addOutput(1, null);
+			byte[] hash = new byte[32];
+			random.nextBytes(hash);
+			tx.setHash(hash);
+			spenders.add(tx);
+		}
+		return spenders;
+	}
+
+	private static UTXO[] inputs(Transaction tx) {
+		UTXO[] inputs = new UTXO[tx.numInputs()];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = new UTXO(tx.getInput(i).prevTxHash, tx.getInput(i).outputIndex);
+		}
+		return inputs;
+	}
+
+	@Test
+	void shouldClaimLikeSequentialPassInPriorityOrder() {
+		Random random = new Random(5);
+		Transaction funding = funding(300);
+		List<Transaction> spenders = spenders(funding, 1000, random);
+		Comparator<Transaction> byFirstInput = Comparator.<Transaction>comparingInt(tx -> tx.getInput(0).outputIndex)
+				.thenComparing(ConcurrentUTXOPool.BY_HASH);
+
+		for (Comparator<Transaction> priority : Arrays.asList(ConcurrentUTXOPool.BY_HASH, byFirstInput)) {
+			// what a single thread would accept, in priority order
+			List<Transaction> sorted = new ArrayList<>(spenders);
+			sorted.sort(priority);
+			HashSet<UTXO> taken = new HashSet<>();
+			List<Transaction> expected = new ArrayList<>();
+			for (Transaction tx : sorted) {
+				HashSet<UTXO> own = new HashSet<>();
+				boolean ok = true;
+				for (UTXO ut : inputs(tx)) {
+					ok &= ut.getIndex() < funding.numOutputs() && own.add(ut) && !taken.contains(ut);
+				}
+				if (ok) {
+					taken.addAll(own);
+					expected.add(tx);
+				}
+			}
+			assert(expected.size() > 50 && expected.size() < spenders.size());
+
+			for (int run = 0; run < 5; run++) {
+				Collections.shuffle(spenders, random);
+				ConcurrentUTXOPool pool = pool(funding);
+				List<Transaction> chosen = pool.claimAll(spenders, priority);
+				assert(chosen.equals(expected));
+				for (Transaction tx : chosen) {
+					for (UTXO ut : inputs(tx)) {
+						assert(pool.claimant(ut) == tx);
+					}
+					assert(pool.commit(tx));
+				}
+				assert(pool.size() == funding.numOutputs() - taken.size() + chosen.size());
+			}
+		}
+	}
+
+	@Test
+	void shouldClaimAllInputsOrNone() throws Exception {
+		Random random = new Random(8);
+		Transaction funding = funding(200);
+		ConcurrentUTXOPool pool = pool(funding);
+		List<Transaction> spenders = spenders(funding, 2000, random);
+
+		Transaction first = spenders.get(0);
+		UTXO[] firstInputs = inputs(first);
+		HashSet<UTXO> distinct = new HashSet<>(Arrays.asList(firstInputs));
+		boolean claimable = distinct.size() == firstInputs.length;
+		for (UTXO ut : firstInputs) {
+			claimable &= pool.contains(ut);
+		}
+		assert(pool.claim(firstInputs, first) == claimable);
+		pool.release(firstInputs, first);
+		for (UTXO ut : firstInputs) {
+			assert(pool.claimant(ut) == null);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Transaction> claimed = Collections.synchronizedList(new ArrayList<>());
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				int from = t;
+				futures.add(executor.submit(() -> {
+					for (int i = from; i < spenders.size(); i += 8) {
+						Transaction tx = spenders.get(i);
+						if (pool.claim(inputs(tx), tx)) {
+							claimed.add(tx);
+						} else {
+							for (UTXO ut : inputs(tx)) {
+								assert(pool.claimant(ut) != tx);
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// winners hold every input and no two share one
+		HashSet<UTXO> held = new HashSet<>();
+		for (Transaction tx : claimed) {
+			for (UTXO ut : inputs(tx)) {
+				assert(pool.claimant(ut) == tx);
+				assert(held.add(ut));
+			}
+		}
+		assert(!claimed.isEmpty());
+
+		// a released claim is free for another transaction; commit needs the claim
+		Transaction winner = claimed.get(0);
+		Transaction other = new Transaction();
+		other.setHash(new byte[]{9});
+		for (UTXO ut : inputs(winner)) {
+			other.addInput(ut.getTxHash(), ut.getIndex());
+		}
+		assert(!pool.claim(inputs(winner), other));
+		assert(!pool.commit(other));
+		pool.release(inputs(winner), winner);
+		assert(pool.claim(inputs(winner), other));
+		assert(pool.commit(other));
+		for (UTXO ut : inputs(winner)) {
+			assert(!pool.contains(ut));
+		}
+	}
+}
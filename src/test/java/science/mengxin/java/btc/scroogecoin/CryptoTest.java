@@ -0,0 +1,47 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.*;
+import java.util.BitSet;
+
+class CryptoTest {
+
+	static byte[] sign(PrivateKey pk, byte[] message) throws GeneralSecurityException {
+		Signature sig = Signature.getInstance("SHA256withRSA");
+		sig.initSign(pk);
+		sig.update(message);
+		return sig.sign();
+	}
+
+	@Test
+	void shouldVerifyBatchWithSharedAndChangingKeys() throws GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair a = keyGen.generateKeyPair();
+		KeyPair b = keyGen.generateKeyPair();
+		byte[] m1 = "first".getBytes();
+		byte[] m2 = "second".getBytes();
+
+		PublicKey[] keys = {a.getPublic(), a.getPublic(), a.getPublic(), b.getPublic(), a.getPublic(), b.getPublic()};
+		byte[][] messages = {m1, m2, m1, m2, m2, m1};
+		byte[][] signatures = {
+				sign(a.getPrivate(), m1),
+				sign(a.getPrivate(), m2),
+				new byte[]{1, 2, 3},            // malformed, must not poison the next check
+				sign(b.getPrivate(), m2),
+				sign(b.getPrivate(), m2),       // wrong key
+				null
+		};
+
+		BitSet valid = Crypto.verifyBatch(keys, messages, signatures);
+
+		assert(valid.get(0));
+		assert(valid.get(1));
+		assert(!valid.get(2));
+		assert(valid.get(3));
+		assert(!valid.get(4));
+		assert(!valid.get(5));
+		assert(Crypto.verifySignature(a.getPublic(), m1, signatures[0]));
+	}
+}
@@ -0,0 +1,109 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+class DagTxHandlerTest {
+	static KeyPair scrooge;
+	static KeyPair alice;
+
+	@BeforeAll
+	static void setUp() throws NoSuchAlgorithmException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		scrooge = keyGen.generateKeyPair();
+		alice = keyGen.generateKeyPair();
+	}
+
+	static KeyPair owner(PublicKey key) {
+		return key.equals(scrooge.getPublic()) ? scrooge : alice;
+	}
+
+	/** Random chains, fan-outs, double spends, bad signatures and overspends, shuffled */
+	static Transaction[] randomEpoch(Transaction genesis, Random random) throws GeneralSecurityException {
+		ArrayList<Transaction> txs = new ArrayList<>();
+		ArrayList<Transaction> parents = new ArrayList<>();
+		parents.add(genesis);
+		for (int n = 0; n < 60; n++) {
+			Transaction parent = parents.get(random.nextInt(parents.size()));
+			int index = random.nextInt(parent.numOutputs());
+			int[] indices = random.nextInt(5) == 0 && parent.numOutputs() > 1
+					? new int[]{index, (index + 1) % parent.numOutputs()} : new int[]{index};
+			double available = 0;
+			for (int i : indices) {
+				available += parent.getOutput(i).value;
+			}
+			PrivateKey signer = random.nextInt(15) == 0 ? alice.getPrivate()
+					: owner(parent.getOutput(indices[0]).address).getPrivate();
+			double value = random.nextInt(15) == 0 ? available + 1 : available / 2;
+			PublicKey to = random.nextBoolean() ? scrooge.getPublic() : alice.getPublic();
+
+			Transaction tx = new Transaction();
+			for (int i : indices) {
+				tx.addInput(parent.getHash(), i);
+			}
+			tx.addOutput(value, to);
+			tx.addOutput(value / 2, to);
+			for (int i = 0; i < indices.length; i++) {
+				Signature sig = Signature.getInstance("SHA256withRSA");
+				sig.initSign(signer);
+				sig.update(tx.getRawDataToSign(i));
+				tx.addSignature(sig.sign(), i);
+			}
+			tx.finalize();
+			txs.add(tx);
+			parents.add(tx);
+		}
+		Collections.shuffle(txs, random);
+		return txs.toArray(new Transaction[0]);
+	}
+
+	@Test
+	void shouldMatchRecursiveHandlerAndCheckEachSignatureOnce() throws GeneralSecurityException {
+		Random random = new Random(11);
+		for (int run = 0; run < 5; run++) {
+			Transaction genesis = new Transaction();
+			for (int i = 0; i < 8; i++) {
+				genesis.addOutput(100, scrooge.getPublic());
+			}
+			genesis.finalize();
+			UTXOPool pool = new UTXOPool();
+			for (int i = 0; i < genesis.numOutputs(); i++) {
+				pool.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+			}
+			Transaction[] txs = randomEpoch(genesis, random);
+
+			TxHandler recursive = new TxHandler(pool);
+			recursive.setSignatureCache(null);
+			Transaction[] expected = recursive.handleTxs(txs);
+
+			HashMap<String, Integer> checks = new HashMap<>();
+			DagTxHandler dag = new DagTxHandler(pool) {
+				@Override
+				boolean verifyInputSignature(Transaction tx, int index, PublicKey address) {
+					checks.merge(System.identityHashCode(tx) + ":" + index, 1, Integer::sum);
+					return super.verifyInputSignature(tx, index, address);
+				}
+			};
+			dag.setSignatureCache(null);
+			Transaction[] actual = dag.handleTxs(txs);
+
+			assert(expected.length > 1);
+			assert(actual.length == expected.length);
+			for (int i = 0; i < expected.length; i++) {
+				assert(actual[i] == expected[i]);
+			}
+			PrimitiveUTXOPoolTest.assertSameContents(recursive.getPool(), dag.getPool());
+			for (int count : checks.values()) {
+				assert(count == 1);
+			}
+			assert(pool.size() == genesis.numOutputs());
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+class EpochPipelineTest {
+
+	@Test
+	void shouldAcceptWhatSequentialEpochsAccept() throws GeneralSecurityException {
+		DagTxHandlerTest.setUp();
+		Random random = new Random(17);
+		Transaction genesis = new Transaction();
+		for (int i = 0; i < 8; i++) {
+			genesis.addOutput(100, DagTxHandlerTest.scrooge.getPublic());
+		}
+		genesis.finalize();
+		UTXOPool pool = new UTXOPool();
+		for (int i = 0; i < genesis.numOutputs(); i++) {
+			pool.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+		}
+		// slices of one random epoch, so later epochs spend outputs of earlier ones
+		Transaction[] txs = DagTxHandlerTest.randomEpoch(genesis, random);
+		Transaction negative = ParallelTxHandlerTest.spend(genesis, new int[]{7}, -1, DagTxHandlerTest.scrooge.getPrivate(), DagTxHandlerTest.alice.getPublic());
+		List<Transaction[]> epochs = new ArrayList<>();
+		for (int from = 0; from < txs.length; from += 15) {
+			epochs.add(Arrays.copyOfRange(txs, from, Math.min(from + 15, txs.length)));
+		}
+		epochs.add(new Transaction[]{negative});
+
+		ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+		try {
+			for (boolean dag : new boolean[]{false, true}) {
+				TxHandler sequential = dag ? new DagTxHandler(pool) : new TxHandler(pool);
+				List<Transaction[]> expected = new ArrayList<>();
+				for (Transaction[] epoch : epochs) {
+					expected.add(sequential.handleTxs(epoch));
+				}
+
+				TxHandler handler = dag ? new DagTxHandler(pool) : new TxHandler(pool);
+				List<CompletableFuture<Transaction[]>> results = new ArrayList<>();
+				try (EpochPipeline pipeline = new EpochPipeline(handler, forkJoinPool)) {
+					for (Transaction[] epoch : epochs) {
+						results.add(pipeline.submit(epoch));
+					}
+				}
+				int total = 0;
+				for (int e = 0; e < epochs.size(); e++) {
+					assert(Arrays.equals(results.get(e).join(), expected.get(e)));
+					total += expected.get(e).length;
+				}
+				assert(total > epochs.size());
+				PrimitiveUTXOPoolTest.assertSameContents(sequential.getPool(), handler.getPool());
+				assert(handler.getSignatureCache().size() >= total);
+			}
+		} finally {
+			forkJoinPool.shutdown();
+		}
+	}
+}
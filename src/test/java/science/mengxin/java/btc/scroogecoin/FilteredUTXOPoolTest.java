@@ -0,0 +1,98 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+class FilteredUTXOPoolTest {
+
+	@Test
+	void shouldBehaveLikeUnfilteredPool() throws GeneralSecurityException {
+		FilteredUTXOPool filtered = new FilteredUTXOPool(new PrimitiveUTXOPool(), 1000, 0.01);
+		// removing absent keys and re-adding present ones must not unbalance the counters
+		UTXOPoolConformance.assertBehavesLikeHashMapPool(filtered, FilteredUTXOPool::new, 4, 3);
+		// the filter was sized for 1000 entries and has been rebuilt as the pool outgrew it
+		assert(filtered.size() > 1000);
+		assert(filtered.getExpectedEntries() >= filtered.size());
+		assert(filtered.getFilter().falsePositiveRate(filtered.size()) <= 0.01);
+	}
+
+	@Test
+	void shouldShareTheFilterAcrossEpochsAndCopies() throws GeneralSecurityException {
+		ParallelTxHandlerTest.setUp();
+		Transaction[] epoch = ParallelTxHandlerTest.epoch();
+		TxHandler reference = new TxHandler(ParallelTxHandlerTest.genesisPool());
+		FilteredUTXOPool ledger = new FilteredUTXOPool(new PersistentUTXOPool(ParallelTxHandlerTest.genesisPool()));
+		CountingBloomFilter filter = ledger.getFilter();
+		TxHandler handler = new TxHandler(ledger);
+		assert(ledger.copy().getFilter() == filter && ledger.beginEpoch().getFilter() == filter);
+
+		// a simulation adds nothing to the shared filter
+		handler.simulate(epoch);
+		int positives = 0;
+		for (Transaction tx : epoch) {
+			if (filter.mightContain(tx.getHash(), 0))
+				positives++;
+		}
+		assert(positives < epoch.length);
+
+		assert(Arrays.equals(reference.handleTxs(epoch), handler.handleTxs(epoch)));
+		FilteredUTXOPool next = (FilteredUTXOPool) handler.getPool();
+		assert(next.getFilter() == filter);
+		PrimitiveUTXOPoolTest.assertSameContents(reference.getPool(), next);
+		// the previous ledger still answers for everything it holds
+		PrimitiveUTXOPoolTest.assertSameContents(ParallelTxHandlerTest.genesisPool(), ledger);
+	}
+
+	@Test
+	void shouldKeepConfiguredFalsePositiveRate() {
+		Random random = new Random(6);
+		for (double rate : new double[]{0.1, 0.01, 0.001}) {
+			CountingBloomFilter filter = new CountingBloomFilter(20000, rate);
+			ArrayList<UTXO> added = new ArrayList<>();
+			for (int i = 0; i < 20000; i++) {
+				byte[] hash = new byte[32];
+				random.nextBytes(hash);
+				UTXO utxo = new UTXO(hash, i & 3);
+				filter.add(utxo);
+				added.add(utxo);
+			}
+			for (UTXO utxo : added) {
+				assert(filter.mightContain(utxo));
+			}
+			int falsePositives = 0;
+			for (int i = 0; i < 100000; i++) {
+				byte[] hash = new byte[32];
+				random.nextBytes(hash);
+				if (filter.mightContain(hash, 0))
+					falsePositives++;
+			}
+			assert(falsePositives / 100000.0 < rate * 1.5);
+			assert(filter.falsePositiveRate(20000) <= rate);
+
+			// removing everything empties the filter
+			for (UTXO utxo : added) {
+				filter.remove(utxo);
+			}
+			for (UTXO utxo : added) {
+				assert(!filter.mightContain(utxo));
+			}
+		}
+
+		// a saturated counter sticks, so removal never causes a false negative
+		CountingBloomFilter tiny = new CountingBloomFilter(1, 0.5);
+		UTXO first = new UTXO(new byte[]{1}, 0);
+		UTXO second = new UTXO(new byte[]{2}, 0);
+		tiny.add(second);
+		for (int i = 0; i < 20; i++) {
+			tiny.add(first);
+		}
+		for (int i = 0; i < 20; i++) {
+			tiny.remove(first);
+		}
+		assert(tiny.mightContain(second));
+	}
+}
@@ -0,0 +1,96 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Collections;
+
+class HandlerMetricsTest {
+
+	@Test
+	void shouldCountRejectionsByRuleAndExportThem() throws GeneralSecurityException, JMException, IOException {
+		DagTxHandlerTest.setUp();
+		KeyPair scrooge = DagTxHandlerTest.scrooge;
+		KeyPair alice = DagTxHandlerTest.alice;
+		Transaction genesis = new Transaction();
+		for (int i = 0; i < 6; i++) {
+			genesis.addOutput(10, scrooge.getPublic());
+		}
+		genesis.finalize();
+		Transaction unknown = new Transaction();
+		unknown.addOutput(10, scrooge.getPublic());
+		unknown.finalize();
+		Transaction[] epoch = {
+				ParallelTxHandlerTest.spend(genesis, new int[]{0}, 10, scrooge.getPrivate(), alice.getPublic()),
+				ParallelTxHandlerTest.spend(genesis, new int[]{0}, 5, scrooge.getPrivate(), scrooge.getPublic()),
+				ParallelTxHandlerTest.spend(genesis, new int[]{1, 1}, 5, scrooge.getPrivate(), scrooge.getPublic()),
+				ParallelTxHandlerTest.spend(unknown, new int[]{0}, 5, scrooge.getPrivate(), scrooge.getPublic()),
+				ParallelTxHandlerTest.spend(genesis, new int[]{2}, 5, alice.getPrivate(), alice.getPublic()),
+				ParallelTxHandlerTest.spend(genesis, new int[]{3}, -1, scrooge.getPrivate(), alice.getPublic()),
+				ParallelTxHandlerTest.spend(genesis, new int[]{4}, 11, scrooge.getPrivate(), alice.getPublic()),
+		};
+
+		HandlerMetrics recursive = new HandlerMetrics("recursive");
+		TxHandler handler = new TxHandler(new Workload(genesis, Collections.emptyList()).genesisPool());
+		handler.setMetrics(recursive);
+		handler.handleTxs(epoch);
+		HandlerMetrics legacy = new HandlerMetrics("legacy");
+		TxHandler2 handler2 = new TxHandler2(new Workload(genesis, Collections.emptyList()).genesisPool());
+		handler2.setMetrics(legacy);
+		handler2.handleTxs(epoch);
+
+		for (HandlerMetrics metrics : new HandlerMetrics[]{recursive, legacy}) {
+			assert(metrics.getEpochs() == 1);
+			assert(metrics.getProposed() == 7);
+			assert(metrics.getAccepted() == 1);
+			assert(metrics.getRejectedDoubleClaim() == 2);
+			assert(metrics.getRejectedMissingInput() == 1);
+			assert(metrics.getRejectedBadSignature() == 1);
+			assert(metrics.getRejectedNegativeOutput() == 1);
+			assert(metrics.getRejectedOverspend() == 1);
+			assert(metrics.getPoolSize() == 6);
+			assert(metrics.getPoolHeapBytes() > 0);
+			assert(metrics.getEpochLatency().count() == 1);
+		}
+		assert(recursive.getSignatureVerifications() > 0);
+		assert(recursive.getSignatureP99Micros() >= recursive.getSignatureMeanMicros() / 2);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		recursive.register();
+		try {
+			assert((Long) server.getAttribute(recursive.objectName(), "RejectedOverspend") == 1);
+			assert((Long) server.getAttribute(recursive.objectName(), "PoolSize") == 6);
+		} finally {
+			recursive.unregister();
+		}
+		assert(!server.isRegistered(recursive.objectName()));
+
+		StringBuilder text = new StringBuilder();
+		new PrometheusWriter(text).write(recursive, legacy);
+		String out = text.toString();
+		assert(out.contains("scrooge_transactions_rejected_total{handler=\"recursive\",reason=\"double_claim\"} 2\n"));
+		assert(out.contains("scrooge_transactions_accepted_total{handler=\"legacy\"} 1\n"));
+		assert(out.contains("scrooge_epoch_seconds_bucket{handler=\"legacy\",le=\"+Inf\"} 1\n"));
+		assert(out.contains("# TYPE scrooge_signature_verify_seconds histogram\n"));
+	}
+
+	@Test
+	void shouldBucketByPowersOfTwo() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1);
+		histogram.record(1024);
+		histogram.record(1025);
+		histogram.record(Long.MAX_VALUE / 2);
+		assert(histogram.bucketCount(0) == 2);
+		assert(histogram.bucketCount(1) == 1);
+		assert(histogram.bucketCount(LatencyHistogram.BUCKETS - 1) == 1);
+		assert(histogram.percentileNanos(0.5) == 1024);
+		assert(histogram.percentileNanos(0.75) == 2048);
+		assert(histogram.percentileNanos(1) == Long.MAX_VALUE);
+	}
+}
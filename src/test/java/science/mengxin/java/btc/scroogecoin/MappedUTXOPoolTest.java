@@ -0,0 +1,100 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+class MappedUTXOPoolTest {
+
+	static void assertSameContents(UTXOPool expected, UTXOPool actual) {
+		assert(expected.size() == actual.size());
+		assert(new HashSet<>(expected.getAllUTXO()).equals(new HashSet<>(actual.getAllUTXO())));
+		for (UTXO ut : expected.getAllUTXO()) {
+			Transaction.Output want = expected.getTxOutput(ut);
+			Transaction.Output got = actual.getTxOutput(ut);
+			assert(want == null ? got == null : got.value == want.value);
+			if (want != null)
+				assert(want.address == null ? got.address == null : want.address.equals(got.address));
+		}
+	}
+
+	@Test
+	void shouldBehaveLikeHashMapPoolAcrossCompactionAndReopen() throws IOException, GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		PublicKey key = keyGen.generateKeyPair().getPublic();
+		Transaction tx = new Transaction();
+
+		Path file = Files.createTempFile("utxo", ".pool");
+		Path handlerFile = Files.createTempFile("utxo", ".pool");
+		Files.delete(file);
+		Files.delete(handlerFile);
+		try {
+			UTXOPool expected;
+			try (MappedUTXOPool actual = new MappedUTXOPool(file, 4096, 4096);
+					MappedUTXOPool handlerPool = new MappedUTXOPool(handlerFile, 64)) {
+				expected = UTXOPoolConformance.assertBehavesLikeHashMapPool(actual, genesis -> {
+					for (UTXO ut : genesis.getAllUTXO()) {
+						handlerPool.addUTXO(ut, genesis.getTxOutput(ut));
+					}
+					return handlerPool;
+				}, 7, 5, MappedUTXOPoolTest::assertSameContents);
+				// outputs with and without an address round-trip through the file
+				ArrayList<UTXO> keys = expected.getAllUTXO();
+				for (int i = 0; i < 100; i++) {
+					Transaction.Output out = tx.new Output(i, i % 2 == 0 ? null : key);
+					expected.addUTXO(keys.get(i), out);
+					actual.addUTXO(keys.get(i), out);
+				}
+				assertSameContents(expected, actual);
+				assert(actual.deadBytes() > 0);
+				actual.compact();
+				assertSameContents(expected, actual);
+				assert(actual.deadBytes() < 4096 * 2);
+			}
+			try (MappedUTXOPool reopened = new MappedUTXOPool(file, 0)) {
+				assertSameContents(expected, reopened);
+				assertSameContents(expected, new UTXOPool(reopened));
+			}
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(handlerFile);
+		}
+	}
+
+	@Test
+	void shouldApplyEpochsInPlace() throws IOException, GeneralSecurityException {
+		ParallelTxHandlerTest.setUp();
+		Transaction[] epoch = ParallelTxHandlerTest.epoch();
+		TxHandler reference = new TxHandler(ParallelTxHandlerTest.genesisPool());
+		Transaction[] accepted = reference.handleTxs(epoch);
+
+		Path file = Files.createTempFile("utxo", ".pool");
+		Files.delete(file);
+		try (MappedUTXOPool mapped = new MappedUTXOPool(file, 1024, 4096)) {
+			UTXOPool genesis = ParallelTxHandlerTest.genesisPool();
+			for (UTXO ut : genesis.getAllUTXO()) {
+				mapped.addUTXO(ut, genesis.getTxOutput(ut));
+			}
+			TxHandler handler = new TxHandler(new FilteredUTXOPool(mapped));
+			// a simulation leaves the file alone
+			assert(Arrays.equals(handler.simulate(epoch), accepted));
+			assertSameContents(genesis, mapped);
+			assert(Arrays.equals(handler.handleTxs(epoch), accepted));
+			// the ledger is still the mapped file, not a copy of it on the heap
+			assert(((FilteredUTXOPool) handler.getPool()).getBase() == mapped);
+			assertSameContents(reference.getPool(), mapped);
+			assertSameContents(reference.getPool(), handler.getPool());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
@@ -1,183 +1,111 @@
-package science.mengxin.java.btc.scroogecoin;//package science.mengxin.java.btc.scroogecoin;
-//
-//import java.security.InvalidKeyException;
-//import java.security.KeyPair;
-//import java.security.KeyPairGenerator;
-//import java.security.NoSuchAlgorithmException;
-//import java.security.NoSuchProviderException;
-//import java.security.PrivateKey;
-//import java.security.SecureRandom;
-//import java.security.Signature;
-//import java.security.SignatureException;
-//import java.util.Arrays;
-//
-//import junit.framework.TestCase;
-//import science.mengxin.java.btc.MaxFeeTxHandler;
-//import science.mengxin.java.btc.Transaction;
-//import science.mengxin.java.btc.UTXO;
-//import science.mengxin.java.btc.UTXOPool;
-//
-//public class MaxFeeTxHandlerTest extends TestCase {
-//	private KeyPair scroogeKeypair;
-//	private KeyPair aliceKeypair;
-//	private KeyPair bobKeypair;
-//	private KeyPair mikeKeypair;
-//	private Transaction genesiseTx;
-//	private MaxFeeTxHandler txHandler;
-//
-//	@Override
-//	protected void setUp() throws Exception {
-//		// TODO Auto-generated method stub
-//		super.setUp();
-//
-//		generateKeypair();
-//		GenerateInitialCoins();
-//	}
-//
-//	public void testValidTxSign()
-//			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
-//		Transaction tx1 = new Transaction();
-//		tx1.addInput(genesiseTx.getHash(), 0);
-//		tx1.addOutput(10, aliceKeypair.getPublic());
-//		byte[] sig1 = signMessage(aliceKeypair.getPrivate(), tx1.getRawDataToSign(0));
-//		tx1.addSignature(sig1, 0);
-//		tx1.finalize();
-//		assertFalse(txHandler.isValidTx(tx1));
-//
-//		Transaction tx2 = new Transaction();
-//		tx2.addInput(genesiseTx.getHash(), 0);
-//		tx2.addOutput(10, aliceKeypair.getPublic());
-//		byte[] sig2 = signMessage(scroogeKeypair.getPrivate(), tx2.getRawDataToSign(0));
-//		tx2.addSignature(sig2, 0);
-//		tx2.finalize();
-//		assertTrue(txHandler.isValidTx(tx2));
-//
-//		Transaction tx3 = new Transaction();
-//		tx3.addInput(genesiseTx.getHash(), 0);
-//		tx3.addOutput(4, aliceKeypair.getPublic());
-//		tx3.addOutput(6, bobKeypair.getPublic());
-//		byte[] sig3 = signMessage(scroogeKeypair.getPrivate(), tx3.getRawDataToSign(0));
-//		tx3.addSignature(sig3, 0);
-//		tx3.finalize();
-//		assertTrue(txHandler.isValidTx(tx3));
-//	}
-//
-//	public void testValidTxValue()
-//			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
-//		Transaction tx = new Transaction();
-//		tx.addInput(genesiseTx.getHash(), 0);
-//		tx.addOutput(4, aliceKeypair.getPublic());
-//		tx.addOutput(7, bobKeypair.getPublic());
-//		byte[] sig = signMessage(scroogeKeypair.getPrivate(), tx.getRawDataToSign(0));
-//		tx.addSignature(sig, 0);
-//		tx.finalize();
-//		assertFalse(txHandler.isValidTx(tx));
-//
-//		Transaction tx1 = new Transaction();
-//		tx1.addInput(genesiseTx.getHash(), 0);
-//		tx1.addOutput(4, aliceKeypair.getPublic());
-//		tx1.addOutput(-7, bobKeypair.getPublic());
-//		byte[] sig1 = signMessage(scroogeKeypair.getPrivate(), tx1.getRawDataToSign(0));
-//		tx1.addSignature(sig1, 0);
-//		tx.finalize();
-//		assertFalse(txHandler.isValidTx(tx1));
-//	}
-//
-//	public void testMaxFeeTransfer()
-//			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
-//		// Scrooge transfer 4 coins to Alice, 6 coins to bob, no transaction fee
-//		Transaction tx1 = new Transaction();
-//		tx1.addInput(genesiseTx.getHash(), 0);
-//		tx1.addOutput(4, aliceKeypair.getPublic());
-//		tx1.addOutput(6, bobKeypair.getPublic());
-//		byte[] sig1 = signMessage(scroogeKeypair.getPrivate(), tx1.getRawDataToSign(0));
-//		tx1.addSignature(sig1, 0);
-//		tx1.finalize();
-//
-//		// Alice transfer 3.4 to mike, transaction fee is 4-3.4=0.6
-//		Transaction tx2 = new Transaction();
-//		tx2.addInput(tx1.getHash(), 0);
-//		tx2.addOutput(3.4, mikeKeypair.getPublic());
-//		byte[] sig = signMessage(aliceKeypair.getPrivate(), tx2.getRawDataToSign(0));
-//		tx2.addSignature(sig, 0);
-//		tx2.finalize();
-//
-//		// Bob transfer 5.5 to mike, transaction fee is 5-5.5=0.5
-//		Transaction tx3 = new Transaction();
-//		tx3.addInput(tx1.getHash(), 1);
-//		tx3.addOutput(5.5, mikeKeypair.getPublic());
-//		sig = signMessage(bobKeypair.getPrivate(), tx3.getRawDataToSign(0));
-//		tx3.addSignature(sig, 0);
-//		tx3.finalize();
-//
-//		Transaction[] acceptedRx = txHandler.handleTxs(new Transaction[] { tx1, tx2, tx3 });
-//		assertEquals(acceptedRx.length, 3);
-//		assertTrue(Arrays.equals(acceptedRx[0].getHash(), tx2.getHash()));
-//	}
-//
-//	public void testDoubleSpending()
-//			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
-//		// Scrooge transfer 10 coins to Alice
-//		Transaction tx1 = new Transaction();
-//		tx1.addInput(genesiseTx.getHash(), 0);
-//		tx1.addOutput(10, aliceKeypair.getPublic());
-//		byte[] sig1 = signMessage(scroogeKeypair.getPrivate(), tx1.getRawDataToSign(0));
-//		tx1.addSignature(sig1, 0);
-//		tx1.finalize();
-//
-//		assertTrue(txHandler.isValidTx(tx1));
-//		Transaction[] acceptedRx = txHandler.handleTxs(new Transaction[] { tx1 });
-//		assertEquals(acceptedRx.length, 1);
-//
-//		// Alice transfer 10 coins to bob
-//		Transaction tx2 = new Transaction();
-//		tx2.addInput(tx1.getHash(), 0);
-//		tx2.addOutput(10, bobKeypair.getPublic());
-//		byte[] sig2 = signMessage(aliceKeypair.getPrivate(), tx2.getRawDataToSign(0));
-//		tx2.addSignature(sig2, 0);
-//		tx2.finalize();
-//		assertTrue(txHandler.isValidTx(tx2));
-//		acceptedRx = txHandler.handleTxs(new Transaction[] { tx2 });
-//		assertEquals(acceptedRx.length, 1);
-//
-//		// Alice then transfer the same 10 coins to mike
-//		Transaction tx3 = new Transaction();
-//		tx3.addInput(tx1.getHash(), 0);
-//		tx3.addOutput(10, bobKeypair.getPublic());
-//		byte[] sig3 = signMessage(aliceKeypair.getPrivate(), tx3.getRawDataToSign(0));
-//		tx3.addSignature(sig3, 0);
-//		tx3.finalize();
-//		assertFalse(txHandler.isValidTx(tx3));
-//	}
-//
-//	private void GenerateInitialCoins() {
-//		genesiseTx = new Transaction();
-//		genesiseTx.addOutput(10, scroogeKeypair.getPublic());
-//		genesiseTx.finalize();
-//
-//		UTXOPool pool = new UTXOPool();
-//		UTXO utxo = new UTXO(genesiseTx.getHash(), 0);
-//		pool.addUTXO(utxo, genesiseTx.getOutput(0));
-//
-//		txHandler = new MaxFeeTxHandler(pool);
-//	}
-//
-//	private void generateKeypair() throws NoSuchAlgorithmException, NoSuchProviderException {
-//		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA", "SUN");
-//		SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
-//		keyGen.initialize(1024, random);
-//		scroogeKeypair = keyGen.generateKeyPair();
-//		aliceKeypair = keyGen.generateKeyPair();
-//		bobKeypair = keyGen.generateKeyPair();
-//		mikeKeypair = keyGen.generateKeyPair();
-//	}
-//
-//	private byte[] signMessage(PrivateKey sk, byte[] message)
-//			throws NoSuchAlgorithmException, NoSuchProviderException, SignatureException, InvalidKeyException {
-//		Signature sig = Signature.getInstance("SHA1withDSA", "SUN");
-//		sig.initSign(sk);
-//		sig.update(message);
-//		return sig.sign();
-//	}
-//
-//}
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.security.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class MaxFeeTxHandlerTest {
+	static KeyPair scroogeKeypair;
+	static KeyPair aliceKeypair;
+	static KeyPair bobKeypair;
+	static KeyPair mikeKeypair;
+
+	Transaction genesisTx;
+	UTXOPool pool;
+
+	@BeforeAll
+	static void generateKeypairs() throws NoSuchAlgorithmException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		scroogeKeypair = keyGen.generateKeyPair();
+		aliceKeypair = keyGen.generateKeyPair();
+		bobKeypair = keyGen.generateKeyPair();
+		mikeKeypair = keyGen.generateKeyPair();
+	}
+
+	@BeforeEach
+	void generateInitialCoins() {
+		genesisTx = new Transaction();
+		genesisTx.addOutput(10, scroogeKeypair.getPublic());
+		genesisTx.addOutput(10, scroogeKeypair.getPublic());
+		genesisTx.finalize();
+
+		pool = new UTXOPool();
+		pool.addUTXO(new UTXO(genesisTx.getHash(), 0), genesisTx.getOutput(0));
+		pool.addUTXO(new UTXO(genesisTx.getHash(), 1), genesisTx.getOutput(1));
+	}
+
+	static Transaction transfer(Transaction parent, int index, KeyPair signer, double... values)
+			throws GeneralSecurityException {
+		Transaction tx = new Transaction();
+		tx.addInput(parent.getHash(), index);
+		for (double value : values) {
+			tx.addOutput(value, signer == scroogeKeypair ? aliceKeypair.getPublic() : mikeKeypair.getPublic());
+		}
+		Signature sig = Signature.getInstance("SHA256withRSA");
+		sig.initSign(signer.getPrivate());
+		sig.update(tx.getRawDataToSign(0));
+		tx.addSignature(sig.sign(), 0);
+		tx.finalize();
+		return tx;
+	}
+
+	@Test
+	void shouldAcceptHighestFeeFirstAndUnlockChildren() throws GeneralSecurityException {
+		// Scrooge transfers 4 coins to Alice and 6 to Alice again, no fee
+		Transaction tx1 = transfer(genesisTx, 0, scroogeKeypair, 4, 6);
+		// Alice transfers 3.4 of her 4 to Mike, fee 0.6
+		Transaction tx2 = transfer(tx1, 0, aliceKeypair, 3.4);
+		// Alice transfers 5.5 of her 6 to Mike, fee 0.5
+		Transaction tx3 = transfer(tx1, 1, aliceKeypair, 5.5);
+		// Alice overspends
+		Transaction tx4 = transfer(tx1, 1, aliceKeypair, 6.5);
+
+		MaxFeeTxHandler handler = new MaxFeeTxHandler(pool);
+		Transaction[] accepted = handler.handleTxs(new Transaction[]{tx4, tx3, tx2, tx1});
+		assert(accepted.length == 3);
+		assert(accepted[0] == tx1);
+		assert(accepted[1] == tx2);
+		assert(accepted[2] == tx3);
+		assert(handler.getPool().contains(new UTXO(tx3.getHash(), 0)));
+		assert(!handler.getPool().contains(new UTXO(tx1.getHash(), 1)));
+	}
+
+	@Test
+	void shouldPreferHigherFeeDoubleSpendAndKeepEqualFees() throws GeneralSecurityException {
+		Transaction low = transfer(genesisTx, 0, scroogeKeypair, 9);
+		Transaction high = transfer(genesisTx, 0, scroogeKeypair, 7);
+		// same fee as low, spending the other output, must not be dropped as a duplicate
+		Transaction sameFee = transfer(genesisTx, 1, scroogeKeypair, 9);
+
+		MaxFeeTxHandler handler = new MaxFeeTxHandler(pool);
+		Transaction[] accepted = handler.handleTxs(new Transaction[]{low, sameFee, high});
+		assert(accepted.length == 2);
+		assert(accepted[0] == high);
+		assert(accepted[1] == sameFee);
+	}
+
+	@Test
+	void shouldVerifySignaturesOnlyForConsideredTransactions() throws GeneralSecurityException {
+		Transaction good = transfer(genesisTx, 0, scroogeKeypair, 5);
+		Transaction overspend = transfer(genesisTx, 1, scroogeKeypair, 11);
+		Transaction wrongSigner = transfer(genesisTx, 1, aliceKeypair, 1);
+		Transaction loser = transfer(genesisTx, 0, scroogeKeypair, 10);
+
+		AtomicInteger checks = new AtomicInteger();
+		MaxFeeTxHandler handler = new MaxFeeTxHandler(pool) {
+			@Override
+			boolean verifyInputSignature(Transaction tx, int index, PublicKey address) {
+				checks.incrementAndGet();
+				return super.verifyInputSignature(tx, index, address);
+			}
+		};
+		Transaction[] accepted = handler.handleTxs(new Transaction[]{overspend, loser, wrongSigner, good});
+		assert(accepted.length == 1 && accepted[0] == good);
+		// good and wrongSigner; the overspend never enters the heap and loser's input is gone
+		assert(checks.get() == 2);
+	}
+}
@@ -0,0 +1,106 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.List;
+
+class MempoolTest {
+
+	@Test
+	void shouldValidateOnSubmitAndEvictOnlyAffectedEntries() throws GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair scrooge = keyGen.generateKeyPair();
+		KeyPair alice = keyGen.generateKeyPair();
+		Transaction genesis = new Transaction();
+		for (int i = 0; i < 3; i++) {
+			genesis.addOutput(10, scrooge.getPublic());
+		}
+		genesis.finalize();
+		UTXOPool ledger = new UTXOPool();
+		for (int i = 0; i < genesis.numOutputs(); i++) {
+			ledger.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+		}
+
+		Transaction parent = ParallelTxHandlerTest.spend(genesis, new int[]{0}, 10, scrooge.getPrivate(), alice.getPublic());
+		Transaction child = ParallelTxHandlerTest.spend(parent, new int[]{0}, 9, alice.getPrivate(), scrooge.getPublic());
+		Transaction other = ParallelTxHandlerTest.spend(genesis, new int[]{1}, 10, scrooge.getPrivate(), alice.getPublic());
+		Transaction doubleSpend = ParallelTxHandlerTest.spend(genesis, new int[]{0}, 8, scrooge.getPrivate(), scrooge.getPublic());
+		Transaction external = ParallelTxHandlerTest.spend(genesis, new int[]{0}, 7, scrooge.getPrivate(), scrooge.getPublic());
+
+		Mempool mempool = new Mempool(ledger);
+		assert(mempool.submit(child) == TxHandler.ThreeState.MAYBE);
+		assert(mempool.submit(parent) == TxHandler.ThreeState.TRUE);
+		assert(mempool.submit(child) == TxHandler.ThreeState.TRUE);
+		assert(mempool.submit(other) == TxHandler.ThreeState.TRUE);
+		assert(mempool.submit(doubleSpend) == TxHandler.ThreeState.FALSE);
+		assert(mempool.size() == 3);
+		assert(ledger.size() == 3);
+
+		// a conflicting confirmation evicts the parent and its child but not the unrelated entry
+		List<Transaction> evicted = mempool.applyConfirmed(new Transaction[]{external, other});
+		assert(evicted.size() == 2 && evicted.contains(parent) && evicted.contains(child));
+		assert(mempool.contains(other.getHash()));
+		assert(!mempool.view().contains(new UTXO(parent.getHash(), 0)));
+
+		Transaction[] committed = mempool.closeEpoch();
+		assert(committed.length == 1 && committed[0] == other);
+		assert(mempool.size() == 0);
+		assert(ledger.size() == 3);
+		assert(ledger.contains(new UTXO(external.getHash(), 0)));
+		assert(ledger.contains(new UTXO(other.getHash(), 0)));
+		assert(ledger.contains(new UTXO(genesis.getHash(), 2)));
+		assert(mempool.submit(doubleSpend) == TxHandler.ThreeState.MAYBE);
+	}
+
+	@Test
+	void shouldRestoreConfirmedOutputsOnEviction() throws GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair scrooge = keyGen.generateKeyPair();
+		KeyPair alice = keyGen.generateKeyPair();
+		Transaction genesis = new Transaction();
+		for (int i = 0; i < 2; i++) {
+			genesis.addOutput(10, scrooge.getPublic());
+		}
+		genesis.finalize();
+		UTXOPool ledger = new UTXOPool();
+		for (int i = 0; i < genesis.numOutputs(); i++) {
+			ledger.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+		}
+
+		Mempool mempool = new Mempool(ledger);
+		Transaction confirmed = ParallelTxHandlerTest.spend(genesis, new int[]{0}, 10, scrooge.getPrivate(), scrooge.getPublic());
+		assert(mempool.applyConfirmed(new Transaction[]{confirmed}).isEmpty());
+
+		// spends the confirmed output and a ledger output
+		Transaction entry = new Transaction();
+		entry.addInput(confirmed.getHash(), 0);
+		entry.addInput(genesis.getHash(), 1);
+		entry.addOutput(20, alice.getPublic());
+		for (int i = 0; i < 2; i++) {
+			Signature sig = Signature.getInstance("SHA256withRSA");
+			sig.initSign(scrooge.getPrivate());
+			sig.update(entry.getRawDataToSign(i));
+			entry.addSignature(sig.sign(), i);
+		}
+		entry.finalize();
+		assert(mempool.submit(entry) == TxHandler.ThreeState.TRUE);
+		assert(!mempool.view().contains(new UTXO(confirmed.getHash(), 0)));
+
+		// a conflict on the ledger output gives the confirmed output back
+		Transaction conflict = ParallelTxHandlerTest.spend(genesis, new int[]{1}, 10, scrooge.getPrivate(), alice.getPublic());
+		assert(mempool.applyConfirmed(new Transaction[]{conflict}).equals(List.of(entry)));
+		assert(mempool.view().contains(new UTXO(confirmed.getHash(), 0)));
+		assert(!mempool.view().contains(new UTXO(genesis.getHash(), 1)));
+
+		mempool.closeEpoch();
+		assert(ledger.contains(new UTXO(confirmed.getHash(), 0)));
+		assert(ledger.contains(new UTXO(conflict.getHash(), 0)));
+		assert(ledger.size() == 2);
+	}
+}
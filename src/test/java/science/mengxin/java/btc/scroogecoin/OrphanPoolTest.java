@@ -0,0 +1,80 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+class OrphanPoolTest {
+
+	@Test
+	void shouldCarryOrphansToTheEpochThatProposesTheirParent() throws GeneralSecurityException {
+		DagTxHandlerTest.setUp();
+		Transaction genesis = new Transaction();
+		for (int i = 0; i < 2; i++) {
+			genesis.addOutput(10, DagTxHandlerTest.scrooge.getPublic());
+		}
+		genesis.finalize();
+		UTXOPool pool = new UTXOPool();
+		for (int i = 0; i < genesis.numOutputs(); i++) {
+			pool.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+		}
+		Transaction parent = ParallelTxHandlerTest.spend(genesis, new int[]{0}, 10, DagTxHandlerTest.scrooge.getPrivate(), DagTxHandlerTest.alice.getPublic());
+		Transaction child = ParallelTxHandlerTest.spend(parent, new int[]{0}, 9, DagTxHandlerTest.alice.getPrivate(), DagTxHandlerTest.scrooge.getPublic());
+		Transaction grandChild = ParallelTxHandlerTest.spend(child, new int[]{0}, 8, DagTxHandlerTest.scrooge.getPrivate(), DagTxHandlerTest.alice.getPublic());
+		Transaction loser = ParallelTxHandlerTest.spend(genesis, new int[]{0}, 5, DagTxHandlerTest.scrooge.getPrivate(), DagTxHandlerTest.scrooge.getPublic());
+		Transaction loserChild = ParallelTxHandlerTest.spend(loser, new int[]{0}, 5, DagTxHandlerTest.scrooge.getPrivate(), DagTxHandlerTest.scrooge.getPublic());
+
+		ValidationResult result = new TxHandler(pool).validate(grandChild);
+		assert(result.getState() == TxHandler.ThreeState.MAYBE);
+		assert(result.getMissing().equals(Collections.singletonList(new UTXO(child.getHash(), 0))));
+
+		for (TxHandler handler : new TxHandler[]{new TxHandler(pool), new DagTxHandler(pool)}) {
+			OrphanPool orphans = new OrphanPool();
+			handler.setOrphanPool(orphans);
+			assert(handler.handleTxs(new Transaction[]{grandChild, child}).length == 0);
+			assert(orphans.size() == 2);
+			assert(handler.handleTxs(new Transaction[]{loserChild}).length == 0);
+			assert(orphans.size() == 3);
+
+			// only the waiters of the parent come back; the double spend loser's child is not retried
+			assert(orphans.waitersOf(Collections.singletonList(parent)).equals(Arrays.asList(grandChild, child)));
+			Transaction[] accepted = handler.handleTxs(new Transaction[]{parent, loser});
+			assert(accepted.length == 3);
+			assert(Arrays.asList(accepted).containsAll(Arrays.asList(parent, child, grandChild)));
+			assert(handler.getPool().contains(new UTXO(grandChild.getHash(), 0)));
+			assert(orphans.size() == 1 && orphans.contains(loserChild.getHash()));
+		}
+	}
+
+	@Test
+	void shouldEvictBySizeAndAge() throws GeneralSecurityException {
+		DagTxHandlerTest.setUp();
+		OrphanPool orphans = new OrphanPool(2, 1);
+		Transaction[] txs = new Transaction[3];
+		for (int i = 0; i < txs.length; i++) {
+			txs[i] = new Transaction();
+			txs[i].addInput(new byte[]{(byte) i}, 0);
+			txs[i].addOutput(1, DagTxHandlerTest.scrooge.getPublic());
+			txs[i].finalize();
+			orphans.add(txs[i], Collections.singletonList(new UTXO(new byte[]{(byte) i}, 0)));
+		}
+		assert(orphans.size() == 2 && !orphans.contains(txs[0].getHash()));
+
+		Transaction parent = new Transaction();
+		parent.addOutput(1, DagTxHandlerTest.scrooge.getPublic());
+		parent.finalize();
+		assert(orphans.waitersOf(Collections.singletonList(parent)).isEmpty());
+
+		assert(orphans.endEpoch() == 0);
+		orphans.add(txs[0], Collections.singletonList(new UTXO(new byte[]{0}, 0)));
+		assert(orphans.size() == 2 && !orphans.contains(txs[1].getHash()));
+		assert(orphans.endEpoch() == 1);
+		List<Transaction> resolved = orphans.resolve(txs[0]);
+		assert(resolved.isEmpty());
+		assert(orphans.size() == 1 && orphans.contains(txs[0].getHash()));
+		assert(orphans.endEpoch() == 1 && orphans.size() == 0);
+	}
+}
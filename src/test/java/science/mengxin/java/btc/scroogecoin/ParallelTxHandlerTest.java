@@ -0,0 +1,115 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+
+class ParallelTxHandlerTest {
+	static KeyPair scrooge;
+	static KeyPair alice;
+	static Transaction genesis;
+
+	@BeforeAll
+	static void setUp() throws NoSuchAlgorithmException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		scrooge = keyGen.generateKeyPair();
+		alice = keyGen.generateKeyPair();
+
+		genesis = new Transaction();
+		for (int i = 0; i < 40; i++) {
+			genesis.addOutput(10, scrooge.getPublic());
+		}
+		genesis.finalize();
+	}
+
+	static UTXOPool genesisPool() {
+		UTXOPool pool = new UTXOPool();
+		for (int i = 0; i < genesis.numOutputs(); i++) {
+			pool.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+		}
+		return pool;
+	}
+
+	static Transaction spend(Transaction parent, int[] indices, double value, PrivateKey signer, PublicKey to)
+			throws GeneralSecurityException {
+		Transaction tx = new Transaction();
+		for (int index : indices) {
+			tx.addInput(parent.getHash(), index);
+		}
+		tx.addOutput(value, to);
+		for (int i = 0; i < indices.length; i++) {
+			Signature sig = Signature.getInstance("SHA256withRSA");
+			sig.initSign(signer);
+			sig.update(tx.getRawDataToSign(i));
+			tx.addSignature(sig.sign(), i);
+		}
+		tx.finalize();
+		return tx;
+	}
+
+	static Transaction[] epoch() throws GeneralSecurityException {
+		ArrayList<Transaction> txs = new ArrayList<>();
+		// one very large transaction spending 30 genesis outputs
+		int[] wide = new int[30];
+		for (int i = 0; i < wide.length; i++) {
+			wide[i] = i;
+		}
+		Transaction big = spend(genesis, wide, 300, scrooge.getPrivate(), alice.getPublic());
+		// a chain hanging off the large transaction, listed before its parent
+		Transaction child = spend(big, new int[]{0}, 250, alice.getPrivate(), scrooge.getPublic());
+		Transaction grandChild = spend(child, new int[]{0}, 200, scrooge.getPrivate(), alice.getPublic());
+		txs.add(grandChild);
+		txs.add(child);
+		txs.add(big);
+		// double spend of output 30, first one wins
+		txs.add(spend(genesis, new int[]{30}, 5, scrooge.getPrivate(), alice.getPublic()));
+		txs.add(spend(genesis, new int[]{30}, 6, scrooge.getPrivate(), alice.getPublic()));
+		// signed by the wrong key
+		txs.add(spend(genesis, new int[]{31}, 5, alice.getPrivate(), alice.getPublic()));
+		// overspend
+		txs.add(spend(genesis, new int[]{32, 33}, 25, scrooge.getPrivate(), alice.getPublic()));
+		// unknown parent
+		txs.add(spend(child, new int[]{3}, 1, scrooge.getPrivate(), alice.getPublic()));
+		for (int i = 34; i < 40; i++) {
+			txs.add(spend(genesis, new int[]{i}, 9, scrooge.getPrivate(), alice.getPublic()));
+		}
+		return txs.toArray(new Transaction[0]);
+	}
+
+	static HashSet<String> describe(UTXOPool pool) {
+		HashSet<String> entries = new HashSet<>();
+		for (UTXO utxo : pool.getAllUTXO()) {
+			Transaction.Output out = pool.getTxOutput(utxo);
+			entries.add(utxo.hashCode() + ":" + utxo.getIndex() + ":" + out.value + ":" + out.address.hashCode());
+		}
+		return entries;
+	}
+
+	@Test
+	void shouldMatchSequentialHandling() throws GeneralSecurityException {
+		Transaction[] txs = epoch();
+
+		TxHandler sequential = new TxHandler(genesisPool());
+		Transaction[] expected = sequential.handleTxs(txs);
+
+		ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+		try {
+			TxHandler parallel = new TxHandler(genesisPool(), forkJoinPool);
+			Transaction[] actual = parallel.handleTxs(txs);
+
+			assert(expected.length == 10);
+			assert(actual.length == expected.length);
+			for (int i = 0; i < expected.length; i++) {
+				assert(actual[i] == expected[i]);
+			}
+			assert(describe(parallel.getPool()).equals(describe(sequential.getPool())));
+		} finally {
+			forkJoinPool.shutdown();
+		}
+	}
+}
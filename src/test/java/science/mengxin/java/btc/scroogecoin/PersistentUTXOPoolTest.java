@@ -0,0 +1,27 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+
+class PersistentUTXOPoolTest {
+
+	@Test
+	void shouldBehaveLikeHashMapPoolWithIndependentCopies() throws GeneralSecurityException {
+		// one-byte hashes give UTXOs with equal hash codes, exercising collision nodes
+		PersistentUTXOPool actual = new PersistentUTXOPool();
+		UTXOPool expected = UTXOPoolConformance.assertBehavesLikeHashMapPool(actual, PersistentUTXOPool::new, 9, 1);
+		PrimitiveUTXOPoolTest.assertSameContents(expected, new PersistentUTXOPool(expected));
+
+		// removing everything leaves an empty pool that still works, and its copy keeps its contents
+		UTXOPool copy = actual.copy();
+		for (UTXO ut : actual.getAllUTXO()) {
+			actual.removeUTXO(ut);
+		}
+		assert(actual.size() == 0 && actual.getAllUTXO().isEmpty());
+		UTXO ut = expected.getAllUTXO().get(0);
+		actual.addUTXO(ut, null);
+		assert(actual.contains(ut) && actual.getTxOutput(ut) == null);
+		PrimitiveUTXOPoolTest.assertSameContents(expected, copy);
+	}
+}
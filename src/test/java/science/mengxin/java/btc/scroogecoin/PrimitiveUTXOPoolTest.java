@@ -0,0 +1,46 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+class PrimitiveUTXOPoolTest {
+
+	static void assertSameContents(UTXOPool expected, UTXOPool actual) {
+		assert(expected.size() == actual.size());
+		assert(new HashSet<>(expected.getAllUTXO()).equals(new HashSet<>(actual.getAllUTXO())));
+		for (UTXO ut : expected.getAllUTXO()) {
+			assert(actual.contains(ut));
+			assert(actual.getTxOutput(ut) == expected.getTxOutput(ut));
+			assert(actual.getTxOutput(ut.getTxHash(), ut.getIndex()) == expected.getTxOutput(ut));
+		}
+	}
+
+	@Test
+	void shouldBehaveLikeHashMapPool() throws GeneralSecurityException {
+		PrimitiveUTXOPool actual = new PrimitiveUTXOPool();
+		UTXOPool expected = UTXOPoolConformance.assertBehavesLikeHashMapPool(actual, PrimitiveUTXOPool::new, 42, 12);
+		assertSameContents(expected, new PrimitiveUTXOPool(actual));
+		assertSameContents(expected, new PrimitiveUTXOPool(expected));
+		assertSameContents(expected, new UTXOPool(actual));
+
+		// spending everything and creating more than the table holds resizes it
+		Random random = new Random(42);
+		Transaction tx = new Transaction();
+		HashMap<UTXO, Transaction.Output> created = new HashMap<>();
+		for (int i = 0; i < 5000; i++) {
+			byte[] hash = new byte[32];
+			random.nextBytes(hash);
+			created.put(new UTXO(hash, i), tx.new Output(i, null));
+		}
+		ArrayList<UTXO> spent = expected.getAllUTXO();
+		actual.applyUpdates(spent, created);
+		expected.applyUpdates(spent, created);
+		assert(actual.size() == 5000);
+		assertSameContents(expected, actual);
+	}
+}
@@ -0,0 +1,98 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ShardedUTXOPoolTest {
+
+	@Test
+	void shouldBehaveLikeHashMapPool() throws GeneralSecurityException {
+		ShardedUTXOPool sharded = new ShardedUTXOPool(8);
+		UTXOPool expected = UTXOPoolConformance.assertBehavesLikeHashMapPool(sharded, genesis -> new ShardedUTXOPool(genesis, 16), 3, 1);
+		PrimitiveUTXOPoolTest.assertSameContents(expected, new ShardedUTXOPool(expected, 4));
+	}
+
+	@Test
+	void shouldLetExactlyOneConflictingSpendSucceed() throws Exception {
+		Random random = new Random(9);
+		ShardedUTXOPool pool = new ShardedUTXOPool(16);
+		// random funding hashes spread the outputs over the shards, so spends lock several of them
+		ArrayList<UTXO> funded = new ArrayList<>();
+		HashSet<Integer> fundedShards = new HashSet<>();
+		for (int f = 0; f < 64; f++) {
+			Transaction funding = new Transaction();
+			for (int i = 0; i < 8; i++) {
+				funding.addOutput(1, null);
+			}
+			byte[] hash = new byte[32];
+			random.nextBytes(hash);
+			funding.setHash(hash);
+			fundedShards.add(pool.shardOf(hash));
+			for (int i = 0; i < funding.numOutputs(); i++) {
+				UTXO ut = new UTXO(funding.getHash(), i);
+				pool.addUTXO(ut, funding.getOutput(i));
+				funded.add(ut);
+			}
+		}
+		assert(fundedShards.size() == pool.getShardCount());
+		// three spenders per output, each also spending a random second output
+		List<Transaction> spenders = new ArrayList<>();
+		for (int copy = 0; copy < 3; copy++) {
+			for (UTXO ut : funded) {
+				UTXO other = funded.get(random.nextInt(funded.size()));
+				Transaction tx = new Transaction();
+				tx.addInput(ut.getTxHash(), ut.getIndex());
+				tx.addInput(other.getTxHash(), other.getIndex());
+				tx.addOutput(1, null);
+				byte[] hash = new byte[32];
+				random.nextBytes(hash);
+				tx.setHash(hash);
+				spenders.add(tx);
+			}
+		}
+		Collections.shuffle(spenders, random);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		AtomicInteger applied = new AtomicInteger();
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				int from = t;
+				futures.add(executor.submit(() -> {
+					for (int i = from; i < spenders.size(); i += 8) {
+						if (pool.spend(spenders.get(i)))
+							applied.incrementAndGet();
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// every funding output is spent by at most one applied transaction, and the pool agrees
+		HashSet<UTXO> spentBy = new HashSet<>();
+		for (Transaction tx : spenders) {
+			if (pool.contains(new UTXO(tx.getHash(), 0))) {
+				for (Transaction.Input input : tx.getInputs()) {
+					assert(spentBy.add(input.getUTXO()));
+					assert(!pool.contains(new UTXO(input.prevTxHash, input.outputIndex)));
+				}
+			}
+		}
+		assert(applied.get() > 0);
+		assert(pool.size() == funded.size() - applied.get());
+		assert(pool.size() == pool.getAllUTXO().size());
+	}
+}
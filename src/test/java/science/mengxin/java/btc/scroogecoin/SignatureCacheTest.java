@@ -0,0 +1,97 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.*;
+
+class SignatureCacheTest {
+
+	@Test
+	void shouldSkipVerificationOnRevalidation() throws GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair scrooge = keyGen.generateKeyPair();
+
+		Transaction genesis = new Transaction();
+		genesis.addOutput(10, scrooge.getPublic());
+		genesis.addOutput(10, scrooge.getPublic());
+		genesis.finalize();
+		UTXOPool pool = new UTXOPool();
+		pool.addUTXO(new UTXO(genesis.getHash(), 0), genesis.getOutput(0));
+		pool.addUTXO(new UTXO(genesis.getHash(), 1), genesis.getOutput(1));
+
+		Transaction tx = new Transaction();
+		tx.addInput(genesis.getHash(), 0);
+		tx.addInput(genesis.getHash(), 1);
+		tx.addOutput(20, scrooge.getPublic());
+		for (int i = 0; i < 2; i++) {
+			Signature sig = Signature.getInstance("SHA256withRSA");
+			sig.initSign(scrooge.getPrivate());
+			sig.update(tx.getRawDataToSign(i));
+			tx.addSignature(sig.sign(), i);
+		}
+		tx.finalize();
+
+		SignatureCache cache = new SignatureCache(2);
+		TxHandler txHandler = new TxHandler(pool);
+		txHandler.setSignatureCache(cache);
+
+		assert(txHandler.isValidTx(tx));
+		assert(cache.getHits() == 0);
+		assert(cache.size() == 2);
+		assert(txHandler.isValidTx(tx));
+		assert(cache.getHits() == 2);
+		assert(!cache.isVerified(tx, 0, keyGen.generateKeyPair().getPublic()));
+
+		// least recently used entry goes first
+		Transaction other = new Transaction();
+		other.addInput(genesis.getHash(), 0);
+		other.addSignature(new byte[]{1}, 0);
+		other.finalize();
+		cache.isVerified(tx, 0, scrooge.getPublic());
+		cache.markVerified(other, 0, scrooge.getPublic());
+		assert(cache.size() == 2);
+		assert(cache.isVerified(tx, 0, scrooge.getPublic()));
+		assert(!cache.isVerified(tx, 1, scrooge.getPublic()));
+	}
+
+	@Test
+	void shouldRejectForgedTwinOfCachedTransaction() throws GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair scrooge = keyGen.generateKeyPair();
+		KeyPair mallory = keyGen.generateKeyPair();
+
+		Transaction genesis = new Transaction();
+		genesis.addOutput(10, scrooge.getPublic());
+		genesis.finalize();
+		UTXOPool pool = new UTXOPool();
+		pool.addUTXO(new UTXO(genesis.getHash(), 0), genesis.getOutput(0));
+
+		Transaction genuine = new Transaction();
+		genuine.addInput(genesis.getHash(), 0);
+		genuine.addOutput(10, scrooge.getPublic());
+		Signature sig = Signature.getInstance("SHA256withRSA");
+		sig.initSign(scrooge.getPrivate());
+		sig.update(genuine.getRawDataToSign(0));
+		genuine.addSignature(sig.sign(), 0);
+		genuine.finalize();
+
+		// same hash and signature, different outputs
+		Transaction forged = new Transaction();
+		forged.addInput(genesis.getHash(), 0);
+		forged.addOutput(10, mallory.getPublic());
+		forged.addSignature(genuine.getInput(0).signature, 0);
+		forged.setHash(genuine.getHash().clone());
+
+		SignatureCache cache = new SignatureCache(16);
+		TxHandler txHandler = new TxHandler(pool);
+		txHandler.setSignatureCache(cache);
+		assert(txHandler.isValidTx(genuine));
+		assert(cache.size() == 1);
+		assert(!cache.isVerified(forged, 0, scrooge.getPublic()));
+		assert(!txHandler.isValidTx(forged));
+		assert(txHandler.handleTxs(new Transaction[]{forged}).length == 0);
+		assert(cache.size() == 1);
+	}
+}
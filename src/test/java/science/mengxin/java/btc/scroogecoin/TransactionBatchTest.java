@@ -0,0 +1,90 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+class TransactionBatchTest {
+
+	@Test
+	void shouldHandleBatchesLikeTransactionArrays() throws GeneralSecurityException, IOException {
+		DagTxHandlerTest.setUp();
+		Random random = new Random(5);
+		Transaction genesis = new Transaction();
+		for (int i = 0; i < 8; i++) {
+			genesis.addOutput(100, DagTxHandlerTest.scrooge.getPublic());
+		}
+		genesis.finalize();
+		UTXOPool pool = new UTXOPool();
+		for (int i = 0; i < genesis.numOutputs(); i++) {
+			pool.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+		}
+		Transaction[] txs = DagTxHandlerTest.randomEpoch(genesis, random);
+
+		TxHandler expected = new TxHandler(pool);
+		Transaction[] accepted = expected.handleTxs(txs);
+		assert(accepted.length > 1);
+
+		BatchTxHandler fromObjects = new BatchTxHandler(pool);
+		int[] indices = fromObjects.handleBatch(TransactionBatch.of(txs));
+		assert(indices.length == accepted.length);
+		for (int i = 0; i < indices.length; i++) {
+			assert(txs[indices[i]] == accepted[i]);
+		}
+		PrimitiveUTXOPoolTest.assertSameContents(expected.getPool(), fromObjects.getPool());
+
+		Path file = Files.createTempFile("epoch", ".bin");
+		try {
+			try (TransactionEncoder encoder = new TransactionEncoder(FileChannel.open(file, StandardOpenOption.WRITE))) {
+				encoder.writeAll(txs);
+				encoder.endEpoch();
+			}
+			TransactionBatch decoded = TransactionBatch.read(file, new PublicKeyCache());
+			assert(decoded.size() == txs.length);
+			for (int t = 0; t < txs.length; t++) {
+				Transaction copy = decoded.toTransaction(t);
+				assert(Arrays.equals(copy.getHash(), txs[t].getHash()));
+				assert(Arrays.equals(copy.getRawTx(), txs[t].getRawTx()));
+			}
+
+			BatchTxHandler fromFile = new BatchTxHandler(pool);
+			assert(Arrays.equals(fromFile.handleBatch(decoded), indices));
+			MappedUTXOPoolTest.assertSameContents(expected.getPool(), fromFile.getPool());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	void shouldRejectForgedHashLengthsWithoutAllocating() {
+		// a transaction hash, then a previous tx hash, claiming far more bytes than the record has
+		for (boolean inInput : new boolean[]{false, true}) {
+			for (int length : new int[]{1 << 30, Integer.MAX_VALUE - 1}) {
+				ByteBuffer body = ByteBuffer.allocate(16);
+				if (inInput) {
+					WireFormat.putVarInt(body, 1);
+					WireFormat.putVarInt(body, 1);
+				}
+				WireFormat.putVarInt(body, length + 1);
+				body.put((byte) 0);
+				ByteBuffer stream = ByteBuffer.allocate(32);
+				stream.putInt(WireFormat.MAGIC).put(WireFormat.VERSION).put(WireFormat.TAG_TX);
+				WireFormat.putVarInt(stream, body.position());
+				stream.put(body.array(), 0, body.position()).flip();
+				try {
+					TransactionBatch.read(stream, new PublicKeyCache());
+					assert(false);
+				} catch (IOException expected) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.*;
+import java.util.Arrays;
+
+class TransactionCodecTest {
+
+	static Transaction[][] epochs() throws GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair a = keyGen.generateKeyPair();
+		KeyPair b = keyGen.generateKeyPair();
+
+		Transaction genesis = new Transaction();
+		genesis.addOutput(10, a.getPublic());
+		genesis.addOutput(20, b.getPublic());
+		genesis.finalize();
+
+		Transaction spend = new Transaction();
+		spend.addInput(genesis.getHash(), 0);
+		spend.addInput(genesis.getHash(), 1);
+		spend.addInput(null, -5);
+		spend.addOutput(29.5, b.getPublic());
+		spend.addOutput(0.5, a.getPublic());
+		Signature sig = Signature.getInstance("SHA256withRSA");
+		sig.initSign(a.getPrivate());
+		sig.update(spend.getRawDataToSign(0));
+		spend.addSignature(sig.sign(), 0);
+		spend.addSignature(new byte[70000], 1);
+		spend.finalize();
+
+		Transaction unhashed = new Transaction();
+		unhashed.addOutput(1, null);
+
+		return new Transaction[][]{{genesis}, {}, {spend, unhashed}};
+	}
+
+	static void assertSame(Transaction expected, Transaction actual) {
+		assert(Arrays.equals(expected.getHash(), actual.getHash()));
+		assert(expected.numInputs() == actual.numInputs());
+		assert(expected.numOutputs() == actual.numOutputs());
+		for (int i = 0; i < expected.numInputs(); i++) {
+			assert(Arrays.equals(expected.getInput(i).prevTxHash, actual.getInput(i).prevTxHash));
+			assert(expected.getInput(i).outputIndex == actual.getInput(i).outputIndex);
+			assert(Arrays.equals(expected.getInput(i).signature, actual.getInput(i).signature));
+		}
+		for (int i = 0; i < expected.numOutputs(); i++) {
+			assert(expected.getOutput(i).value == actual.getOutput(i).value);
+			PublicKey address = expected.getOutput(i).address;
+			assert(address == null ? actual.getOutput(i).address == null : address.equals(actual.getOutput(i).address));
+		}
+	}
+
+	static void assertDecodes(Transaction[][] epochs, TransactionDecoder decoder) throws IOException {
+		for (Transaction[] epoch : epochs) {
+			Transaction[] decoded = decoder.nextEpoch();
+			assert(decoded.length == epoch.length);
+			for (int i = 0; i < epoch.length; i++) {
+				assertSame(epoch[i], decoded[i]);
+			}
+		}
+		assert(decoder.nextEpoch() == null);
+	}
+
+	@Test
+	void shouldRoundTripThroughChannelAndMappedFile() throws GeneralSecurityException, IOException {
+		Transaction[][] epochs = epochs();
+		Path file = Files.createTempFile("transactions", ".bin");
+		try {
+			try (TransactionEncoder encoder = new TransactionEncoder(FileChannel.open(file, StandardOpenOption.WRITE))) {
+				for (Transaction[] epoch : epochs) {
+					encoder.writeAll(epoch);
+					encoder.endEpoch();
+				}
+			}
+
+			PublicKeyCache keyCache = new PublicKeyCache();
+			try (TransactionDecoder decoder = new TransactionDecoder(FileChannel.open(file, StandardOpenOption.READ), keyCache)) {
+				assertDecodes(epochs, decoder);
+			}
+			assert(keyCache.size() == 2);
+
+			try (TransactionDecoder decoder = TransactionDecoder.open(file, keyCache)) {
+				Transaction genesis = decoder.next();
+				Transaction spend = decoder.next();
+				// keys are shared, and the spend still verifies after decoding
+				assert(spend.getOutput(1).address == genesis.getOutput(0).address);
+				assert(Crypto.verifySignature(genesis.getOutput(0).address, spend, 0, spend.getInput(0).signature));
+				assert(decoder.next() != null);
+				assert(decoder.next() == null);
+			}
+			assert(keyCache.size() == 2);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	void shouldRejectTransactionsWhoseHashDoesNotMatch() throws GeneralSecurityException, IOException {
+		Transaction genesis = epochs()[0][0];
+		Transaction forged = new Transaction(genesis);
+		forged.getHash()[0] ^= 1;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (TransactionEncoder encoder = new TransactionEncoder(Channels.newChannel(bytes))) {
+			encoder.write(genesis);
+			encoder.write(forged);
+		}
+		ByteBuffer stream = ByteBuffer.wrap(bytes.toByteArray());
+		try (TransactionDecoder decoder = new TransactionDecoder(stream, new PublicKeyCache())) {
+			assertSame(genesis, decoder.next());
+			try {
+				decoder.next();
+				assert(false);
+			} catch (IOException expected) {
+			}
+		}
+		try {
+			TransactionBatch.read(stream, new PublicKeyCache());
+			assert(false);
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	void shouldRejectNegativeAndOversizedRecordLengths() throws IOException {
+		for (int size : new int[]{-6, WireFormat.MAX_RECORD_BYTES + 1, Integer.MAX_VALUE}) {
+			ByteBuffer header = ByteBuffer.allocate(11);
+			header.putInt(WireFormat.MAGIC).put(WireFormat.VERSION).put(WireFormat.TAG_EPOCH);
+			WireFormat.putVarInt(header, size);
+			byte[] stream = Arrays.copyOf(header.array(), header.position());
+			try (TransactionDecoder decoder = new TransactionDecoder(ByteBuffer.wrap(stream), new PublicKeyCache())) {
+				decoder.nextEpoch();
+				assert(false);
+			} catch (IOException expected) {
+			}
+			try (TransactionDecoder decoder = new TransactionDecoder(Channels.newChannel(new ByteArrayInputStream(stream)))) {
+				decoder.next();
+				assert(false);
+			} catch (IOException expected) {
+			}
+		}
+	}
+}
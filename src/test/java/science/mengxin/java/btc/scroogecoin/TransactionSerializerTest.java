@@ -0,0 +1,100 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+class TransactionSerializerTest {
+
+	/** The original boxed-list serialization, kept here as the reference encoding */
+	static byte[] legacyRawDataToSign(Transaction tx, int index) {
+		ArrayList<Byte> sigData = new ArrayList<Byte>();
+		Transaction.Input in = tx.getInput(index);
+		if (in.prevTxHash != null)
+			for (byte b : in.prevTxHash)
+				sigData.add(b);
+		for (byte b : ByteBuffer.allocate(Integer.SIZE / 8).putInt(in.outputIndex).array())
+			sigData.add(b);
+		for (Transaction.Output op : tx.getOutputs()) {
+			for (byte b : ByteBuffer.allocate(Double.SIZE / 8).putDouble(op.value).array())
+				sigData.add(b);
+			for (byte b : op.address.getEncoded())
+				sigData.add(b);
+		}
+		return unbox(sigData);
+	}
+
+	static byte[] legacyRawTx(Transaction tx) {
+		ArrayList<Byte> rawTx = new ArrayList<Byte>();
+		for (Transaction.Input in : tx.getInputs()) {
+			if (in.prevTxHash != null)
+				for (byte b : in.prevTxHash)
+					rawTx.add(b);
+			for (byte b : ByteBuffer.allocate(Integer.SIZE / 8).putInt(in.outputIndex).array())
+				rawTx.add(b);
+			if (in.signature != null)
+				for (byte b : in.signature)
+					rawTx.add(b);
+		}
+		for (Transaction.Output op : tx.getOutputs()) {
+			for (byte b : ByteBuffer.allocate(Double.SIZE / 8).putDouble(op.value).array())
+				rawTx.add(b);
+			for (byte b : op.address.getEncoded())
+				rawTx.add(b);
+		}
+		return unbox(rawTx);
+	}
+
+	static byte[] unbox(ArrayList<Byte> bytes) {
+		byte[] out = new byte[bytes.size()];
+		int i = 0;
+		for (Byte b : bytes)
+			out[i++] = b;
+		return out;
+	}
+
+	@Test
+	void shouldProduceLegacyBytes() throws GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair a = keyGen.generateKeyPair();
+		KeyPair b = keyGen.generateKeyPair();
+
+		Transaction tx = new Transaction();
+		tx.addInput("GenesisBlock".getBytes(), 3);
+		tx.addInput(null, -1);
+		tx.addInput(new byte[32], 7);
+		tx.addOutput(12.5, a.getPublic());
+		tx.addOutput(-0.0, b.getPublic());
+		tx.addOutput(Double.MAX_VALUE, a.getPublic());
+		Signature sig = Signature.getInstance("SHA256withRSA");
+		sig.initSign(a.getPrivate());
+		sig.update(tx.getRawDataToSign(0));
+		tx.addSignature(sig.sign(), 0);
+		tx.addSignature(new byte[]{9, 8, 7}, 2);
+		tx.finalize();
+
+		assert(Arrays.equals(tx.getRawTx(), legacyRawTx(tx)));
+		for (int i = 0; i < tx.numInputs(); i++) {
+			assert(Arrays.equals(tx.getRawDataToSign(i), legacyRawDataToSign(tx, i)));
+		}
+		assert(Arrays.equals(tx.getHash(), MessageDigest.getInstance("SHA-256").digest(legacyRawTx(tx))));
+
+		// a little-endian direct buffer gets the same bytes and keeps its order
+		ByteBuffer direct = ByteBuffer.allocateDirect(TransactionSerializer.rawTxSize(tx)).order(ByteOrder.LITTLE_ENDIAN);
+		TransactionSerializer.writeRawTx(tx, direct);
+		assert(!direct.hasRemaining());
+		assert(direct.order() == ByteOrder.LITTLE_ENDIAN);
+		byte[] copied = new byte[direct.capacity()];
+		direct.flip();
+		direct.get(copied);
+		assert(Arrays.equals(copied, legacyRawTx(tx)));
+
+		assert(Crypto.verifySignature(a.getPublic(), tx, 0, tx.getInput(0).signature));
+		assert(!Crypto.verifySignature(b.getPublic(), tx, 0, tx.getInput(0).signature));
+	}
+}
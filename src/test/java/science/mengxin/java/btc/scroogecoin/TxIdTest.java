@@ -0,0 +1,110 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+
+class TxIdTest {
+
+	@Test
+	void shouldShareIdsBetweenTransactionsInputsAndUTXOs() {
+		byte[] hash = new byte[32];
+		hash[0] = 7;
+		TxId id = TxId.of(hash);
+		hash[1] = 1;
+		// an id keeps its own copy and matches UTXOs built from the bytes
+		assert(id.getBytes()[1] == 0);
+		UTXO fromBytes = new UTXO(id.getBytes(), 2);
+		UTXO fromId = new UTXO(id, 2);
+		assert(fromBytes.equals(fromId) && fromId.equals(fromBytes));
+		assert(fromBytes.hashCode() == fromId.hashCode());
+		assert(fromBytes.compareTo(fromId) == 0);
+		assert(fromId.getTxId() == id);
+		assert(!fromId.equals(new UTXO(id, 3)));
+
+		TxIdInterner interner = new TxIdInterner(2);
+		TxId shared = interner.intern(id);
+		assert(shared == id);
+		assert(interner.intern(id.getBytes().clone()) == id);
+		assert(interner.intern(TxId.of(id.getBytes())) == id);
+		interner.intern(new byte[]{1});
+		interner.intern(new byte[]{2});
+		assert(interner.size() == 2);
+		assert(interner.intern(id.getBytes()) != id);
+
+		Transaction tx = new Transaction();
+		tx.addInput(fromId);
+		tx.addOutput(1, null);
+		Transaction.Input input = tx.getInput(0);
+		assert(input.getPrevTxId() == id);
+		assert(input.prevTxHash == id.getBytes());
+		assert(input.getUTXO().equals(fromBytes));
+		// reassigning the public field is picked up, and the input takes its own copy
+		byte[] reassigned = {9};
+		input.prevTxHash = reassigned;
+		UTXO spent = input.getUTXO();
+		assert(spent.equals(new UTXO(new byte[]{9}, 2)));
+		assert(input.prevTxHash != reassigned && input.prevTxHash == input.getPrevTxId().getBytes());
+		reassigned[0] = 8;
+		assert(spent.equals(new UTXO(new byte[]{9}, 2)) && input.getUTXO().equals(spent));
+
+		// inputs built from bytes copy them once, into their id
+		byte[] parent = {6};
+		tx.addInput(parent, 0);
+		Transaction.Input fromHash = tx.getInput(1);
+		assert(fromHash.prevTxHash != parent && fromHash.getPrevTxId().getBytes() == fromHash.prevTxHash);
+		// and share one id across transactions when added through an interner
+		TxIdInterner txIds = new TxIdInterner(4);
+		Transaction other = new Transaction();
+		tx.addInput(parent, 1, txIds);
+		other.addInput(parent.clone(), 0, txIds);
+		assert(tx.getInput(2).getPrevTxId() == other.getInput(0).getPrevTxId());
+		assert(tx.getInput(2).prevTxHash == other.getInput(0).prevTxHash);
+
+		byte[] hash3 = {3};
+		tx.setHash(hash3);
+		hash3[0] = 5;
+		TxId txId = tx.getTxId();
+		assert(txId.equals(TxId.of(new byte[]{3})));
+		assert(txId.getBytes() == tx.getHash());
+		assert(tx.getTxId() == txId);
+		tx.setHash(new byte[]{4});
+		assert(tx.getTxId() != txId && tx.getTxId().getBytes() == tx.getHash());
+		tx.setTxId(id);
+		assert(tx.getTxId() == id && tx.getHash() == id.getBytes());
+	}
+
+	@Test
+	void shouldDecodeInputsSharingTheirParentsId() throws GeneralSecurityException, IOException {
+		Transaction[][] epochs = TransactionCodecTest.epochs();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (TransactionEncoder encoder = new TransactionEncoder(Channels.newChannel(bytes))) {
+			for (Transaction[] epoch : epochs) {
+				encoder.writeAll(epoch);
+				encoder.endEpoch();
+			}
+		}
+		TxIdInterner interner = new TxIdInterner(64);
+		try (TransactionDecoder decoder = new TransactionDecoder(ByteBuffer.wrap(bytes.toByteArray()), new PublicKeyCache(), interner)) {
+			Transaction genesis = decoder.nextEpoch()[0];
+			decoder.nextEpoch();
+			Transaction spend = decoder.nextEpoch()[0];
+			TransactionCodecTest.assertSame(epochs[2][0], spend);
+			HashSet<TxId> parents = new HashSet<>();
+			for (int i = 0; i < 2; i++) {
+				assert(spend.getInput(i).getPrevTxId() == genesis.getTxId());
+				assert(spend.getInput(i).prevTxHash == genesis.getHash());
+				parents.add(spend.getInput(i).getUTXO().getTxId());
+			}
+			assert(parents.size() == 1);
+			assert(spend.getInput(2).prevTxHash == null);
+			// the decoder's ids come from the interner it was given
+			assert(interner.intern(genesis.getHash().clone()) == genesis.getTxId());
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+
+class UTXOJournalTest {
+
+	static ArrayList<Path> files(Path dir, String prefix) throws IOException {
+		ArrayList<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*")) {
+			stream.forEach(files::add);
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	@Test
+	void shouldRecoverFromCheckpointAndJournalTail() throws IOException, GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair scrooge = keyGen.generateKeyPair();
+		KeyPair alice = keyGen.generateKeyPair();
+
+		Transaction genesis = new Transaction();
+		for (int i = 0; i < 10; i++) {
+			genesis.addOutput(10, scrooge.getPublic());
+		}
+		genesis.finalize();
+
+		Path dir = Files.createTempDirectory("journal");
+		UTXOPool recovered = new UTXOPool();
+		UTXOJournal journal = UTXOJournal.open(dir, recovered);
+		assert(recovered.size() == 0);
+		assert(journal.commit(new Transaction[]{genesis}) == 1);
+
+		UTXOPool pool = new UTXOPool();
+		for (int i = 0; i < genesis.numOutputs(); i++) {
+			pool.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+		}
+		TxHandler handler = new TxHandler(pool);
+		Transaction a = ParallelTxHandlerTest.spend(genesis, new int[]{0, 1}, 20, scrooge.getPrivate(), alice.getPublic());
+		Transaction b = ParallelTxHandlerTest.spend(a, new int[]{0}, 15, alice.getPrivate(), scrooge.getPublic());
+		Transaction[] accepted = handler.handleTxs(new Transaction[]{b, a});
+		assert(accepted.length == 2);
+		journal.commit(accepted);
+		journal.checkpoint(handler.getPool());
+		assert(files(dir, "checkpoint-").size() == 1);
+		assert(files(dir, "journal-").size() == 1);
+
+		Transaction c = ParallelTxHandlerTest.spend(genesis, new int[]{2}, 10, scrooge.getPrivate(), alice.getPublic());
+		Transaction d = ParallelTxHandlerTest.spend(b, new int[]{0}, 15, scrooge.getPrivate(), alice.getPublic());
+		long seq = journal.append(handler.handleTxs(new Transaction[]{c}));
+		long last = journal.append(handler.handleTxs(new Transaction[]{d}));
+		journal.sync(last);
+		assert(last == seq + 1 && last == 4);
+		journal.close();
+
+		recovered = new UTXOPool();
+		journal = UTXOJournal.open(dir, recovered);
+		MappedUTXOPoolTest.assertSameContents(handler.getPool(), recovered);
+		assert(journal.lastSeq() == 4);
+		journal.close();
+
+		// a record torn by a crash is dropped and later appends follow the last good one
+		Path tail = files(dir, "journal-").get(0);
+		long goodSize = Files.size(tail);
+		try (FileChannel fc = FileChannel.open(tail, StandardOpenOption.APPEND)) {
+			fc.write(ByteBuffer.wrap(new byte[]{0, 0, 1, 0, 7, 7, 7}));
+		}
+		recovered = new UTXOPool();
+		journal = UTXOJournal.open(dir, recovered);
+		assert(Files.size(tail) == goodSize);
+		MappedUTXOPoolTest.assertSameContents(handler.getPool(), recovered);
+
+		Transaction e = ParallelTxHandlerTest.spend(genesis, new int[]{3}, 10, scrooge.getPrivate(), alice.getPublic());
+		assert(journal.commit(handler.handleTxs(new Transaction[]{e})) == 5);
+		journal.checkpoint(handler.getPool());
+		journal.close();
+		assert(files(dir, "checkpoint-").size() == 1);
+
+		recovered = new PrimitiveUTXOPool();
+		journal = UTXOJournal.open(dir, recovered);
+		MappedUTXOPoolTest.assertSameContents(handler.getPool(), recovered);
+		journal.close();
+	}
+}
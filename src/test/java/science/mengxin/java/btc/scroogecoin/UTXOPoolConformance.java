@@ -0,0 +1,151 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Conformance check shared by the tests of the {@link UTXOPool} backends: drives a backend and a
+ * hash-based pool through the same changes and compares them after each step.
+ */
+final class UTXOPoolConformance {
+
+	private UTXOPoolConformance() {
+	}
+
+	/** Like {@link #assertBehavesLikeHashMapPool(UTXOPool, Function, long, int, BiConsumer)}, comparing outputs by identity */
+	static UTXOPool assertBehavesLikeHashMapPool(UTXOPool actual, Function<UTXOPool, UTXOPool> handlerBackend, long seed,
+			int shortHashLength) throws GeneralSecurityException {
+		return assertBehavesLikeHashMapPool(actual, handlerBackend, seed, shortHashLength, PrimitiveUTXOPoolTest::assertSameContents);
+	}
+
+	/**
+	 * Checks a backend against a hash-based pool. Runs random adds and removes on {@code actual},
+	 * which must start empty, and on copies taken along the way, one of every 25 hashes being
+	 * {@code shortHashLength} bytes long. Then applies one {@code applyUpdates} and has a handler on
+	 * {@code handlerBackend} of a genesis pool handle an epoch. Outputs are compared with
+	 * {@code sameContents}, since backends that store them off the heap return equal outputs, not
+	 * the same ones.
+	 *
+	 * @return the hash-based pool holding what {@code actual} should now hold
+	 */
+	static UTXOPool assertBehavesLikeHashMapPool(UTXOPool actual, Function<UTXOPool, UTXOPool> handlerBackend, long seed,
+			int shortHashLength, BiConsumer<UTXOPool, UTXOPool> sameContents) throws GeneralSecurityException {
+		Random random = new Random(seed);
+		Transaction tx = new Transaction();
+		ArrayList<UTXO> keys = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			byte[] hash = new byte[i % 25 == 0 ? shortHashLength : 32];
+			random.nextBytes(hash);
+			// few distinct hashes with many indices, to get long probe runs and shard collisions
+			for (int index = 0; index < 8; index++) {
+				keys.add(new UTXO(hash, index));
+			}
+		}
+
+		UTXOPool expected = new UTXOPool();
+		ArrayList<UTXOPool> expectedCopies = new ArrayList<>(List.of(expected));
+		ArrayList<UTXOPool> actualCopies = new ArrayList<>(List.of(actual));
+		for (int op = 0; op < 10000; op++) {
+			int which = random.nextInt(expectedCopies.size());
+			UTXOPool e = expectedCopies.get(which);
+			UTXOPool a = actualCopies.get(which);
+			if (op % 2500 == 1250) {
+				// both the source and the copy keep changing afterwards
+				expectedCopies.add(e.copy());
+				actualCopies.add(a.copy());
+			}
+			UTXO ut = keys.get(random.nextInt(keys.size()));
+			if (random.nextInt(3) == 0) {
+				e.removeUTXO(ut);
+				a.removeUTXO(ut);
+			} else {
+				Transaction.Output out = random.nextInt(100) == 0 ? null : tx.new Output(op, null);
+				e.addUTXO(ut, out);
+				a.addUTXO(ut, out);
+			}
+			assert(e.contains(ut) == a.contains(ut));
+			assert(e.contains(ut) == a.contains(ut.getTxHash(), ut.getIndex()));
+		}
+		for (int i = 0; i < expectedCopies.size(); i++) {
+			sameContents.accept(expectedCopies.get(i), actualCopies.get(i));
+		}
+
+		// re-creating a spent outpoint in the same update keeps it
+		List<UTXO> spent = new ArrayList<>(expected.getAllUTXO().subList(0, 100));
+		HashMap<UTXO, Transaction.Output> created = new HashMap<>();
+		for (int i = 0; i < 300; i++) {
+			created.put(keys.get(random.nextInt(keys.size())), tx.new Output(i, null));
+		}
+		created.put(spent.get(0), tx.new Output(-1, null));
+		expected.applyUpdates(spent, created);
+		actual.applyUpdates(spent, created);
+		assert(actual.contains(spent.get(0)));
+		sameContents.accept(expected, actual);
+
+		// handlers apply each round with one applyUpdates call
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair owner = keyGen.generateKeyPair();
+		Transaction genesis = new Transaction();
+		for (int i = 0; i < 16; i++) {
+			genesis.addOutput(10, owner.getPublic());
+		}
+		genesis.finalize();
+		UTXOPool genesisPool = new UTXOPool();
+		for (int i = 0; i < genesis.numOutputs(); i++) {
+			genesisPool.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+		}
+		Transaction[] epoch = epoch(genesis, owner, random);
+		TxHandler reference = new TxHandler(new UTXOPool(genesisPool));
+		TxHandler handler = new TxHandler(handlerBackend.apply(new UTXOPool(genesisPool)));
+		Transaction[] accepted = reference.handleTxs(epoch);
+		assert(accepted.length > genesis.numOutputs());
+		assert(Arrays.equals(accepted, handler.handleTxs(epoch)));
+		sameContents.accept(reference.getPool(), handler.getPool());
+		return expected;
+	}
+
+	/**
+	 * @return a shuffled epoch spending {@code genesis}: one spend per output, a conflicting spend of
+	 *         half of them, a child of each of those spends and one spend of more than it takes in
+	 */
+	private static Transaction[] epoch(Transaction genesis, KeyPair owner, Random random) throws GeneralSecurityException {
+		ArrayList<Transaction> txs = new ArrayList<>();
+		for (int i = 0; i < genesis.numOutputs(); i++) {
+			Transaction spend = spend(genesis, i, 10, owner.getPrivate(), owner.getPublic());
+			txs.add(spend);
+			if (i % 2 == 0) {
+				txs.add(spend(genesis, i, 9, owner.getPrivate(), owner.getPublic()));
+				txs.add(spend(spend, 0, 10, owner.getPrivate(), owner.getPublic()));
+			}
+		}
+		txs.add(spend(genesis, 1, 11, owner.getPrivate(), owner.getPublic()));
+		Collections.shuffle(txs, random);
+		return txs.toArray(new Transaction[0]);
+	}
+
+	private static Transaction spend(Transaction parent, int index, double value, PrivateKey signer, PublicKey to)
+			throws GeneralSecurityException {
+		Transaction tx = new Transaction();
+		tx.addInput(parent.getHash(), index);
+		tx.addOutput(value, to);
+		Signature sig = Signature.getInstance("SHA256withRSA");
+		sig.initSign(signer);
+		sig.update(tx.getRawDataToSign(0));
+		tx.addSignature(sig.sign(), 0);
+		tx.finalize();
+		return tx;
+	}
+}
@@ -0,0 +1,87 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Random;
+
+class UTXOPoolOverlayTest {
+
+	@Test
+	void shouldRecordChangesUntilCommitOrRollback() {
+		Random random = new Random(3);
+		Transaction tx = new Transaction();
+		ArrayList<UTXO> keys = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			byte[] hash = new byte[32];
+			random.nextBytes(hash);
+			keys.add(new UTXO(hash, i % 3));
+		}
+		UTXOPool base = new UTXOPool();
+		for (int i = 0; i < 100; i++) {
+			base.addUTXO(keys.get(i), tx.new Output(i, null));
+		}
+		UTXOPool before = base.copy();
+
+		UTXOPoolOverlay overlay = new UTXOPoolOverlay(base);
+		UTXOPool expected = base.copy();
+		for (int op = 0; op < 2000; op++) {
+			UTXO ut = keys.get(random.nextInt(keys.size()));
+			if (random.nextBoolean()) {
+				expected.removeUTXO(ut);
+				overlay.removeUTXO(ut);
+			} else {
+				Transaction.Output out = random.nextInt(50) == 0 ? null : tx.new Output(op, null);
+				expected.addUTXO(ut, out);
+				overlay.addUTXO(ut, out);
+			}
+		}
+		PrimitiveUTXOPoolTest.assertSameContents(expected, overlay);
+		PrimitiveUTXOPoolTest.assertSameContents(before, base);
+
+		UTXOPoolOverlay copy = overlay.copy();
+		copy.rollback();
+		PrimitiveUTXOPoolTest.assertSameContents(before, copy);
+		PrimitiveUTXOPoolTest.assertSameContents(expected, overlay);
+
+		overlay.commit();
+		assert(!overlay.hasChanges());
+		PrimitiveUTXOPoolTest.assertSameContents(expected, base);
+		PrimitiveUTXOPoolTest.assertSameContents(expected, overlay);
+	}
+
+	@Test
+	void simulateShouldLeaveLedgerUnchanged() throws GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		KeyPair scrooge = keyGen.generateKeyPair();
+		KeyPair alice = keyGen.generateKeyPair();
+		Transaction genesis = new Transaction();
+		genesis.addOutput(10, scrooge.getPublic());
+		genesis.addOutput(10, scrooge.getPublic());
+		genesis.finalize();
+		UTXOPool pool = new UTXOPool();
+		pool.addUTXO(new UTXO(genesis.getHash(), 0), genesis.getOutput(0));
+		pool.addUTXO(new UTXO(genesis.getHash(), 1), genesis.getOutput(1));
+
+		Transaction a = ParallelTxHandlerTest.spend(genesis, new int[]{0}, 10, scrooge.getPrivate(), alice.getPublic());
+		Transaction b = ParallelTxHandlerTest.spend(a, new int[]{0}, 10, alice.getPrivate(), scrooge.getPublic());
+		Transaction c = ParallelTxHandlerTest.spend(genesis, new int[]{0}, 5, scrooge.getPrivate(), alice.getPublic());
+		Transaction[] txs = {b, a, c};
+
+		TxHandler handler = new TxHandler(pool);
+		UTXOPool live = handler.getPool();
+		Transaction[] simulated = handler.simulate(txs);
+		assert(handler.getPool() == live);
+		assert(live.size() == 2);
+
+		Transaction[] accepted = handler.handleTxs(txs);
+		assert(simulated.length == 2 && accepted.length == 2);
+		for (int i = 0; i < accepted.length; i++) {
+			assert(simulated[i] == accepted[i]);
+		}
+	}
+}
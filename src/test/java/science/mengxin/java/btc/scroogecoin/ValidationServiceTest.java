@@ -0,0 +1,151 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+class ValidationServiceTest {
+
+	@Test
+	void shouldValidateLikeHandler() throws Exception {
+		ParallelTxHandlerTest.setUp();
+		Transaction[] epoch = ParallelTxHandlerTest.epoch();
+		TxHandler reference = new TxHandler(ParallelTxHandlerTest.genesisPool());
+		TxHandler handler = new TxHandler(ParallelTxHandlerTest.genesisPool());
+		handler.setSignatureCache(null);
+
+		ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+		try (ValidationService service = new ValidationService(handler, forkJoinPool, 4, 1, TimeUnit.MILLISECONDS)) {
+			// one submitter thread per transaction, several times over
+			List<CompletableFuture<ValidationResult>> results = new ArrayList<>();
+			List<Thread> submitters = new ArrayList<>();
+			for (int copy = 0; copy < 3; copy++) {
+				for (Transaction tx : epoch) {
+					CompletableFuture<ValidationResult> result = new CompletableFuture<>();
+					results.add(result);
+					Thread submitter = new Thread(() -> service.submit(tx, 10, TimeUnit.SECONDS).whenComplete((r, e) -> {
+						if (e == null)
+							result.complete(r);
+						else
+							result.completeExceptionally(e);
+					}));
+					submitters.add(submitter);
+					submitter.start();
+				}
+			}
+			for (Thread submitter : submitters) {
+				submitter.join();
+			}
+			for (int i = 0; i < results.size(); i++) {
+				ValidationResult expected = reference.validate(epoch[i % epoch.length]);
+				ValidationResult actual = results.get(i).get();
+				assert(actual.getState() == expected.getState());
+				assert(actual.getMissing().equals(expected.getMissing()));
+			}
+			// the service gave the handler a cache and filled it in batches
+			assert(handler.getSignatureCache() != null && handler.getSignatureCache().size() > 0);
+		} finally {
+			forkJoinPool.shutdown();
+		}
+	}
+
+	@Test
+	void shouldTreatOutputCommittedAwayBetweenLookupsAsMissing() throws Exception {
+		ParallelTxHandlerTest.setUp();
+		Transaction[] epoch = ParallelTxHandlerTest.epoch();
+		// a pool committed in place by another thread between contains() and getTxOutput()
+		UTXOPool racing = new UTXOPool(ParallelTxHandlerTest.genesisPool()) {
+			@Override
+			public boolean contains(UTXO utxo) {
+				return true;
+			}
+
+			@Override
+			public Transaction.Output getTxOutput(UTXO ut) {
+				return null;
+			}
+		};
+		TxHandler handler = new TxHandler(racing);
+		ValidationResult result = handler.validate(epoch[0]);
+		assert(result.getState() == TxHandler.ThreeState.MAYBE);
+		assert(!result.getMissing().isEmpty());
+		assert(!handler.isValidTx(epoch[0]));
+	}
+
+	@Test
+	void shouldTimeOutAndStopAfterClose() throws Exception {
+		ParallelTxHandlerTest.setUp();
+		Transaction[] epoch = ParallelTxHandlerTest.epoch();
+		TxHandler handler = new TxHandler(ParallelTxHandlerTest.genesisPool());
+		// a batch waits up to a minute for a second request
+		ValidationService service = new ValidationService(handler, ForkJoinPool.commonPool(), 2, 1, TimeUnit.MINUTES);
+		CompletableFuture<ValidationResult> late = service.submit(epoch[0], 50, TimeUnit.MILLISECONDS);
+		try {
+			late.get();
+			assert(false);
+		} catch (ExecutionException e) {
+			assert(e.getCause() instanceof TimeoutException);
+		}
+
+		// closing validates what is still queued
+		CompletableFuture<ValidationResult> queued = service.submit(epoch[1]);
+		service.close();
+		assert(queued.get().getState() == new TxHandler(ParallelTxHandlerTest.genesisPool()).validate(epoch[1]).getState());
+		try {
+			service.submit(epoch[0]).get();
+			assert(false);
+		} catch (ExecutionException e) {
+			assert(e.getCause() instanceof IllegalStateException);
+		}
+
+		// an interrupted close stops waiting, keeps the interrupt and still validates what was queued
+		ValidationService interrupted = new ValidationService(handler, ForkJoinPool.commonPool(), 2, 1, TimeUnit.MINUTES);
+		CompletableFuture<ValidationResult> pending = interrupted.submit(epoch[1]);
+		Thread.currentThread().interrupt();
+		interrupted.close();
+		assert(Thread.interrupted());
+		assert(pending.get().getState() == queued.get().getState());
+	}
+
+	@Test
+	void shouldOnlySeePublishedEpochs() throws Exception {
+		ParallelTxHandlerTest.setUp();
+		Transaction[] epoch = ParallelTxHandlerTest.epoch();
+		// epoch[1] spends an output of epoch[2], epoch[3] wins output 30 of the genesis
+		Transaction child = epoch[1];
+		Transaction winner = epoch[3];
+		ValidationService[] service = new ValidationService[1];
+		List<TxHandler.ThreeState> childStates = new ArrayList<>();
+		List<TxHandler.ThreeState> winnerStates = new ArrayList<>();
+		TxHandler handler = new TxHandler(ParallelTxHandlerTest.genesisPool()) {
+			@Override
+			Transaction[] handleEpoch(Transaction[] possibleTxs, UTXOPool ledger) {
+				Transaction[] accepted = super.handleEpoch(possibleTxs, ledger);
+				// validate from another thread while the epoch is half applied
+				childStates.add(service[0].submit(child).join().getState());
+				winnerStates.add(service[0].submit(winner).join().getState());
+				return accepted;
+			}
+		};
+		UTXOPool genesisPool = handler.getPool();
+		try (ValidationService started = new ValidationService(handler, ForkJoinPool.commonPool(), 1, 1, TimeUnit.MILLISECONDS)) {
+			service[0] = started;
+			handler.simulate(epoch);
+			assert(handler.getPool() == genesisPool);
+			handler.handleTxs(epoch);
+			assert(childStates.size() > 2);
+			for (int i = 0; i < childStates.size(); i++) {
+				assert(childStates.get(i) == TxHandler.ThreeState.MAYBE);
+				assert(winnerStates.get(i) == TxHandler.ThreeState.TRUE);
+			}
+			assert(handler.getPool() != genesisPool);
+			assert(started.submit(winner).get().getState() == TxHandler.ThreeState.MAYBE);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package science.mengxin.java.btc.scroogecoin;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+class WorkloadGeneratorTest {
+
+	static WorkloadGenerator.Shape smallShape() {
+		return new WorkloadGenerator.Shape()
+				.epochs(3)
+				.txsPerEpoch(80)
+				.genesis(20, 1000)
+				.keys(4, 512)
+				.inputs(1.5, 4)
+				.outputs(2, 8)
+				.chainRate(0.5)
+				.doubleSpendRate(0.1)
+				.invalidSignatureRate(0.1)
+				.overspendRate(0.1);
+	}
+
+	@Test
+	void shouldWriteIdenticalFixturesForTheSameSeed() throws GeneralSecurityException, IOException {
+		Workload workload = new WorkloadGenerator(7, smallShape()).generate();
+		assert(workload.getEpochs().size() == 3);
+		assert(workload.size() == 240);
+
+		Path first = Files.createTempFile("workload", ".bin");
+		Path second = Files.createTempFile("workload", ".bin");
+		try {
+			workload.write(first);
+			new WorkloadGenerator(7, smallShape()).generate().write(second);
+			assert(Arrays.equals(Files.readAllBytes(first), Files.readAllBytes(second)));
+
+			Workload loaded = Workload.read(first);
+			assert(Arrays.equals(loaded.getGenesis().getHash(), workload.getGenesis().getHash()));
+			assert(loaded.getEpochs().size() == workload.getEpochs().size());
+
+			TxHandler expected = new TxHandler(workload.genesisPool());
+			TxHandler fromFixture = new DagTxHandler(loaded.genesisPool(new PrimitiveUTXOPool()));
+			int accepted = 0;
+			for (int e = 0; e < workload.getEpochs().size(); e++) {
+				Transaction[] epoch = loaded.getEpochs().get(e);
+				assert(epoch.length == workload.getEpochs().get(e).length);
+				Transaction[] result = expected.handleTxs(workload.getEpochs().get(e));
+				Transaction[] resultFromFixture = fromFixture.handleTxs(epoch);
+				assert(result.length == resultFromFixture.length);
+				for (int i = 0; i < result.length; i++) {
+					assert(Arrays.equals(result[i].getHash(), resultFromFixture[i].getHash()));
+				}
+				assert(result.length > 0 && result.length < epoch.length);
+				accepted += result.length;
+			}
+			assert(accepted > 120);
+			assert(new HashSet<>(expected.getPool().getAllUTXO()).equals(new HashSet<>(fromFixture.getPool().getAllUTXO())));
+		} finally {
+			Files.delete(first);
+			Files.delete(second);
+		}
+	}
+}